@@ -67,6 +67,7 @@ public class Filesharer {
     	int idxSrvPort = 3200; // the port of the index server
 		int port = 3201; // the port this peer uses for other peers to connect to
 		int timeout = 1000; // the default socket timeout in milliseconds for idle sockets
+		boolean virtualThreads = false; // process connections from other peers on virtual threads
     	
     	/*
     	 * Specify command line options to override the defaults.
@@ -101,6 +102,9 @@ public class Filesharer {
     	Option timeoutOption = new Option("t","timeout",true,"the default socket timeout in milliseconds; default ["+timeout+"]");
     	timeoutOption.setRequired(false);
     	options.addOption(timeoutOption);
+    	Option virtualThreadsOption = new Option("vt","vthreads",false,"process connections from other peers on virtual threads instead of a thread pool");
+    	virtualThreadsOption.setRequired(false);
+    	options.addOption(virtualThreadsOption);
     	
     	/*
     	 * Parse the command line options. This will override the default values when
@@ -170,6 +174,9 @@ public class Filesharer {
 	    			System.out.println("Warning: The socket timeout (in milliseconds) should be an integer greater than zero ["+cmd.getOptionValue("p")+"]");
 	    		}
 	    	}
+	    	if(cmd.hasOption("vt")) {
+	    		virtualThreads=true;
+	    	}
 		} catch (ParseException e1) {
 			help();
 		}
@@ -190,11 +197,12 @@ public class Filesharer {
     	textGUI.logInfo("using basedir ["+dir+"] - all filenames will be relative to this basedir");
     	textGUI.logInfo("using sharer secret ["+secret+"]");
     	textGUI.logInfo("socket timeout ["+timeout+"]");
+    	textGUI.logInfo("virtual threads ["+virtualThreads+"]");
     	
     	/*
     	 * Start up a peer.
     	 */
-		Peer peer = new Peer(port,dir,timeout,textGUI);
+		Peer peer = new Peer(port,dir,timeout,virtualThreads,textGUI);
 		
 		/*
 		 * Tell the gui about the peer.
@@ -11,6 +11,7 @@ import java.nio.file.Paths;
 import org.apache.commons.cli.*;
 
 import comp90015.idxsrv.server.Server;
+import comp90015.idxsrv.server.ServerConfig;
 import comp90015.idxsrv.server.ServerTextGUI;
 
 /**
@@ -32,33 +33,72 @@ public class IdxSrv
 	
     public static void main( String[] args ) throws IOException
     {
-    	int port = 3200;
-    	String welcome = "Welcome to the default IdxSrv implementation for COMP90015 SM2 2022.";
-    	String dir = System.getProperty("user.dir");
-    	String secret = "server123";
-    	int timeout = 1000;
-    	InetAddress address = InetAddress.getByName("localhost");
+    	ServerConfig config = new ServerConfig();
+    	config.address = InetAddress.getByName("localhost");
     	Option helpOption = new Option("h","help",false,"help");
     	helpOption.setRequired(false);
     	options.addOption(helpOption);
-    	Option portOption = new Option("p","port",true,"port number; default ["+port+"]");
+    	Option portOption = new Option("p","port",true,"port number; default ["+config.port+"]");
     	portOption.setRequired(false);
     	options.addOption(portOption);
-    	Option addressOption = new Option("a","address",true,"advertised network address; default ["+address.getHostName()+"]");
+    	Option addressOption = new Option("a","address",true,"advertised network address; default ["+config.address.getHostName()+"]");
     	addressOption.setRequired(false);
     	options.addOption(addressOption);
-    	Option dirOption =  new Option("d","dir",true,"directory to share; default ["+dir+"]");
+    	Option dirOption =  new Option("d","dir",true,"directory for the index log and snapshots; default ["+config.dir+"]");
     	dirOption.setRequired(false);
     	options.addOption(dirOption);
-    	Option welcomeOption = new Option("w","welcome",true,"the welcome message; defauft ["+welcome+"]");
+    	Option welcomeOption = new Option("w","welcome",true,"the welcome message; defauft ["+config.welcome+"]");
     	welcomeOption.setRequired(false);
     	options.addOption(welcomeOption);
-    	Option secretOption = new Option("s","secret",true,"the secret required to access this server; default ["+secret+"]");
+    	Option secretOption = new Option("s","secret",true,"the secret required to access this server; default ["+config.secret+"]");
     	secretOption.setRequired(false);
     	options.addOption(secretOption);
-    	Option timeoutOption = new Option("t","timeout",true,"the default socket timeout in milliseconds; default ["+timeout+"]");
+    	Option timeoutOption = new Option("t","timeout",true,"the default socket timeout in milliseconds; default ["+config.socketTimeout+"]");
     	timeoutOption.setRequired(false);
     	options.addOption(timeoutOption);
+    	Option workersOption = new Option("n","workers",true,"the number of worker threads processing requests; default ["+config.numWorkers+"]");
+    	workersOption.setRequired(false);
+    	options.addOption(workersOption);
+    	Option queueOption = new Option("q","queue",true,"the most connections waiting for a worker before new connections are shed; default ["+config.queueCapacity+"]");
+    	queueOption.setRequired(false);
+    	options.addOption(queueOption);
+    	Option modeOption = new Option("m","mode",true,"how connections are processed, one of pool, virtual or nio; default ["+config.mode.name().toLowerCase()+"]");
+    	modeOption.setRequired(false);
+    	options.addOption(modeOption);
+    	Option offHeapOption = new Option("oh","offheap",false,"store the block hashes of indexed files off heap; default [off]");
+    	offHeapOption.setRequired(false);
+    	options.addOption(offHeapOption);
+    	Option persistOption = new Option("ps","persist",false,"log shares and drops to the directory and recover them on startup; default [off]");
+    	persistOption.setRequired(false);
+    	options.addOption(persistOption);
+    	Option leaseOption = new Option("l","lease",true,"the time to live in milliseconds of a sharer's lease, renewed by sharing or a heartbeat, or 0 for shares that never expire; default ["+config.leaseTtl+"]");
+    	leaseOption.setRequired(false);
+    	options.addOption(leaseOption);
+    	Option cacheOption = new Option("c","cache",true,"the most search replies cached, or 0 to not cache searches; default ["+config.searchCacheSize+"]");
+    	cacheOption.setRequired(false);
+    	options.addOption(cacheOption);
+    	Option probeOption = new Option("pr","probe",true,"the time in milliseconds between connection attempts to each sharer, dropping sharers that cannot be reached, or 0 to not probe them; default [off]");
+    	probeOption.setRequired(false);
+    	options.addOption(probeOption);
+    	Option probeConcurrencyOption = new Option("pc","probes",true,"the most sharer probes in progress at once; default ["+config.probeConcurrency+"]");
+    	probeConcurrencyOption.setRequired(false);
+    	options.addOption(probeConcurrencyOption);
+    	Option probeTimeoutOption = new Option("pt","probetimeout",true,"the time in milliseconds to wait for a sharer to accept a probe's connection; default ["+config.probeTimeout+"]");
+    	probeTimeoutOption.setRequired(false);
+    	options.addOption(probeTimeoutOption);
+    	Option rateLimitOption = new Option("rl","ratelimit",true,"the number of requests of each type that a client may send per second, or 0 for no limit; default [off]");
+    	rateLimitOption.setRequired(false);
+    	options.addOption(rateLimitOption);
+    	Option clusterOption = new Option("cl","cluster",true,"serve as a node of a cluster that partitions the index, joining the cluster of the given node ADDRESS:PORT if one is given; default [off]");
+    	clusterOption.setRequired(false);
+    	clusterOption.setOptionalArg(true);
+    	options.addOption(clusterOption);
+    	Option nodeSecretOption = new Option("ns","nodesecret",true,"the secret that index servers present to each other, which cluster nodes, replicas and the primaries of replicas need; default [none]");
+    	nodeSecretOption.setRequired(false);
+    	options.addOption(nodeSecretOption);
+    	Option replicaOption = new Option("r","replica",true,"serve searches and lookups as a hot standby of the primary ADDRESS:PORT, taking over if it fails; default [off]");
+    	replicaOption.setRequired(false);
+    	options.addOption(replicaOption);
     	CommandLineParser parser = new DefaultParser();
     	CommandLine cmd;
     	ServerTextGUI stg = new ServerTextGUI();
@@ -69,9 +109,9 @@ public class IdxSrv
 	    	}
 	    	if(cmd.hasOption("p")) {
 	    		try {
-	    			port = Integer.parseInt(cmd.getOptionValue("p"));
-	    			if(port<0) {
-	    				port=0;
+	    			config.port = Integer.parseInt(cmd.getOptionValue("p"));
+	    			if(config.port<0) {
+	    				config.port=0;
 	    			}
 	    		} catch (NumberFormatException e) {
 	    			stg.logWarn("The port number should be an integer greater than zero ["+cmd.getOptionValue("p")+"]");
@@ -79,13 +119,13 @@ public class IdxSrv
 	    	}
 	    	if(cmd.hasOption("a")) {
 	    		try {
-	    			address = InetAddress.getByName(cmd.getOptionValue("a"));
+	    			config.address = InetAddress.getByName(cmd.getOptionValue("a"));
 	    		} catch (UnknownHostException e) {
 	    			stg.logWarn("The supplied address could not be obtained ["+cmd.getOptionValue("a")+"]");
 	    		}
 	    	}
 	    	if(cmd.hasOption("w")) {
-	    		welcome=cmd.getOptionValue("w");
+	    		config.welcome=cmd.getOptionValue("w");
 	    	}
 	    	if(cmd.hasOption("d")) {
 	    		String udir=cmd.getOptionValue("d");
@@ -93,32 +133,164 @@ public class IdxSrv
 	    		if(!Files.exists(path)) {
 	    			stg.logWarn("The supplied directory does not exist ["+udir+"]");
 	    		} else {
-	    			dir=udir;
+	    			config.dir=udir;
 	    		}
 	    	}
 	    	if(cmd.hasOption("s")) {
-	    		secret=cmd.getOptionValue("s");
+	    		config.secret=cmd.getOptionValue("s");
 	    	}
 	    	if(cmd.hasOption("t")) {
 	    		try {
-	    			timeout = Integer.parseInt(cmd.getOptionValue("t"));
-	    			if(timeout<0) {
-	    				timeout=0;
+	    			config.socketTimeout = Integer.parseInt(cmd.getOptionValue("t"));
+	    			if(config.socketTimeout<0) {
+	    				config.socketTimeout=0;
 	    			}
 	    		} catch (NumberFormatException e) {
 	    			stg.logWarn("The socket timeout (in milliseconds) should be an integer greater than zero ["+cmd.getOptionValue("p")+"]");
 	    		}
 	    	}
+	    	if(cmd.hasOption("n")) {
+	    		try {
+	    			config.numWorkers = Integer.parseInt(cmd.getOptionValue("n"));
+	    			if(config.numWorkers<1) {
+	    				config.numWorkers=1;
+	    			}
+	    		} catch (NumberFormatException e) {
+	    			stg.logWarn("The number of worker threads should be an integer greater than zero ["+cmd.getOptionValue("n")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("q")) {
+	    		try {
+	    			config.queueCapacity = Integer.parseInt(cmd.getOptionValue("q"));
+	    			if(config.queueCapacity<1) {
+	    				config.queueCapacity=1;
+	    			}
+	    		} catch (NumberFormatException e) {
+	    			stg.logWarn("The queue capacity should be an integer greater than zero ["+cmd.getOptionValue("q")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("m")) {
+	    		try {
+	    			config.mode = Server.MODE.valueOf(cmd.getOptionValue("m").toUpperCase());
+	    		} catch (IllegalArgumentException e) {
+	    			stg.logWarn("The mode should be one of pool, virtual or nio ["+cmd.getOptionValue("m")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("oh")) {
+	    		config.offHeap=true;
+	    	}
+	    	if(cmd.hasOption("ps")) {
+	    		config.persist=true;
+	    	}
+	    	if(cmd.hasOption("l")) {
+	    		try {
+	    			config.leaseTtl = Integer.parseInt(cmd.getOptionValue("l"));
+	    			if(config.leaseTtl<0) {
+	    				config.leaseTtl=0;
+	    			}
+	    		} catch (NumberFormatException e) {
+	    			stg.logWarn("The lease time to live (in milliseconds) should be an integer of zero or more ["+cmd.getOptionValue("l")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("c")) {
+	    		try {
+	    			config.searchCacheSize = Integer.parseInt(cmd.getOptionValue("c"));
+	    			if(config.searchCacheSize<0) {
+	    				config.searchCacheSize=0;
+	    			}
+	    		} catch (NumberFormatException e) {
+	    			stg.logWarn("The search cache size should be an integer of zero or more ["+cmd.getOptionValue("c")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("pr")) {
+	    		try {
+	    			config.probeInterval = Integer.parseInt(cmd.getOptionValue("pr"));
+	    			if(config.probeInterval<0) {
+	    				config.probeInterval=0;
+	    			}
+	    		} catch (NumberFormatException e) {
+	    			stg.logWarn("The probe interval (in milliseconds) should be an integer of zero or more ["+cmd.getOptionValue("pr")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("pc")) {
+	    		try {
+	    			int probes = Integer.parseInt(cmd.getOptionValue("pc"));
+	    			if(probes>0) {
+	    				config.probeConcurrency=probes;
+	    			} else {
+	    				stg.logWarn("The number of probes should be a positive integer ["+cmd.getOptionValue("pc")+"]");
+	    			}
+	    		} catch (NumberFormatException e) {
+	    			stg.logWarn("The number of probes should be a positive integer ["+cmd.getOptionValue("pc")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("pt")) {
+	    		try {
+	    			int probeTimeout = Integer.parseInt(cmd.getOptionValue("pt"));
+	    			if(probeTimeout>0) {
+	    				config.probeTimeout=probeTimeout;
+	    			} else {
+	    				stg.logWarn("The probe timeout (in milliseconds) should be a positive integer ["+cmd.getOptionValue("pt")+"]");
+	    			}
+	    		} catch (NumberFormatException e) {
+	    			stg.logWarn("The probe timeout (in milliseconds) should be a positive integer ["+cmd.getOptionValue("pt")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("rl")) {
+	    		try {
+	    			config.rateLimit = Integer.parseInt(cmd.getOptionValue("rl"));
+	    			if(config.rateLimit<0) {
+	    				config.rateLimit=0;
+	    			}
+	    		} catch (NumberFormatException e) {
+	    			stg.logWarn("The rate limit (in requests per second) should be an integer of zero or more ["+cmd.getOptionValue("rl")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("ns")) {
+	    		config.nodeSecret=cmd.getOptionValue("ns");
+	    	}
+	    	if(cmd.hasOption("cl")) {
+	    		String seed = cmd.getOptionValue("cl");
+	    		if(seed==null) {
+	    			config.cluster="";
+	    		} else if(seed.lastIndexOf(':')>0) {
+	    			config.cluster=seed;
+	    		} else {
+	    			stg.logWarn("The cluster node should be given as ADDRESS:PORT ["+seed+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("r")) {
+	    		if(config.cluster!=null) {
+	    			stg.logWarn("A cluster node cannot also be a replica ["+cmd.getOptionValue("r")+"]");
+	    		} else if(cmd.getOptionValue("r").lastIndexOf(':')>0) {
+	    			config.primary=cmd.getOptionValue("r");
+	    		} else {
+	    			stg.logWarn("The primary should be given as ADDRESS:PORT ["+cmd.getOptionValue("r")+"]");
+	    		}
+	    	}
 		} catch (ParseException e1) {
 			help();
 		}
 		
-		stg.logInfo(welcome);
-    	stg.logInfo("using internet address ["+address.getHostName()+":"+port+"]");
-    	stg.logInfo("server secret ["+secret+"]");
-    	stg.logInfo("socket timeout ["+timeout+"]");
+		stg.logInfo(config.welcome);
+    	stg.logInfo("using internet address ["+config.address.getHostName()+":"+config.port+"]");
+    	stg.logInfo("server secret ["+config.secret+"]");
+    	stg.logInfo("node secret ["+(config.nodeSecret==null?"none":config.nodeSecret)+"]");
+    	stg.logInfo("socket timeout ["+config.socketTimeout+"]");
+    	stg.logInfo("connection mode ["+config.mode.name().toLowerCase()+"]");
+    	stg.logInfo("worker threads ["+config.numWorkers+"]");
+    	stg.logInfo("incoming connection queue capacity ["+config.queueCapacity+"]");
+    	stg.logInfo("off heap block hashes ["+(config.offHeap?"on":"off")+"]");
+    	stg.logInfo("persist index ["+(config.persist?"on, in "+config.dir:"off")+"]");
+    	stg.logInfo("sharer lease ["+(config.leaseTtl>0?config.leaseTtl+" ms":"off")+"]");
+    	stg.logInfo("search cache ["+(config.searchCacheSize>0?config.searchCacheSize+" replies":"off")+"]");
+    	stg.logInfo("sharer probes ["+(config.probeInterval>0?"every "+config.probeInterval+" ms, at most "
+    			+config.probeConcurrency+" at once, timeout "+config.probeTimeout+" ms":"off")+"]");
+    	stg.logInfo("rate limit ["+(config.rateLimit>0?config.rateLimit+" requests per second":"off")+"]");
+    	stg.logInfo("replica of ["+(config.primary==null?"off":config.primary)+"]");
+    	stg.logInfo("cluster ["+(config.cluster==null?"off":config.cluster.isEmpty()?"new":"joining "+config.cluster)+"]");
     	
-    	Server server = new Server(port,address,welcome,dir,secret,timeout,stg);
+    	Server server = new Server(config,stg);
     	server.start();
     	try {
 			server.join();
@@ -0,0 +1,226 @@
+package comp90015.idxsrv;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.message.AuthenticateRequest;
+import comp90015.idxsrv.message.JsonSerializationException;
+import comp90015.idxsrv.message.MessageFactory;
+import comp90015.idxsrv.message.SearchRequest;
+import comp90015.idxsrv.message.ShareRequest;
+import comp90015.idxsrv.server.Server;
+import comp90015.idxsrv.server.ServerConfig;
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * A simple load generator that starts an index server in each connection mode and
+ * measures request throughput and latency. The "single" run uses a single worker
+ * thread, which is equivalent to the original single request-processing loop.
+ * Optional slow clients connect and then never send anything, holding on to their
+ * connection until the server times them out, which is what stalls a small pool.
+ * @author aaron
+ *
+ */
+public class ServerBenchmark {
+	private static Options options = new Options();
+
+	private static final String SECRET = "server123";
+
+	private static void help() {
+		final PrintWriter writer = new PrintWriter(System.out);
+		HelpFormatter formatter = new HelpFormatter();
+	    formatter.printHelp("", options);
+	    writer.flush();
+	    System.exit(0);
+	}
+
+	/**
+	 * Only errors are of interest while benchmarking, logging every message would
+	 * dominate the measurement.
+	 */
+	private static class QuietLogger implements ITerminalLogger {
+		@Override
+		public void logInfo(String msg) {}
+		@Override
+		public void logWarn(String msg) {}
+		@Override
+		public void logError(String msg) {
+			System.out.println("Error: "+msg);
+		}
+		@Override
+		public void logDebug(String msg) {}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException, JsonSerializationException {
+		int port = 3300;
+		int clients = 64;
+		int requests = 200;
+		int slowClients = 0;
+		int workers = Runtime.getRuntime().availableProcessors();
+		int timeout = 1000;
+		int queueCapacity = 1024;
+		Option helpOption = new Option("h","help",false,"help");
+		options.addOption(helpOption);
+		Option portOption = new Option("p","port",true,"first port number to use, one per mode; default ["+port+"]");
+		options.addOption(portOption);
+		Option clientsOption = new Option("c","clients",true,"number of concurrent clients; default ["+clients+"]");
+		options.addOption(clientsOption);
+		Option requestsOption = new Option("r","requests",true,"number of requests per client; default ["+requests+"]");
+		options.addOption(requestsOption);
+		Option slowOption = new Option("sc","slow",true,"number of slow clients that connect and send nothing; default ["+slowClients+"]");
+		options.addOption(slowOption);
+		Option workersOption = new Option("n","workers",true,"number of worker threads in pool mode; default ["+workers+"]");
+		options.addOption(workersOption);
+		Option timeoutOption = new Option("t","timeout",true,"the server socket timeout in milliseconds; default ["+timeout+"]");
+		options.addOption(timeoutOption);
+		Option queueOption = new Option("q","queue",true,"the server incoming connection queue capacity; default ["+queueCapacity+"]");
+		options.addOption(queueOption);
+		CommandLineParser parser = new DefaultParser();
+		try {
+			CommandLine cmd = parser.parse(options, args);
+			if(cmd.hasOption("h")) help();
+			port = Integer.parseInt(cmd.getOptionValue("p",""+port));
+			clients = Integer.parseInt(cmd.getOptionValue("c",""+clients));
+			requests = Integer.parseInt(cmd.getOptionValue("r",""+requests));
+			slowClients = Integer.parseInt(cmd.getOptionValue("sc",""+slowClients));
+			workers = Integer.parseInt(cmd.getOptionValue("n",""+workers));
+			timeout = Integer.parseInt(cmd.getOptionValue("t",""+timeout));
+			queueCapacity = Integer.parseInt(cmd.getOptionValue("q",""+queueCapacity));
+		} catch (ParseException | NumberFormatException e) {
+			help();
+		}
+
+		System.out.println("clients ["+clients+"] requests per client ["+requests+"] slow clients ["+slowClients+"]");
+		run("single",Server.MODE.POOL,1,port,clients,requests,slowClients,timeout,queueCapacity);
+		run("pool",Server.MODE.POOL,workers,port+1,clients,requests,slowClients,timeout,queueCapacity);
+		run("virtual",Server.MODE.VIRTUAL,1,port+2,clients,requests,slowClients,timeout,queueCapacity);
+		run("nio",Server.MODE.NIO,1,port+3,clients,requests,slowClients,timeout,queueCapacity);
+		System.exit(0);
+	}
+
+	private static void run(String name,
+			Server.MODE mode,
+			int workers,
+			int port,
+			int clients,
+			int requests,
+			int slowClients,
+			int timeout,
+			int queueCapacity) throws IOException, InterruptedException, JsonSerializationException {
+		ServerConfig config = new ServerConfig();
+		config.port=port;
+		config.welcome="benchmark";
+		config.secret=SECRET;
+		config.socketTimeout=timeout;
+		config.queueCapacity=queueCapacity;
+		config.mode=mode;
+		config.numWorkers=workers;
+		config.searchCacheSize=0;
+		Server server = new Server(config,new QuietLogger());
+		server.start();
+		populate(port);
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		ArrayList<Thread> slow = new ArrayList<>();
+		for(int i=0;i<slowClients;i++) {
+			Thread t = new Thread(() -> slowClient(port,running));
+			t.setDaemon(true);
+			t.start();
+			slow.add(t);
+		}
+
+		long[] latencies = new long[clients*requests];
+		AtomicInteger failures = new AtomicInteger();
+		Thread[] threads = new Thread[clients];
+		long start = System.nanoTime();
+		for(int c=0;c<clients;c++) {
+			final int offset = c*requests;
+			threads[c] = new Thread(() -> {
+				for(int r=0;r<requests;r++) {
+					long t0 = System.nanoTime();
+					try {
+						request(port,new SearchRequest(10,new String[] {"file"}).toString());
+					} catch (IOException e) {
+						failures.incrementAndGet();
+					}
+					latencies[offset+r]=System.nanoTime()-t0;
+				}
+			});
+			threads[c].start();
+		}
+		for(Thread t : threads) t.join();
+		long elapsed = System.nanoTime()-start;
+		running.set(false);
+
+		Arrays.sort(latencies);
+		double seconds = elapsed/1e9;
+		System.out.println(String.format("%-8s %10.0f req/s  p50 %8.2f ms  p99 %8.2f ms  max %8.2f ms  failures %d  shed %d",
+				name,
+				latencies.length/seconds,
+				latencies[latencies.length/2]/1e6,
+				latencies[(int)(latencies.length*0.99)]/1e6,
+				latencies[latencies.length-1]/1e6,
+				failures.get(),
+				server.getDroppedConnections()));
+		server.interrupt();
+		server.join();
+	}
+
+	private static void populate(int port) throws IOException, JsonSerializationException {
+		for(int i=0;i<100;i++) {
+			FileDescr fileDescr = (FileDescr) MessageFactory.deserialize(
+					"{\"_class\":\""+FileDescr.class.getName()+"\",\"fileLength\":1,\"blockLength\":1,"
+					+ "\"numBlocks\":1,\"fileMd5\":\"md5-"+i+"\",\"blockMd5\":[\"md5-"+i+"\"]}");
+			request(port,new ShareRequest(fileDescr,"file-"+i+".txt","sharer",4000+i).toString());
+		}
+	}
+
+	/**
+	 * Perform one full session: welcome, authenticate and a single request.
+	 */
+	private static void request(int port,String request) throws IOException {
+		try(Socket socket = new Socket(InetAddress.getLoopbackAddress(),port)) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),StandardCharsets.UTF_8));
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),StandardCharsets.UTF_8));
+			if(reader.readLine()==null) throw new IOException("no welcome");
+			writer.write(new AuthenticateRequest(SECRET).toString());
+			writer.newLine();
+			writer.flush();
+			if(reader.readLine()==null) throw new IOException("no authenticate reply");
+			writer.write(request);
+			writer.newLine();
+			writer.flush();
+			if(reader.readLine()==null) throw new IOException("no reply");
+		}
+	}
+
+	private static void slowClient(int port,AtomicBoolean running) {
+		while(running.get()) {
+			try(Socket socket = new Socket(InetAddress.getLoopbackAddress(),port)) {
+				while(running.get() && socket.getInputStream().read()>=0);
+			} catch (IOException e) {
+				// reconnect
+			}
+		}
+	}
+}
@@ -70,6 +70,23 @@ public class FileDescr {
 		init(file);
 	}
 	
+	/**
+	 * Create a file descriptor from its parts, such as when restoring a descriptor
+	 * that was held in another form.
+	 * @param fileLength the file's length in bytes
+	 * @param blockLength the block length in bytes
+	 * @param numBlocks the number of blocks
+	 * @param fileMd5 the MD5 hash of the file's content
+	 * @param blockMd5 the MD5 hash of each block
+	 */
+	public FileDescr(long fileLength, int blockLength, int numBlocks, String fileMd5, String[] blockMd5) {
+		this.fileLength=fileLength;
+		this.blockLength=blockLength;
+		this.numBlocks=numBlocks;
+		this.fileMd5=fileMd5;
+		this.blockMd5=blockMd5;
+	}
+	
 	private void init(RandomAccessFile file) throws IOException, NoSuchAlgorithmException {
 		blockMd5 = new String[numBlocks];
 		MessageDigest fileDigest = MessageDigest.getInstance("MD5");
@@ -6,6 +6,31 @@ public class AuthenticateReply extends Message {
 	@JsonElement
 	public Boolean success;
 	
+	/**
+	 * True if the server will keep the connection open for further requests.
+	 */
+	@JsonElement(optional=true)
+	public Boolean keepAlive;
+	
+	/**
+	 * A session token, if one was requested, that later connections from the same
+	 * address may present instead of authenticating.
+	 */
+	@JsonElement(optional=true)
+	public String sessionToken;
+	
+	/**
+	 * The number of milliseconds for which the session token is valid.
+	 */
+	@JsonElement(optional=true)
+	public Long sessionTokenTtl;
+	
+	/**
+	 * True if the node secret was accepted.
+	 */
+	@JsonElement(optional=true)
+	public Boolean node;
+	
 	public AuthenticateReply() {
 		
 	}
@@ -13,4 +38,9 @@ public class AuthenticateReply extends Message {
 	public AuthenticateReply(boolean success) {
 		this.success=success;
 	}
+	
+	public AuthenticateReply(boolean success, boolean keepAlive) {
+		this.success=success;
+		this.keepAlive=keepAlive;
+	}
 }
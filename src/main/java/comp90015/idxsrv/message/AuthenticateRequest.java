@@ -6,6 +6,27 @@ public class AuthenticateRequest extends Message {
 	@JsonElement
 	public String secret;
 	
+	/**
+	 * Asks the server to keep the connection open for any number of requests,
+	 * until a {@link Goodbye} is sent.
+	 */
+	@JsonElement(optional=true)
+	public Boolean keepAlive;
+	
+	/**
+	 * Asks the server to issue a session token in the {@link AuthenticateReply}.
+	 */
+	@JsonElement(optional=true)
+	public Boolean requestToken;
+	
+	/**
+	 * The node secret, sent by an index server to another server of its cluster,
+	 * which lets the connection make the requests that only index servers make to
+	 * each other.
+	 */
+	@JsonElement(optional=true)
+	public String nodeSecret;
+	
 	public AuthenticateRequest() {
 		
 	}
@@ -13,5 +34,10 @@ public class AuthenticateRequest extends Message {
 	public AuthenticateRequest(String secret) {
 		this.secret=secret;
 	}
+	
+	public AuthenticateRequest(String secret, boolean keepAlive) {
+		this.secret=secret;
+		this.keepAlive=keepAlive;
+	}
 
 }
@@ -0,0 +1,33 @@
+package comp90015.idxsrv.message;
+
+import java.util.ArrayList;
+
+/**
+ * The completions of a prefix, most popular first.
+ * @author aaron
+ *
+ */
+@JsonSerializable
+public class AutocompleteReply extends Message {
+	
+	/**
+	 * The lower cased filename tokens that start with the prefix.
+	 */
+	@JsonElement
+	public String[] completions;
+	
+	/**
+	 * The number of indexed files whose filename contains each completion.
+	 */
+	@JsonElement
+	public Integer[] counts;
+	
+	public AutocompleteReply() {
+		
+	}
+	
+	public AutocompleteReply(ArrayList<String> completions, Integer[] counts) {
+		this.completions=completions.toArray(new String[0]);
+		this.counts=counts;
+	}
+}
@@ -0,0 +1,29 @@
+package comp90015.idxsrv.message;
+
+/**
+ * Asks for the filename tokens that complete what has been typed so far, for
+ * type-ahead in a search dialog.
+ * @author aaron
+ *
+ */
+@JsonSerializable
+public class AutocompleteRequest extends Message {
+	
+	/**
+	 * The text typed so far. Only its last token is completed.
+	 */
+	@JsonElement
+	public String prefix;
+	
+	@JsonElement
+	public Integer maxhits;
+	
+	public AutocompleteRequest() {
+		
+	}
+	
+	public AutocompleteRequest(String prefix, int maxhits) {
+		this.prefix=prefix;
+		this.maxhits=maxhits;
+	}
+}
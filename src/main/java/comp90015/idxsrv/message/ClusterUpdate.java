@@ -0,0 +1,26 @@
+package comp90015.idxsrv.message;
+
+/**
+ * The nodes of a cluster of index servers, sent to every node when the cluster
+ * changes and in reply to a {@link JoinRequest}. A node that receives an update
+ * replies with the nodes it now knows of.
+ * @author aaron
+ *
+ */
+@JsonSerializable
+public class ClusterUpdate extends Message {
+	
+	/**
+	 * Every node of the cluster, as ADDRESS:PORT.
+	 */
+	@JsonElement
+	public String[] nodes;
+	
+	public ClusterUpdate() {
+		
+	}
+	
+	public ClusterUpdate(String[] nodes) {
+		this.nodes=nodes;
+	}
+}
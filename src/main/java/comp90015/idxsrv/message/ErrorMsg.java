@@ -6,6 +6,13 @@ public class ErrorMsg extends Message {
 	@JsonElement
 	public String msg;
 	
+	/**
+	 * When present, the number of milliseconds the client should wait before
+	 * retrying, e.g. when the server is shedding load.
+	 */
+	@JsonElement(optional=true)
+	public Integer retryAfter;
+	
 	public ErrorMsg() {
 		
 	}
@@ -0,0 +1,32 @@
+package comp90015.idxsrv.message;
+
+/**
+ * A request forwarded by one index server of a cluster to another, which processes
+ * the request itself, on behalf of the client, rather than routing it again.
+ * @author aaron
+ *
+ */
+@JsonSerializable
+public class ForwardRequest extends Message {
+	
+	/**
+	 * The IP address of the client that made the request.
+	 */
+	@JsonElement
+	public String ip;
+	
+	/**
+	 * The request in string format.
+	 */
+	@JsonElement
+	public String request;
+	
+	public ForwardRequest() {
+		
+	}
+	
+	public ForwardRequest(String ip, Message request) {
+		this.ip=ip;
+		this.request=request.toString();
+	}
+}
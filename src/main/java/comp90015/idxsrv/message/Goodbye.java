@@ -0,0 +1,10 @@
+package comp90015.idxsrv.message;
+
+@JsonSerializable
+public class Goodbye extends Message {
+	
+	public Goodbye() {
+		
+	}
+	
+}
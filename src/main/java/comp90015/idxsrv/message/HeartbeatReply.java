@@ -0,0 +1,28 @@
+package comp90015.idxsrv.message;
+
+@JsonSerializable
+public class HeartbeatReply extends Message {
+	
+	/**
+	 * False if the server holds no shares for the endpoint, which must share its
+	 * files again.
+	 */
+	@JsonElement
+	public Boolean success;
+	
+	/**
+	 * The time to live of the endpoint's lease in milliseconds, or 0 if shares do
+	 * not expire.
+	 */
+	@JsonElement
+	public Long leaseTtl;
+	
+	public HeartbeatReply() {
+		
+	}
+	
+	public HeartbeatReply(Boolean success, long leaseTtl) {
+		this.success=success;
+		this.leaseTtl=leaseTtl;
+	}
+}
@@ -0,0 +1,16 @@
+package comp90015.idxsrv.message;
+
+@JsonSerializable
+public class HeartbeatRequest extends Message {
+	
+	@JsonElement
+	public Integer port;
+	
+	public HeartbeatRequest() {
+		
+	}
+	
+	public HeartbeatRequest(int port) {
+		this.port=port;
+	}
+}
@@ -0,0 +1,25 @@
+package comp90015.idxsrv.message;
+
+/**
+ * Asks an index server of a cluster to add a new node, which is answered with a
+ * {@link ClusterUpdate}.
+ * @author aaron
+ *
+ */
+@JsonSerializable
+public class JoinRequest extends Message {
+	
+	/**
+	 * The joining node, as ADDRESS:PORT.
+	 */
+	@JsonElement
+	public String node;
+	
+	public JoinRequest() {
+		
+	}
+	
+	public JoinRequest(String node) {
+		this.node=node;
+	}
+}
@@ -8,5 +8,10 @@ import java.lang.annotation.ElementType;
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.FIELD)
 public @interface JsonElement {
-
+	/**
+	 * An optional element is left out of the JSON object when it is null, and
+	 * is left null when it is not present in the JSON object. This allows
+	 * elements to be added to a message without breaking existing peers.
+	 */
+	boolean optional() default false;
 }
@@ -8,6 +8,22 @@ package comp90015.idxsrv.message;
  */
 public class Message {
 
+	/**
+	 * An optional identifier chosen by the client for a request. The server copies
+	 * it into the reply, which allows a client to pipeline requests on a keep alive
+	 * session and match replies that arrive out of order.
+	 */
+	@JsonElement(optional=true)
+	public Integer requestId;
+	
+	/**
+	 * An optional session token, previously issued in an {@link AuthenticateReply}.
+	 * A request that carries a valid token may be sent as the first message on a
+	 * connection, skipping the authenticate step.
+	 */
+	@JsonElement(optional=true)
+	public String token;
+
 	@Override
 	public String toString()  {
 		try {
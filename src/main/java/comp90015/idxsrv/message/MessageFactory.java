@@ -5,6 +5,8 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Objects;
 
 import org.json.JSONArray;
@@ -18,6 +20,19 @@ import org.json.JSONObject;
  *
  */
 public class MessageFactory {
+	/**
+	 * The fields declared by a class and by all of its superclasses, so that
+	 * elements declared on a common base class, such as {@link Message}, are
+	 * serialized along with those of the subclass.
+	 */
+	private static ArrayList<Field> getFields(Class<?> _class) {
+		ArrayList<Field> fields = new ArrayList<Field>();
+		for (Class<?> c = _class; c != null && c != Object.class; c = c.getSuperclass()) {
+			fields.addAll(Arrays.asList(c.getDeclaredFields()));
+		}
+		return fields;
+	}
+
 	private static void checkIfSerializable(Object object) throws JsonSerializationException {
 		if (Objects.isNull(object)) {
 			throw new JsonSerializationException("The object to serialize is null");
@@ -27,7 +42,7 @@ public class MessageFactory {
 			throw new JsonSerializationException(
 					"The class " + object.getClass().getSimpleName() + " is not annotated with JsonSerializable");
 		}
-		for (Field field : _class.getDeclaredFields()) {
+		for (Field field : getFields(_class)) {
 			if (field.getName() == "_class") {
 				throw new JsonSerializationException("The _class field cannot be used in a JsonSerializable class.");
 			}
@@ -55,10 +70,13 @@ public class MessageFactory {
 		Class<?> _class = object.getClass();
 		JSONObject jobj = new JSONObject();
 		jobj.put("_class", _class.getName());
-		for (Field field : _class.getDeclaredFields()) {
+		for (Field field : getFields(_class)) {
 			field.setAccessible(true);
 			if (field.isAnnotationPresent(JsonElement.class)) {
 				Class<?> fieldType = field.getType();
+				if (field.get(object)==null && field.getAnnotation(JsonElement.class).optional()) {
+					continue;
+				}
 				if (fieldType.isAnnotationPresent(JsonSerializable.class)) {
 					jobj.put(field.getName(), toJsonObject(field.get(object)));
 				} else if(fieldType.isArray()){
@@ -94,7 +112,7 @@ public class MessageFactory {
 			}
 			Constructor<?> constructor = _class.getConstructor();
 			Object obj = constructor.newInstance();
-			for (Field field:_class.getDeclaredFields()) {
+			for (Field field : getFields(_class)) {
 				field.setAccessible(true);
 				if (field.isAnnotationPresent(JsonElement.class)) {
 					Class<?> fieldType = field.getType();
@@ -134,7 +152,7 @@ public class MessageFactory {
 						} else {
 							throw new JsonSerializationException("Field was of incorrect type: "+fieldName);
 						}
-					} else {
+					} else if(!field.getAnnotation(JsonElement.class).optional()) {
 						throw new JsonSerializationException("Required field is not present: "+fieldName);
 					}
 		        }
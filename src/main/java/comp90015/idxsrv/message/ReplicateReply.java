@@ -0,0 +1,66 @@
+package comp90015.idxsrv.message;
+
+/**
+ * The changes made to the primary's index, in the order they were made. If the
+ * changes that the replica asked for are no longer held by the primary, then the
+ * reply is instead a page of a full copy of the primary's index, one share record
+ * per element. The replica fetches the rest of the copy a page at a time, and once
+ * it has every page it must discard any element that was in none of them, and then
+ * fetch the changes from the sequence number of the copy.
+ * <p>
+ * Each record is in the string format of a line of the primary's index log, so
+ * that messages do not depend on how the server persists its index.
+ * @author aaron
+ *
+ */
+@JsonSerializable
+public class ReplicateReply extends Message {
+	
+	/**
+	 * The primary's replication log.
+	 */
+	@JsonElement
+	public Long epoch;
+	
+	/**
+	 * The sequence number of the next change to fetch, once any full copy is complete.
+	 */
+	@JsonElement
+	public Long sequence;
+	
+	/**
+	 * True if the records are a page of a full copy of the index.
+	 */
+	@JsonElement
+	public Boolean reset;
+	
+	/**
+	 * The full copy that the page belongs to.
+	 */
+	@JsonElement(optional=true)
+	public Long copy;
+	
+	/**
+	 * The position in the full copy of the next file to fetch, or null if this is the
+	 * last page.
+	 */
+	@JsonElement(optional=true)
+	public Integer offset;
+	
+	/**
+	 * The changes, or the elements of the page, each a record in string format.
+	 */
+	@JsonElement
+	public String[] records;
+	
+	public ReplicateReply() {
+		
+	}
+	
+	public ReplicateReply(long epoch, long sequence, boolean reset, String[] records) {
+		this.epoch=epoch;
+		this.sequence=sequence;
+		this.reset=reset;
+		this.records=records;
+	}
+}
@@ -0,0 +1,53 @@
+package comp90015.idxsrv.message;
+
+/**
+ * Sent by a replica to its primary to fetch the changes made to the primary's
+ * index since the replica last fetched them.
+ * @author aaron
+ *
+ */
+@JsonSerializable
+public class ReplicateRequest extends Message {
+	
+	/**
+	 * The primary's replication log that the sequence number belongs to, or null for
+	 * a replica that holds none of the primary's changes yet.
+	 */
+	@JsonElement(optional=true)
+	public Long epoch;
+	
+	/**
+	 * The sequence number of the first change to fetch.
+	 */
+	@JsonElement
+	public Long sequence;
+	
+	/**
+	 * The most changes to fetch.
+	 */
+	@JsonElement
+	public Integer maxRecords;
+	
+	/**
+	 * The full copy of the primary's index that the replica is part way through, or
+	 * null if it is not copying.
+	 */
+	@JsonElement(optional=true)
+	public Long copy;
+	
+	/**
+	 * The position in the full copy of the next file to fetch.
+	 */
+	@JsonElement(optional=true)
+	public Integer offset;
+	
+	public ReplicateRequest() {
+		
+	}
+	
+	public ReplicateRequest(Long epoch, long sequence, int maxRecords) {
+		this.epoch=epoch;
+		this.sequence=sequence;
+		this.maxRecords=maxRecords;
+	}
+}
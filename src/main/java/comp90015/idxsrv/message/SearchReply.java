@@ -13,6 +13,13 @@ public class SearchReply extends Message {
 	@JsonElement
 	public Integer[] seedCounts;
 	
+	/**
+	 * An opaque token to fetch the next page of hits with, or null if there are no
+	 * more hits.
+	 */
+	@JsonElement(optional=true)
+	public String cursor;
+	
 	public SearchReply() {
 		
 	}
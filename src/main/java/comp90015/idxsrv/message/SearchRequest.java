@@ -3,12 +3,32 @@ package comp90015.idxsrv.message;
 @JsonSerializable
 public class SearchRequest extends Message {
 
-	@JsonElement
+	/**
+	 * Required unless the request carries a cursor.
+	 */
+	@JsonElement(optional=true)
 	public Integer maxhits;
 	
-	@JsonElement
+	/**
+	 * Required unless the request carries a cursor.
+	 */
+	@JsonElement(optional=true)
 	public String[] keywords;
 	
+	/**
+	 * Asks for the hits a page at a time, at most this many per reply. A reply with
+	 * more hits to come carries a cursor.
+	 */
+	@JsonElement(optional=true)
+	public Integer pageSize;
+	
+	/**
+	 * The cursor of the previous page, to fetch the next page of the same search.
+	 * The keywords and maxhits are then ignored, and may be left out.
+	 */
+	@JsonElement(optional=true)
+	public String cursor;
+	
 	public SearchRequest() {
 		
 	}
@@ -18,4 +38,17 @@ public class SearchRequest extends Message {
 		this.keywords=keywords;
 	}
 	
+	public SearchRequest(Integer maxhits, String[] keywords, int pageSize) {
+		this.maxhits=maxhits;
+		this.keywords=keywords;
+		this.pageSize=pageSize;
+	}
+	
+	/**
+	 * @param cursor the cursor of the previous page
+	 */
+	public SearchRequest(String cursor) {
+		this.cursor=cursor;
+	}
+	
 }
@@ -5,6 +5,8 @@ import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
 
 import comp90015.idxsrv.server.IOThread;
@@ -17,8 +19,18 @@ import comp90015.idxsrv.textgui.ISharerGUI;
  */
 public class Peer implements IPeer {
 
+	/**
+	 * The number of platform threads processing connections from other peers, when
+	 * virtual threads are not used.
+	 */
+	private static final int NUM_UPLOAD_THREADS = 4;
+	
 	private IOThread ioThread;
 	
+	private Thread dispatchThread;
+	
+	private ExecutorService connectionExecutor;
+	
 	private LinkedBlockingDeque<Socket> incomingConnections;
 	
 	private ISharerGUI tgui;
@@ -29,19 +41,71 @@ public class Peer implements IPeer {
 	
 	private int port;
 	
-	public Peer(int port, String basedir, int socketTimeout, ISharerGUI tgui) throws IOException {
+	/**
+	 * Create a peer that accepts connections from other peers on the given port.
+	 * @param port the port for other peers to connect to
+	 * @param basedir the base directory of shared files
+	 * @param socketTimeout the timeout value to be set on incoming connections
+	 * @param virtualThreads true to process each incoming connection on its own virtual
+	 * thread, false to use a fixed pool of platform threads
+	 * @param tgui the gui
+	 * @throws IOException
+	 */
+	public Peer(int port, String basedir, int socketTimeout, boolean virtualThreads, ISharerGUI tgui) throws IOException {
 		this.tgui=tgui;
 		this.port=port;
 		this.timeout=socketTimeout;
 		this.basedir=new File(basedir).getCanonicalPath();
+		incomingConnections=new LinkedBlockingDeque<Socket>();
+		if(virtualThreads) {
+			connectionExecutor=Executors.newVirtualThreadPerTaskExecutor();
+		} else {
+			connectionExecutor=Executors.newFixedThreadPool(NUM_UPLOAD_THREADS);
+		}
 		ioThread = new IOThread(port,incomingConnections,socketTimeout,tgui);
 		ioThread.start();
+		dispatchThread = new Thread(this::dispatchConnections,"Peer-dispatch");
+		dispatchThread.start();
 	}
 	
 	public void shutdown() throws InterruptedException, IOException {
 		ioThread.shutdown();
 		ioThread.interrupt();
 		ioThread.join();
+		dispatchThread.interrupt();
+		dispatchThread.join();
+		connectionExecutor.shutdownNow();
+	}
+	
+	/*
+	 * Connections from other peers are taken off the incoming queue and each
+	 * is processed on the connection executor.
+	 */
+	
+	private void dispatchConnections() {
+		while(!Thread.currentThread().isInterrupted()) {
+			Socket socket;
+			try {
+				socket = incomingConnections.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+			connectionExecutor.execute(() -> processPeerConnection(socket));
+		}
+	}
+	
+	/*
+	 * Peers do not yet serve blocks, so a connection from another peer is closed
+	 * straight away.
+	 */
+	
+	private void processPeerConnection(Socket socket) {
+		tgui.logDebug("Closing connection from peer "+socket.getInetAddress().getHostAddress());
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// the connection is gone either way
+		}
 	}
 	
 	/*
@@ -0,0 +1,203 @@
+package comp90015.idxsrv.server;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off-heap storage for the block hashes of file descriptors. Each block hash is an
+ * MD5 hash in hex, which is held as its 16 bytes in a region of a direct buffer
+ * instead of as a 32 character string on the heap, so large files add little to
+ * the heap that the garbage collector has to trace.
+ * <p>
+ * Regions are carved out of slabs of {@link #SLAB_SIZE} bytes in power of two size
+ * classes and reused once freed. A region that is larger than a slab gets its own
+ * buffer. The first eight bytes of every region are a stamp that is unique to the
+ * allocation, so that a reader can tell when a region was freed, and possibly
+ * reused, while it was being read, without taking a lock.
+ * @author aaron
+ *
+ */
+public class BlockHashSlab {
+
+	/**
+	 * The size of each slab in bytes.
+	 */
+	public static final int SLAB_SIZE = 16*1024*1024;
+
+	private static final int HASH_BYTES = 16;
+
+	private static final int STAMP_BYTES = 8;
+
+	private static final int MIN_REGION = 32;
+
+	private static final VarHandle STAMP = MethodHandles.byteBufferViewVarHandle(long[].class,ByteOrder.nativeOrder());
+
+	/**
+	 * The block hashes of a single descriptor, stored in a slab.
+	 */
+	public static class Region {
+		final ByteBuffer buffer;
+		final int offset;
+		final int size;
+		final long stamp;
+		final int numHashes;
+
+		Region(ByteBuffer buffer, int offset, int size, long stamp, int numHashes) {
+			this.buffer=buffer;
+			this.offset=offset;
+			this.size=size;
+			this.stamp=stamp;
+			this.numHashes=numHashes;
+		}
+	}
+
+	/**
+	 * Freed regions of each size class, ready to be reused.
+	 */
+	private HashMap<Integer,ArrayDeque<Region>> free = new HashMap<>();
+
+	private ByteBuffer slab;
+
+	private int slabUsed;
+
+	private long reservedBytes;
+
+	private AtomicLong stamps = new AtomicLong();
+
+	/**
+	 * Store the block hashes in a new region.
+	 * @param hashes the block hashes
+	 * @return the region, or null if a hash is not an upper case MD5 hash in hex, as
+	 * made by {@link comp90015.idxsrv.filemgr.FileDescr#bytesToHex(byte[])}, since it
+	 * could not be restored exactly
+	 */
+	public Region store(String[] hashes) {
+		byte[] bytes = pack(hashes);
+		if(bytes==null) return null;
+		Region region = allocate(hashes.length);
+		region.buffer.put(region.offset+STAMP_BYTES,bytes);
+		return region;
+	}
+
+	/**
+	 * Read the block hashes of a region.
+	 * @param region the region
+	 * @return the block hashes, or null if the region was freed
+	 */
+	public String[] load(Region region) {
+		if((long)STAMP.getVolatile(region.buffer,region.offset)!=region.stamp) return null;
+		byte[] bytes = new byte[region.numHashes*HASH_BYTES];
+		region.buffer.get(region.offset+STAMP_BYTES,bytes);
+		String[] hashes = unpack(bytes);
+		// the hashes are only valid if the region was not freed while reading them
+		VarHandle.acquireFence();
+		if((long)STAMP.getVolatile(region.buffer,region.offset)!=region.stamp) return null;
+		return hashes;
+	}
+
+	/**
+	 * Free a region so that it can be reused. Readers of the region see that it was
+	 * freed from then on.
+	 * @param region the region
+	 */
+	public synchronized void free(Region region) {
+		STAMP.setVolatile(region.buffer,region.offset,-1L);
+		reservedBytes-=region.size;
+		if(region.size>SLAB_SIZE) return;
+		free.computeIfAbsent(region.size,size -> new ArrayDeque<>()).add(region);
+	}
+
+	/**
+	 * @return the number of bytes held by allocated regions
+	 */
+	public synchronized long getReservedBytes() {
+		return reservedBytes;
+	}
+
+	private synchronized Region allocate(int numHashes) {
+		int size = Math.max(MIN_REGION,Integer.highestOneBit(STAMP_BYTES+numHashes*HASH_BYTES-1)<<1);
+		long stamp = stamps.incrementAndGet();
+		reservedBytes+=size;
+		ByteBuffer buffer;
+		int offset;
+		ArrayDeque<Region> freed = free.get(size);
+		if(freed!=null && !freed.isEmpty()) {
+			Region region = freed.poll();
+			buffer=region.buffer;
+			offset=region.offset;
+		} else if(size>SLAB_SIZE) {
+			buffer=ByteBuffer.allocateDirect(size);
+			offset=0;
+		} else {
+			if(slab==null || slabUsed+size>SLAB_SIZE) {
+				slab=ByteBuffer.allocateDirect(SLAB_SIZE);
+				slabUsed=0;
+			}
+			buffer=slab;
+			offset=slabUsed;
+			slabUsed+=size;
+		}
+		STAMP.setVolatile(buffer,offset,stamp);
+		// the new stamp must be visible before the region's old contents are overwritten
+		VarHandle.fullFence();
+		return new Region(buffer,offset,size,stamp,numHashes);
+	}
+
+	/**
+	 * Pack block hashes into 16 bytes each.
+	 * @param hashes the block hashes
+	 * @return the bytes, or null if a hash is not an upper case MD5 hash in hex
+	 */
+	public static byte[] pack(String[] hashes) {
+		for(String hash : hashes) {
+			if(!isHex(hash)) return null;
+		}
+		byte[] bytes = new byte[hashes.length*HASH_BYTES];
+		for(int i=0;i<hashes.length;i++) {
+			for(int b=0;b<HASH_BYTES;b++) {
+				bytes[i*HASH_BYTES+b]=(byte)((digit(hashes[i].charAt(2*b))<<4) | digit(hashes[i].charAt(2*b+1)));
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Unpack block hashes packed by {@link #pack(String[])}.
+	 * @param bytes the bytes
+	 * @return the block hashes
+	 */
+	public static String[] unpack(byte[] bytes) {
+		String[] hashes = new String[bytes.length/HASH_BYTES];
+		char[] hex = new char[2*HASH_BYTES];
+		for(int i=0;i<hashes.length;i++) {
+			for(int b=0;b<HASH_BYTES;b++) {
+				int v = bytes[i*HASH_BYTES+b] & 0xFF;
+				hex[2*b]=HEX[v>>>4];
+				hex[2*b+1]=HEX[v & 0x0F];
+			}
+			hashes[i]=new String(hex);
+		}
+		return hashes;
+	}
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private static boolean isHex(String hash) {
+		if(hash==null || hash.length()!=2*HASH_BYTES) return false;
+		for(int i=0;i<hash.length();i++) {
+			if(digit(hash.charAt(i))<0) return false;
+		}
+		return true;
+	}
+
+	private static int digit(char c) {
+		if(c>='0' && c<='9') return c-'0';
+		if(c>='A' && c<='F') return c-'A'+10;
+		return -1;
+	}
+}
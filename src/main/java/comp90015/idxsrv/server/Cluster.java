@@ -0,0 +1,550 @@
+package comp90015.idxsrv.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import comp90015.idxsrv.message.AutocompleteReply;
+import comp90015.idxsrv.message.AutocompleteRequest;
+import comp90015.idxsrv.message.ClusterUpdate;
+import comp90015.idxsrv.message.DropShareReply;
+import comp90015.idxsrv.message.DropShareRequest;
+import comp90015.idxsrv.message.ErrorMsg;
+import comp90015.idxsrv.message.ForwardRequest;
+import comp90015.idxsrv.message.HeartbeatReply;
+import comp90015.idxsrv.message.HeartbeatRequest;
+import comp90015.idxsrv.message.JoinRequest;
+import comp90015.idxsrv.message.LookupRequest;
+import comp90015.idxsrv.message.Message;
+import comp90015.idxsrv.message.SearchReply;
+import comp90015.idxsrv.message.SearchRequest;
+import comp90015.idxsrv.message.ShareReply;
+import comp90015.idxsrv.message.ShareRequest;
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * A node of a cluster of index servers, which partitions the index between its
+ * nodes by a consistent hash of the file MD5 hash. Any node accepts any request.
+ * Shares, drops and lookups are forwarded to the node that owns the file, while
+ * searches and heartbeats are sent to every node and their replies gathered.
+ * <p>
+ * A node joins by sending a {@link JoinRequest} to any node of the cluster, which
+ * sends the new list of nodes to every other node in a {@link ClusterUpdate}. Each
+ * node then moves the elements that it no longer owns to their new owner. Elements
+ * that could not be moved are moved again on the next heartbeat or update. A drop
+ * that the owner does not find may be of an element still to be moved there, so it
+ * is then sent to the other nodes, and a node that moved an element that was
+ * dropped while it was being moved drops it from the new owner as well.
+ * <p>
+ * Nodes only ever join, so the nodes of the cluster only grow, and a node merges
+ * every list it is sent, or sent back, into its own as a union rather than taking
+ * it on. Two nodes that take joins at the same time therefore both end up with
+ * both new nodes, whichever update arrives last. A node whose list grew from an
+ * update sends its list on to the other nodes, which stops once every node has
+ * every node. Nodes authenticate with each other using the node secret, and only
+ * connections that have done so may send the requests of the cluster.
+ * @author aaron
+ *
+ */
+public class Cluster {
+
+	/**
+	 * The connect and read timeout in milliseconds for requests to other nodes.
+	 */
+	private static final int NODE_TIMEOUT = 5000;
+
+	/**
+	 * The ranking of gathered search hits, the same as that of
+	 * {@link IndexMgr#search(String[], int)}.
+	 */
+	private static final Comparator<Object[]> RANKING = Comparator
+			.comparingInt((Object[] hit) -> -(Integer)hit[1])
+			.thenComparingInt(hit -> ((IndexElement)hit[0]).filename.length())
+			.thenComparing(hit -> ((IndexElement)hit[0]).filename)
+			.thenComparing(hit -> ((IndexElement)hit[0]).fileDescr.getFileMd5());
+
+	private String self;
+
+	private String secret;
+
+	private String nodeSecret;
+
+	private Server server;
+
+	private IndexMgr indexMgr;
+
+	private ITerminalLogger logger;
+
+	private volatile String[] nodes;
+
+	private volatile HashRing ring;
+
+	private ConcurrentHashMap<String,NodeClient> clients = new ConcurrentHashMap<>();
+
+	private ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+	/**
+	 * Held while moving elements, so that only one move of the elements runs at once.
+	 * A virtual thread blocked on the network while holding a monitor would hold on to
+	 * its carrier thread as well.
+	 */
+	private ReentrantLock rebalanceLock = new ReentrantLock();
+
+	/**
+	 * True if some elements that another node owns could not be moved to it.
+	 */
+	private AtomicBoolean unbalanced = new AtomicBoolean();
+
+	/**
+	 * Create a node, which is the only node of its cluster until it joins another.
+	 * @param self this node, as ADDRESS:PORT
+	 * @param secret the secret of the index servers of the cluster
+	 * @param nodeSecret the secret that the nodes of the cluster present to each other
+	 * @param server the server that processes requests owned by this node
+	 * @param indexMgr the index of this node
+	 * @param logger an object that implements the terminal logger interface
+	 */
+	public Cluster(String self,
+			String secret,
+			String nodeSecret,
+			Server server,
+			IndexMgr indexMgr,
+			ITerminalLogger logger) {
+		this.self=self;
+		this.secret=secret;
+		this.nodeSecret=nodeSecret;
+		this.server=server;
+		this.indexMgr=indexMgr;
+		this.logger=logger;
+		nodes=new String[] {self};
+		ring=new HashRing(Arrays.asList(nodes));
+	}
+
+	/**
+	 * Join the cluster of another node.
+	 * @param seed any node of the cluster, as ADDRESS:PORT
+	 * @throws IOException if the node cannot be reached or refuses the join
+	 */
+	public void join(String seed) throws IOException {
+		Message reply = client(seed).request(new JoinRequest(self));
+		if(reply.getClass().getName()!=ClusterUpdate.class.getName()
+				|| !isValid(((ClusterUpdate) reply).nodes)) {
+			throw new IOException("Could not join the cluster of "+seed);
+		}
+		merge(((ClusterUpdate) reply).nodes,seed);
+		logger.logInfo("Joined the cluster of "+seed+" with nodes "+Arrays.toString(nodes));
+	}
+
+	/**
+	 * @return the nodes of the cluster
+	 */
+	public String[] getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Add a node to the cluster and tell every other node.
+	 * @param msg the join request
+	 * @return the nodes of the cluster, including the new node
+	 */
+	public Message processJoin(JoinRequest msg) {
+		if(!isAddress(msg.node)) {
+			return new ErrorMsg("Invalid node address");
+		}
+		merge(new String[] {msg.node},msg.node);
+		logger.logInfo("Node "+msg.node+" joined the cluster.");
+		return new ClusterUpdate(nodes);
+	}
+
+	/**
+	 * Merge the nodes of the cluster sent by another node into those this node knows
+	 * of. A list that leaves out this node is not from this cluster, or is from before
+	 * this node joined, and is refused.
+	 * @param msg the cluster update
+	 * @return the nodes of the cluster that this node now knows of
+	 */
+	public Message processUpdate(ClusterUpdate msg) {
+		if(!isValid(msg.nodes) || !Arrays.asList(msg.nodes).contains(self)) {
+			return new ErrorMsg("Invalid cluster update");
+		}
+		merge(msg.nodes,null);
+		return new ClusterUpdate(nodes);
+	}
+
+	/**
+	 * @return true if the nodes are a list of at least one ADDRESS:PORT
+	 */
+	private static boolean isValid(String[] nodes) {
+		if(nodes==null || nodes.length==0) return false;
+		for(String node : nodes) {
+			if(!isAddress(node)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the node is given as ADDRESS:PORT
+	 */
+	static boolean isAddress(String node) {
+		if(node==null) return false;
+		int colon = node.lastIndexOf(':');
+		if(colon<=0) return false;
+		try {
+			int port = Integer.parseInt(node.substring(colon+1));
+			return port>0 && port<65536;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Add nodes to those of the cluster and, if any are new, send the cluster's nodes
+	 * to every other node, merging their replies in turn.
+	 * @param received the nodes to add
+	 * @param from the node that the nodes came from, which is not sent them back, or null
+	 */
+	private void merge(String[] received, String from) {
+		String[] merged;
+		synchronized(this) {
+			TreeSet<String> union = new TreeSet<>(Arrays.asList(nodes));
+			if(!union.addAll(Arrays.asList(received))) return;
+			merged = union.toArray(new String[0]);
+			update(merged);
+		}
+		for(String node : merged) {
+			if(node.equals(self) || node.equals(from)) continue;
+			executor.execute(() -> {
+				try {
+					Message reply = client(node).request(new ClusterUpdate(merged));
+					if(reply.getClass().getName()==ClusterUpdate.class.getName()
+							&& isValid(((ClusterUpdate) reply).nodes)) {
+						merge(((ClusterUpdate) reply).nodes,node);
+					}
+				} catch (IOException e) {
+					logger.logWarn("Could not update node "+node+": "+e.getMessage());
+				}
+			});
+		}
+	}
+
+	/**
+	 * Route a request to the nodes that must process it.
+	 * @param msg the request
+	 * @param ip the IP address of the client
+	 * @param port the port number of the client's connection
+	 * @return the reply, or null if this node must process the request itself
+	 */
+	public Message route(Message msg, String ip, int port) {
+		String msgname = msg.getClass().getName();
+		String fileMd5;
+		if(msgname==ShareRequest.class.getName()) {
+			fileMd5 = ((ShareRequest) msg).fileDescr.getFileMd5();
+		} else if(msgname==DropShareRequest.class.getName()) {
+			return drop((DropShareRequest) msg,ip,port);
+		} else if(msgname==LookupRequest.class.getName()) {
+			fileMd5 = ((LookupRequest) msg).fileMd5;
+		} else if(msgname==SearchRequest.class.getName()) {
+			if(((SearchRequest) msg).cursor!=null) {
+				// the rest of a search is held by the node that gave out the cursor
+				return null;
+			}
+			if(!Server.isSearch((SearchRequest) msg)) {
+				// refused by this node
+				return null;
+			}
+			return search((SearchRequest) msg,ip,port);
+		} else if(msgname==HeartbeatRequest.class.getName()) {
+			return heartbeat((HeartbeatRequest) msg,ip,port);
+		} else if(msgname==AutocompleteRequest.class.getName()) {
+			return autocomplete((AutocompleteRequest) msg,ip,port);
+		} else {
+			return null;
+		}
+		String owner = ring.owner(fileMd5);
+		if(owner.equals(self)) return null;
+		return forward(owner,msg,ip);
+	}
+
+	private Message forward(String node, Message msg, String ip) {
+		try {
+			return client(node).request(new ForwardRequest(ip,msg));
+		} catch (IOException e) {
+			logger.logWarn("Could not forward a request to "+node+": "+e.getMessage());
+			return new ErrorMsg("Index server "+node+" is unavailable");
+		}
+	}
+
+	/**
+	 * Drop an element on the node that owns its file. An element that the owner does
+	 * not have may not have been moved there yet, so it is then dropped from whichever
+	 * other node has it.
+	 */
+	private Message drop(DropShareRequest msg, String ip, int port) {
+		String owner = ring.owner(msg.fileMd5);
+		Message reply = owner.equals(self) ? server.processLocalCmd(msg,ip,port) : forward(owner,msg,ip);
+		if(!Server.isError(reply,Server.NOT_FOUND)) return reply;
+		for(String node : nodes) {
+			if(node.equals(owner)) continue;
+			Message nodeReply = node.equals(self) ? server.processLocalCmd(msg,ip,port) : forward(node,msg,ip);
+			if(nodeReply.getClass().getName()==DropShareReply.class.getName()) {
+				return nodeReply;
+			}
+		}
+		return reply;
+	}
+
+	/**
+	 * Search every node and keep the best ranked hits of them all. The nodes that do
+	 * not reply in time are left out. A search asking for pages gets up to
+	 * {@link SearchCursors#MAX_PAGED_HITS} hits from each node, and the hits after the
+	 * first page are kept by this node.
+	 */
+	private Message search(SearchRequest msg, String ip, int port) {
+		boolean paged = msg.pageSize!=null && msg.pageSize>0;
+		int maxhits = paged ? SearchCursors.maxPagedHits(msg.maxhits) : msg.maxhits;
+		ArrayList<Object[]> hits = new ArrayList<>();
+		SearchRequest all = new SearchRequest(maxhits,msg.keywords);
+		for(Message reply : scatter(all,ip,port)) {
+			if(reply.getClass().getName()!=SearchReply.class.getName()) continue;
+			SearchReply searchReply = (SearchReply) reply;
+			for(int i=0;i<searchReply.hits.length;i++) {
+				hits.add(new Object[] {searchReply.hits[i],searchReply.seedCounts[i]});
+			}
+		}
+		// a file is owned by one node, except while elements are moving between nodes
+		HashMap<String,Object[]> md5Hits = new HashMap<>();
+		for(Object[] hit : hits) {
+			String fileMd5 = ((IndexElement)hit[0]).fileDescr.getFileMd5();
+			Object[] best = md5Hits.get(fileMd5);
+			if(best==null || RANKING.compare(hit,best)<0) {
+				md5Hits.put(fileMd5,hit);
+			}
+		}
+		ArrayList<Object[]> ranked = new ArrayList<>(md5Hits.values());
+		Collections.sort(ranked,RANKING);
+		int k = maxhits>0 ? Math.min(maxhits,ranked.size()) : ranked.size();
+		if(paged) {
+			return server.firstPage(ip,msg.pageSize,new SearchCursors.Pager() {
+				private int next = 0;
+
+				@Override
+				public SearchReply next(int pageSize) {
+					SearchReply page = page(ranked,next,Math.min(k,next+pageSize));
+					next=Math.min(k,next+pageSize);
+					return page;
+				}
+
+				@Override
+				public boolean hasNext() {
+					return next<k;
+				}
+			});
+		}
+		return page(ranked,0,k);
+	}
+	
+	private static SearchReply page(ArrayList<Object[]> ranked, int from, int to) {
+		ArrayList<IndexElement> pageHits = new ArrayList<>(to-from);
+		Integer[] seedCounts = new Integer[to-from];
+		for(int i=from;i<to;i++) {
+			pageHits.add((IndexElement) ranked.get(i)[0]);
+			seedCounts[i-from]=(Integer) ranked.get(i)[1];
+		}
+		return new SearchReply(pageHits,seedCounts);
+	}
+
+	/**
+	 * Complete the prefix on every node and add up the counts of each completion. A
+	 * completion that is not among the most popular on any node may be missed.
+	 */
+	private Message autocomplete(AutocompleteRequest msg, String ip, int port) {
+		HashMap<String,Integer> counts = new HashMap<>();
+		for(Message reply : scatter(msg,ip,port)) {
+			if(reply.getClass().getName()!=AutocompleteReply.class.getName()) continue;
+			AutocompleteReply autocompleteReply = (AutocompleteReply) reply;
+			for(int i=0;i<autocompleteReply.completions.length;i++) {
+				counts.merge(autocompleteReply.completions[i],autocompleteReply.counts[i],Integer::sum);
+			}
+		}
+		ArrayList<String> completions = new ArrayList<>(counts.keySet());
+		completions.sort(Comparator.comparingInt((String term) -> -counts.get(term))
+				.thenComparing(Comparator.naturalOrder()));
+		if(completions.size()>msg.maxhits) {
+			completions.subList(Math.max(0,msg.maxhits),completions.size()).clear();
+		}
+		Integer[] topCounts = new Integer[completions.size()];
+		for(int i=0;i<completions.size();i++) {
+			topCounts[i]=counts.get(completions.get(i));
+		}
+		return new AutocompleteReply(completions,topCounts);
+	}
+	
+	/**
+	 * Renew the endpoint's lease on every node, since its shares may be on any node.
+	 */
+	private Message heartbeat(HeartbeatRequest msg, String ip, int port) {
+		HeartbeatReply reply = null;
+		for(Message nodeReply : scatter(msg,ip,port)) {
+			if(nodeReply.getClass().getName()!=HeartbeatReply.class.getName()) continue;
+			HeartbeatReply heartbeatReply = (HeartbeatReply) nodeReply;
+			if(reply==null || heartbeatReply.success) {
+				reply=heartbeatReply;
+			}
+		}
+		return reply!=null ? reply : new ErrorMsg("No index server replied");
+	}
+
+	/**
+	 * Send a request to every node, including this one, and gather the replies.
+	 */
+	private List<Message> scatter(Message msg, String ip, int port) {
+		// serialized before the local task can change the request
+		ForwardRequest forward = new ForwardRequest(ip,msg);
+		ArrayList<Future<Message>> futures = new ArrayList<>();
+		for(String node : nodes) {
+			Callable<Message> task;
+			if(node.equals(self)) {
+				task = () -> server.processLocalCmd(msg,ip,port);
+			} else {
+				task = () -> client(node).request(forward);
+			}
+			futures.add(executor.submit(task));
+		}
+		ArrayList<Message> replies = new ArrayList<>();
+		for(Future<Message> future : futures) {
+			try {
+				replies.add(future.get(NODE_TIMEOUT,TimeUnit.MILLISECONDS));
+			} catch (ExecutionException | TimeoutException e) {
+				logger.logWarn("A node did not reply to a scattered request: "+e.getMessage());
+				future.cancel(true);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return replies;
+	}
+
+	/**
+	 * Take on a larger list of nodes and move the elements that this node no longer
+	 * owns.
+	 */
+	private synchronized void update(String[] newNodes) {
+		nodes=newNodes;
+		ring=new HashRing(Arrays.asList(newNodes));
+		if(newNodes.length>1) {
+			executor.execute(this::rebalance);
+		}
+	}
+
+	/**
+	 * Called when this node is sent a heartbeat, to move again the elements that
+	 * could not be moved before.
+	 */
+	public void heartbeat() {
+		if(unbalanced.compareAndSet(true,false)) {
+			executor.execute(this::rebalance);
+		}
+	}
+
+	/**
+	 * Share every element that another node now owns with that node, on behalf of
+	 * its sharer, and then drop it here. An element that was dropped here while it
+	 * was being shared is dropped from the new owner too. The elements that could
+	 * not be moved are left for the next heartbeat or update.
+	 */
+	private void rebalance() {
+		rebalanceLock.lock();
+		try {
+			indexMgr.hydrate();
+			HashRing ring = this.ring;
+			ArrayList<IndexElement> moving = new ArrayList<>();
+			indexMgr.forEachElement(element -> {
+				if(!ring.owner(element.fileDescr.getFileMd5()).equals(self)) {
+					moving.add(element);
+				}
+			});
+			int moved = 0;
+			int failed = 0;
+			for(IndexElement element : moving) {
+				if(move(ring.owner(element.fileDescr.getFileMd5()),element)) {
+					moved++;
+				} else {
+					failed++;
+				}
+			}
+			if(moved>0) {
+				logger.logInfo("Moved "+moved+" shares to other nodes.");
+			}
+			if(failed>0) {
+				logger.logWarn("Could not move "+failed+" shares to other nodes, retrying on the next heartbeat.");
+				unbalanced.set(true);
+			}
+		} finally {
+			rebalanceLock.unlock();
+		}
+	}
+
+	/**
+	 * Move an element to its owner.
+	 * @return true if the element was moved, or was dropped before it could be
+	 */
+	private boolean move(String owner, IndexElement element) {
+		String fileMd5 = element.fileDescr.getFileMd5();
+		ShareRequest share = new ShareRequest(element.fileDescr,element.filename,element.secret,element.port);
+		try {
+			Message reply = client(owner).request(new ForwardRequest(element.ip,share));
+			if(Server.isError(reply,Server.FAILED_SHARING_SECRET)) {
+				// the sharer shared it again with another secret since the owner took it on
+				indexMgr.drop(element.ip,element.port,element.filename,fileMd5,element.secret);
+				return true;
+			}
+			if(reply.getClass().getName()!=ShareReply.class.getName()) {
+				logger.logWarn("Node "+owner+" refused a moved share: "+reply);
+				return false;
+			}
+			if(indexMgr.drop(element.ip,element.port,element.filename,fileMd5,element.secret)!=IndexMgr.RETCODE.SUCCESS) {
+				// dropped by its sharer after it was found here, so the share just made is stale
+				DropShareRequest drop = new DropShareRequest(element.filename,fileMd5,element.secret,element.port);
+				reply = client(owner).request(new ForwardRequest(element.ip,drop));
+				if(reply.getClass().getName()!=DropShareReply.class.getName() && !Server.isError(reply,Server.NOT_FOUND)) {
+					logger.logWarn("Node "+owner+" refused to drop a moved share: "+reply);
+					return false;
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			logger.logWarn("Could not move shares to "+owner+": "+e.getMessage());
+			return false;
+		}
+	}
+
+	private NodeClient client(String node) {
+		return clients.computeIfAbsent(node,n -> new NodeClient(n,secret,nodeSecret,NODE_TIMEOUT));
+	}
+
+	/**
+	 * Stop sending requests to other nodes.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+		for(NodeClient client : clients.values()) {
+			client.close();
+		}
+	}
+}
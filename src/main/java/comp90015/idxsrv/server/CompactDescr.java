@@ -0,0 +1,131 @@
+package comp90015.idxsrv.server;
+
+import java.util.Arrays;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+
+/**
+ * A file descriptor in the form the index holds it. Each block hash is held as the
+ * 16 bytes of its MD5 hash, either in a byte array on the heap or in a region of a
+ * {@link BlockHashSlab}, instead of as a 32 character string, and a
+ * {@link FileDescr} is only made from them when it is needed for a reply.
+ * <p>
+ * A descriptor whose block hashes could not be restored exactly from their bytes,
+ * such as one with lower case hashes, is kept as it was shared.
+ * @author aaron
+ *
+ */
+public class CompactDescr {
+
+	/**
+	 * The MD5 hash of the file.
+	 */
+	public final String fileMd5;
+
+	private final long fileLength;
+
+	private final int blockLength;
+
+	private final int numBlocks;
+
+	/**
+	 * The block hashes on the heap, or null.
+	 */
+	private final byte[] hashes;
+
+	private final BlockHashSlab slab;
+
+	/**
+	 * The block hashes off heap, or null.
+	 */
+	private final BlockHashSlab.Region blocks;
+
+	/**
+	 * The descriptor as it was shared, or null if its block hashes are held as bytes.
+	 */
+	private final FileDescr fileDescr;
+
+	/**
+	 * Create a compact descriptor.
+	 * @param fileDescr the descriptor
+	 * @param slab the slab to store block hashes in, or null to keep them on the heap
+	 */
+	public CompactDescr(FileDescr fileDescr, BlockHashSlab slab) {
+		this.fileMd5=fileDescr.getFileMd5();
+		this.fileLength=fileDescr.getFileLength();
+		this.blockLength=fileDescr.getBlockLength();
+		this.numBlocks=fileDescr.getNumBlocks();
+		String[] blockMd5 = blockHashes(fileDescr);
+		byte[] hashes = null;
+		BlockHashSlab.Region blocks = null;
+		if(blockMd5!=null && slab!=null && fileLength>0) {
+			blocks=slab.store(blockMd5);
+		} else if(blockMd5!=null) {
+			hashes=BlockHashSlab.pack(blockMd5);
+		}
+		this.slab=slab;
+		this.blocks=blocks;
+		this.hashes=hashes;
+		this.fileDescr = blocks==null && hashes==null ? fileDescr : null;
+	}
+
+	/**
+	 * @return the descriptor, or null if it has been released
+	 */
+	public FileDescr getFileDescr() {
+		if(fileDescr!=null) return fileDescr;
+		String[] blockMd5 = blocks!=null ? slab.load(blocks) : BlockHashSlab.unpack(hashes);
+		if(blockMd5==null) return null;
+		return new FileDescr(fileLength,blockLength,numBlocks,fileMd5,blockMd5);
+	}
+
+	/**
+	 * A descriptor of the same file can still differ in its blocks, either because
+	 * it was made with a different block length or because its block hashes are
+	 * wrong, and then it must not be replaced by this one.
+	 * @param other a descriptor of the same file
+	 * @return true if the descriptor has the same length and blocks as this one
+	 */
+	public boolean sameBlocks(FileDescr other) {
+		if(other.getFileLength()!=fileLength || other.getBlockLength()!=blockLength
+				|| other.getNumBlocks()!=numBlocks) {
+			return false;
+		}
+		String[] otherMd5 = blockHashes(other);
+		if(otherMd5==null) return false;
+		if(hashes!=null) {
+			return Arrays.equals(hashes,BlockHashSlab.pack(otherMd5));
+		}
+		FileDescr descr = getFileDescr();
+		return descr!=null && Arrays.equals(blockHashes(descr),otherMd5);
+	}
+
+	/**
+	 * Release the storage of the block hashes once the descriptor is no longer indexed.
+	 */
+	public void release() {
+		if(blocks!=null) {
+			slab.free(blocks);
+		}
+	}
+
+	/**
+	 * @return the block hashes of a descriptor, or null if they are not consistent
+	 * with its number of blocks
+	 */
+	static String[] blockHashes(FileDescr fileDescr) {
+		int numBlocks = fileDescr.getNumBlocks();
+		if(numBlocks<0) return null;
+		if(fileDescr.getFileLength()==0) return new String[0];
+		String[] blockMd5 = new String[numBlocks];
+		try {
+			for(int i=0;i<numBlocks;i++) {
+				blockMd5[i]=fileDescr.getBlockMd5(i);
+				if(blockMd5[i]==null) return null;
+			}
+		} catch (ArrayIndexOutOfBoundsException | NullPointerException e) {
+			return null;
+		}
+		return blockMd5;
+	}
+}
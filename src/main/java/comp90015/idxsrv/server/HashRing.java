@@ -0,0 +1,58 @@
+package comp90015.idxsrv.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A consistent hash ring that assigns each file MD5 hash to a node of a cluster.
+ * Each node is placed on the ring at {@link #VIRTUAL_NODES} points, and a file is
+ * owned by the node at the first point at or after the hash of its MD5 hash, so
+ * that when a node joins it takes over an even share of the files from every
+ * other node, and no other files move.
+ * @author aaron
+ *
+ */
+public class HashRing {
+
+	private static final int VIRTUAL_NODES = 64;
+
+	private TreeMap<Long,String> ring = new TreeMap<>();
+
+	/**
+	 * Create the ring of a set of nodes.
+	 * @param nodes the nodes, at least one
+	 */
+	public HashRing(Collection<String> nodes) {
+		for(String node : nodes) {
+			for(int i=0;i<VIRTUAL_NODES;i++) {
+				ring.put(hash(node+"#"+i),node);
+			}
+		}
+	}
+
+	/**
+	 * @param fileMd5 the MD5 hash of a file
+	 * @return the node that owns the file
+	 */
+	public String owner(String fileMd5) {
+		Map.Entry<Long,String> point = ring.ceilingEntry(hash(fileMd5));
+		if(point==null) {
+			point=ring.firstEntry();
+		}
+		return point.getValue();
+	}
+
+	private static long hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+			return ByteBuffer.wrap(digest).getLong();
+		} catch (NoSuchAlgorithmException e) {
+			return key.hashCode();
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package comp90015.idxsrv.server;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+
+/**
+ * An interface for objects that follow the changes made to an {@link IndexMgr}.
+ * Listeners are called for every successful share and drop, while the index holds
+ * the lock of the file's MD5 hash, so changes to the same file are seen in the
+ * order they were made. Listeners must therefore return quickly. A listener that
+ * does not need changes in order may instead be called once the lock is released.
+ * @author aaron
+ *
+ */
+public interface IIndexListener {
+	
+	public void shared(String ip, int port, FileDescr fileDescr, String filename, String secret);
+	
+	public void dropped(String ip, int port, String filename, String fileMd5, String secret);
+	
+	/**
+	 * @return true if the listener is called while the index holds the file's lock,
+	 * false if it is called after the change, once the lock is released
+	 */
+	public default boolean isOrdered() {
+		return true;
+	}
+}
@@ -1,16 +1,20 @@
 package comp90015.idxsrv.server;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.LinkedBlockingDeque;
 
+import comp90015.idxsrv.message.ErrorMsg;
 import comp90015.idxsrv.textgui.ITerminalLogger;
 
 /**
  * A basic IOThread class that accepts connections and puts them
  * onto a blocking queue. If the queue is full then the connection
- * is dropped and a warning is logged.
+ * is dropped, after telling the client when to retry, and a warning
+ * is logged.
  * @author aaron
  *
  */
@@ -19,6 +23,9 @@ public class IOThread extends Thread {
 	private LinkedBlockingDeque<Socket> incomingConnections;
 	private ITerminalLogger logger;
 	private int timeout;
+	private int retryAfter;
+	private volatile long droppedConnections;
+	private long lastDropWarning;
 	
 	/**
 	 * Create an IOThread, which attempts to the bind to the provided
@@ -33,7 +40,26 @@ public class IOThread extends Thread {
 			LinkedBlockingDeque<Socket> incomingConnections,
 			int timeout,
 			ITerminalLogger logger) throws IOException {
+		this(port,incomingConnections,timeout,timeout,logger);
+	}
+	
+	/**
+	 * Create an IOThread, which attempts to the bind to the provided
+	 * port with a server socket. The thread must be explicitly started.
+	 * @param port the port for the server socket
+	 * @param incomingConnections the blocking queue to put incoming connections
+	 * @param timeout the timeout value to be set on incoming connections
+	 * @param retryAfter the milliseconds a dropped client is told to wait before retrying
+	 * @param logger an object that implements the terminal logger interface
+	 * @throws IOException
+	 */
+	public IOThread(int port,
+			LinkedBlockingDeque<Socket> incomingConnections,
+			int timeout,
+			int retryAfter,
+			ITerminalLogger logger) throws IOException {
 		this.timeout = timeout;
+		this.retryAfter = retryAfter;
 		this.logger = logger;
 		this.incomingConnections=incomingConnections;
 		serverSocket = new ServerSocket(port);
@@ -48,6 +74,13 @@ public class IOThread extends Thread {
 		serverSocket.close();
 	}
 	
+	/**
+	 * @return the number of connections dropped because the incoming connection queue was full
+	 */
+	public long getDroppedConnections() {
+		return droppedConnections;
+	}
+	
 	@Override
 	public void run() {
 		logger.logInfo("IO thread running");
@@ -57,17 +90,42 @@ public class IOThread extends Thread {
 				try {
 					socket.setSoTimeout(this.timeout);
 					if(!incomingConnections.offer(socket)) {
-						socket.close();
-						logger.logWarn("IO thread dropped connection - incoming connection queue is full.");	
+						drop(socket);
 					}
 				} catch (IOException e) {
 					logger.logWarn("Something went wrong with the connection.");
 				}
 			} catch (IOException e) {
-				logger.logError("IO thread failed to accept.");
+				if(!serverSocket.isClosed()) {
+					logger.logError("IO thread failed to accept.");
+				}
 				break;
 			} 
 		}
 		logger.logInfo("IO thread completed.");
 	}
+	
+	/**
+	 * Shed a connection with an error message that carries a retry after hint, rather
+	 * than leaving the client to wait for a queue that is already full. The warning
+	 * is logged at most once a second, since drops come in bursts.
+	 */
+	private void drop(Socket socket) throws IOException {
+		droppedConnections++;
+		try {
+			ErrorMsg msg = new ErrorMsg("Server busy");
+			msg.retryAfter = retryAfter;
+			OutputStream outputStream = socket.getOutputStream();
+			outputStream.write((msg.toString()+"\n").getBytes(StandardCharsets.UTF_8));
+			outputStream.flush();
+		} finally {
+			socket.close();
+		}
+		long now = System.currentTimeMillis();
+		if(now-lastDropWarning>=1000) {
+			lastDropWarning=now;
+			logger.logWarn("IO thread dropped connection - incoming connection queue is full ("
+					+incomingConnections.size()+" queued, "+droppedConnections+" dropped in total).");
+		}
+	}
 }
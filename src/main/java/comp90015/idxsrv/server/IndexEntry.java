@@ -0,0 +1,72 @@
+package comp90015.idxsrv.server;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+
+/**
+ * The compact form in which the index holds a sharing of a file. Unlike the
+ * {@link IndexElement} sent to clients, the port is a primitive, the ip address and
+ * filename are interned, and the descriptor is the canonical one of its
+ * {@link IndexFile} unless the entry was shared with different blocks, so an entry
+ * costs little more than its own object and secret. An entry's own descriptor is
+ * held compactly on the heap.
+ * <p>
+ * Two entries are equal when they share the same file from the same ip and port
+ * under the same filename.
+ * @author aaron
+ *
+ */
+public class IndexEntry {
+
+	public final String ip;
+
+	public final int port;
+
+	public final IndexFile file;
+
+	/**
+	 * The entry's own descriptor, or null if it uses the canonical descriptor.
+	 */
+	public final CompactDescr fileDescr;
+
+	public final String filename;
+
+	public final String secret;
+
+	public IndexEntry(String ip,
+			int port,
+			IndexFile file,
+			CompactDescr fileDescr,
+			String filename,
+			String secret) {
+		this.ip=ip.intern();
+		this.port=port;
+		this.file=file;
+		this.fileDescr=fileDescr;
+		this.filename=filename.intern();
+		this.secret=secret;
+	}
+
+	/**
+	 * @return a new index element with the contents of this entry, to send to a client,
+	 * or null if the entry's file has been released
+	 */
+	public IndexElement toElement() {
+		FileDescr descr = fileDescr!=null ? fileDescr.getFileDescr() : file.getFileDescr();
+		if(descr==null) return null;
+		return new IndexElement(ip,port,descr,filename,secret);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(this==obj) return true;
+		if(!(obj instanceof IndexEntry)) return false;
+		IndexEntry other = (IndexEntry) obj;
+		return port==other.port && ip.equals(other.ip) && filename.equals(other.filename)
+				&& file.fileMd5.equals(other.file.fileMd5);
+	}
+
+	@Override
+	public int hashCode() {
+		return ((ip.hashCode()*31+port)*31+filename.hashCode())*31+file.fileMd5.hashCode();
+	}
+}
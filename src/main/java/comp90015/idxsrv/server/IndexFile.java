@@ -0,0 +1,43 @@
+package comp90015.idxsrv.server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+
+/**
+ * Everything the index holds about a single file, identified by its MD5 hash. The
+ * first descriptor shared for the file becomes its canonical descriptor, which every
+ * later entry for the file with the same blocks refers to, so the block hashes of a
+ * file are held once no matter how many peers share it.
+ * <p>
+ * When given a {@link BlockHashSlab}, the block hashes of the canonical descriptor
+ * are not kept on the heap at all.
+ * @author aaron
+ *
+ */
+public class IndexFile extends CompactDescr {
+
+	/**
+	 * The entries sharing the file, each mapped to itself so that an entry can be
+	 * found by its ip, port and filename.
+	 */
+	final ConcurrentHashMap<IndexEntry,IndexEntry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * A map from each filename the file is shared under to the entries sharing it
+	 * under that filename, so that the sharers of a (filename, MD5 hash) pair are
+	 * found without looking at those of other filenames, and counted by the size of
+	 * their set.
+	 */
+	final ConcurrentHashMap<String,Set<IndexEntry>> sharers = new ConcurrentHashMap<>();
+
+	/**
+	 * Create a file with a canonical descriptor.
+	 * @param fileDescr the canonical descriptor
+	 * @param slab the slab to store block hashes in, or null to keep them on the heap
+	 */
+	public IndexFile(FileDescr fileDescr, BlockHashSlab slab) {
+		super(fileDescr,slab);
+	}
+}
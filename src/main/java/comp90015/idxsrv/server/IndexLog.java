@@ -0,0 +1,376 @@
+package comp90015.idxsrv.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.message.JsonSerializationException;
+import comp90015.idxsrv.message.MessageFactory;
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * A write ahead log of the shares and drops made to an {@link IndexMgr}, so that the
+ * index survives a restart of the server. Records are appended to a queue as the
+ * index changes, and the log thread writes whatever has queued up and forces it to
+ * disk with a single fsync, so that many concurrent changes share the cost of one
+ * fsync (group commit). A request that changed the index waits in {@link #await()}
+ * until its change is durable before the reply is sent.
+ * <p>
+ * The log is kept in generations, index-N.log. Once a generation holds
+ * {@link #COMPACT_RECORDS} records the log moves on to the next one, and the old
+ * generation is compacted in the background, together with the previous snapshot,
+ * into the snapshot index-N.snapshot, a {@link MappedSnapshot} of one share record per
+ * element. On startup {@link #recover(IndexMgr)} maps the newest snapshot, which the
+ * index is served from straight away, and replays the logs that follow it.
+ * @author aaron
+ *
+ */
+public class IndexLog extends Thread implements IIndexListener {
+
+	/**
+	 * The number of records in a log generation before it is compacted.
+	 */
+	public static final int COMPACT_RECORDS = 100000;
+
+	private static final Pattern FILE_PATTERN = Pattern.compile("index-(\\d+)\\.(log|snapshot)");
+
+	/**
+	 * Queued to stop the log thread once everything before it is written.
+	 */
+	private static final String STOP = new String("stop");
+
+	private Path dir;
+
+	private ITerminalLogger logger;
+
+	private LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<>();
+
+	/**
+	 * The number of records appended to the queue, and the number that are durable.
+	 */
+	private long appended;
+
+	private long durable;
+
+	private boolean failed;
+
+	private long generation;
+
+	private FileChannel log;
+
+	private int logRecords;
+
+	private ExecutorService compactor = Executors.newSingleThreadExecutor();
+
+	/**
+	 * Create an IndexLog that keeps its files in the given directory. The index must
+	 * be recovered before the thread is started.
+	 * @param dir the directory for the log and snapshots
+	 * @param logger an object that implements the terminal logger interface
+	 */
+	public IndexLog(String dir, ITerminalLogger logger) {
+		this.dir=Paths.get(dir);
+		this.logger=logger;
+	}
+
+	/**
+	 * Map the newest snapshot as the base of the index and replay the logs that
+	 * follow it into the index, then start a new log generation. Only the files
+	 * changed by the logs are migrated from the snapshot, the rest are served from it
+	 * until the index is hydrated. The index must not yet be followed by this log.
+	 * @param indexMgr the empty index to recover into
+	 * @throws IOException if the files cannot be read or written
+	 */
+	public void recover(IndexMgr indexMgr) throws IOException {
+		TreeSet<Long> generations = generations(null);
+		long last = generations.isEmpty() ? 0 : generations.last();
+		TreeSet<Long> snapshots = generations("snapshot");
+		long snapshot = snapshots.isEmpty() ? 0 : snapshots.last();
+		if(snapshot>0) {
+			MappedSnapshot base = MappedSnapshot.open(snapshotPath(snapshot));
+			indexMgr.setBase(base);
+			logger.logInfo("Mapped "+base.size()+" shares from the index snapshot.");
+			base.buildIndex(logger);
+		}
+		int replayed = 0;
+		for(long g : generations("log").tailSet(snapshot,false)) {
+			replayed+=read(logPath(g),record -> {
+				if(record.op.equals(IndexLogRecord.SHARE)) {
+					indexMgr.share(record.ip,record.port,record.fileDescr,record.filename,record.secret);
+				} else {
+					indexMgr.drop(record.ip,record.port,record.filename,record.fileMd5,record.secret);
+				}
+			});
+		}
+		if(replayed>0) {
+			logger.logInfo("Replayed "+replayed+" changes from the index log.");
+		}
+		generation=last+1;
+		log=FileChannel.open(logPath(generation),StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE,StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * Wait until every change appended so far is durable, or the log has failed.
+	 * @return true if every change appended so far is durable
+	 */
+	public synchronized boolean await() {
+		long target = appended;
+		while(durable<target && !failed) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return durable>=target;
+	}
+
+	/**
+	 * @return true if the log could not be written, after which changes are no
+	 * longer persisted
+	 */
+	public synchronized boolean isFailed() {
+		return failed;
+	}
+
+	/**
+	 * Stop the log thread once every change appended so far has been written.
+	 */
+	public void shutdown() {
+		queue.add(STOP);
+	}
+
+	@Override
+	public void shared(String ip, int port, FileDescr fileDescr, String filename, String secret) {
+		append(new IndexLogRecord(IndexLogRecord.SHARE,ip,port,filename,null,fileDescr,secret));
+	}
+
+	@Override
+	public void dropped(String ip, int port, String filename, String fileMd5, String secret) {
+		append(new IndexLogRecord(IndexLogRecord.DROP,ip,port,filename,fileMd5,null,secret));
+	}
+
+	private void append(IndexLogRecord record) {
+		String line;
+		try {
+			line = MessageFactory.serialize(record);
+		} catch (JsonSerializationException e) {
+			logger.logError("Could not serialize an index log record.");
+			return;
+		}
+		synchronized(this) {
+			queue.add(line);
+			appended++;
+		}
+	}
+
+	@Override
+	public void run() {
+		logger.logInfo("Index log thread running.");
+		ArrayList<String> batch = new ArrayList<>();
+		boolean running = true;
+		while(running) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				break;
+			}
+			queue.drainTo(batch);
+			running = !batch.removeIf(line -> line==STOP);
+			if(!batch.isEmpty()) {
+				commit(batch);
+				batch.clear();
+			}
+		}
+		try {
+			log.close();
+		} catch (IOException e) {
+			logger.logWarn("Could not close the index log.");
+		}
+		compactor.shutdown();
+		try {
+			compactor.awaitTermination(1,TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			logger.logWarn("Interrupted while waiting for the index log compaction.");
+		}
+		logger.logInfo("Index log thread completed.");
+	}
+
+	/**
+	 * Write a batch of records with a single fsync, and start a new generation
+	 * when the current one is full.
+	 */
+	private void commit(ArrayList<String> batch) {
+		if(!failed) {
+			StringBuilder sb = new StringBuilder();
+			for(String line : batch) {
+				sb.append(line).append('\n');
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+			try {
+				while(buffer.hasRemaining()) {
+					log.write(buffer);
+				}
+				log.force(false);
+				logRecords+=batch.size();
+				if(logRecords>=COMPACT_RECORDS) {
+					rotate();
+				}
+			} catch (IOException e) {
+				logger.logError("Could not write the index log, changes are no longer persisted: "+e.getMessage());
+				synchronized(this) {
+					failed=true;
+				}
+			}
+		}
+		synchronized(this) {
+			// changes that were not written are never durable, and waiting for them
+			// returns once the log has failed
+			if(!failed) {
+				durable+=batch.size();
+			}
+			notifyAll();
+		}
+	}
+
+	private void rotate() throws IOException {
+		log.close();
+		long full = generation;
+		generation++;
+		logRecords=0;
+		log=FileChannel.open(logPath(generation),StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE,StandardOpenOption.TRUNCATE_EXISTING);
+		compactor.execute(() -> {
+			try {
+				writeSnapshot(full,replay(full));
+			} catch (IOException | RuntimeException e) {
+				// the logs are kept, and the next compaction starts from them again
+				logger.logWarn("Could not compact the index log: "+e);
+			}
+		});
+	}
+
+	/**
+	 * Rebuild the elements of the index from the newest snapshot at or before the
+	 * given generation and the logs after it, up to the given generation.
+	 * @return a map from each sharer key to its share record
+	 */
+	private HashMap<String,IndexLogRecord> replay(long upTo) throws IOException {
+		Long snapshot = generations("snapshot").floor(upTo);
+		HashMap<String,IndexLogRecord> state = new HashMap<>();
+		if(snapshot!=null) {
+			MappedSnapshot base = MappedSnapshot.open(snapshotPath(snapshot));
+			for(int i=0;i<base.size();i++) {
+				IndexLogRecord record = base.record(i);
+				state.put(record.getSharerKey(),record);
+			}
+		}
+		for(long g : generations("log").subSet(snapshot==null ? 0 : snapshot+1,true,upTo,true)) {
+			read(logPath(g),record -> apply(state,record));
+		}
+		return state;
+	}
+
+	/**
+	 * Read the records of a log. A partly written last line, left by a crash, is
+	 * skipped.
+	 * @return the number of records read
+	 */
+	private int read(Path path,Consumer<IndexLogRecord> consumer) throws IOException {
+		int records = 0;
+		try(BufferedReader reader = Files.newBufferedReader(path,StandardCharsets.UTF_8)) {
+			String line;
+			while((line=reader.readLine())!=null) {
+				IndexLogRecord record;
+				try {
+					record = (IndexLogRecord) MessageFactory.deserialize(line);
+				} catch (JsonSerializationException | ClassCastException e) {
+					logger.logWarn("Skipping an unreadable record in "+path.getFileName());
+					continue;
+				}
+				consumer.accept(record);
+				records++;
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Apply a record to the elements, with the same rules as the index, which also
+	 * ignores a share of an inconsistent descriptor.
+	 */
+	private static void apply(HashMap<String,IndexLogRecord> state,IndexLogRecord record) {
+		String key = record.getSharerKey();
+		IndexLogRecord existing = state.get(key);
+		if(record.op.equals(IndexLogRecord.SHARE)) {
+			if(!IndexMgr.isValid(record.fileDescr)) return;
+			if(existing==null || existing.secret.equals(record.secret)) {
+				state.put(key,record);
+			}
+		} else if(existing!=null && existing.secret.equals(record.secret)) {
+			state.remove(key);
+		}
+	}
+
+	/**
+	 * Write the snapshot of a generation, atomically, and then remove the snapshots
+	 * and logs that it replaces.
+	 */
+	private void writeSnapshot(long g,HashMap<String,IndexLogRecord> state) throws IOException {
+		Path tmp = dir.resolve("index-"+g+".snapshot.tmp");
+		MappedSnapshot.write(tmp,state.values());
+		Files.move(tmp,snapshotPath(g),StandardCopyOption.ATOMIC_MOVE,StandardCopyOption.REPLACE_EXISTING);
+		for(long old : generations("snapshot").headSet(g,false)) {
+			Files.deleteIfExists(snapshotPath(old));
+		}
+		for(long old : generations("log").headSet(g,true)) {
+			Files.deleteIfExists(logPath(old));
+		}
+	}
+
+	/**
+	 * @param suffix either log or snapshot, or null for both
+	 * @return the generations that have a file with the suffix in the directory
+	 */
+	private TreeSet<Long> generations(String suffix) throws IOException {
+		TreeSet<Long> generations = new TreeSet<>();
+		try(Stream<Path> files = Files.list(dir)) {
+			files.forEach(file -> {
+				Matcher m = FILE_PATTERN.matcher(file.getFileName().toString());
+				if(m.matches() && (suffix==null || suffix.equals(m.group(2)))) {
+					generations.add(Long.parseLong(m.group(1)));
+				}
+			});
+		}
+		return generations;
+	}
+
+	private Path logPath(long g) {
+		return dir.resolve("index-"+g+".log");
+	}
+
+	private Path snapshotPath(long g) {
+		return dir.resolve("index-"+g+".snapshot");
+	}
+}
@@ -0,0 +1,83 @@
+package comp90015.idxsrv.server;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.message.JsonElement;
+import comp90015.idxsrv.message.JsonSerializable;
+
+/**
+ * A single share or drop, as written to the index log and snapshots.
+ * @author aaron
+ *
+ */
+@JsonSerializable
+public class IndexLogRecord {
+	
+	public static final String SHARE = "share";
+	
+	public static final String DROP = "drop";
+	
+	/**
+	 * Either {@link #SHARE} or {@link #DROP}.
+	 */
+	@JsonElement
+	public String op;
+	
+	@JsonElement
+	public String ip;
+	
+	@JsonElement
+	public Integer port;
+	
+	@JsonElement
+	public String filename;
+	
+	/**
+	 * The MD5 hash of the file, for a drop.
+	 */
+	@JsonElement(optional=true)
+	public String fileMd5;
+	
+	/**
+	 * The descriptor of the file, for a share.
+	 */
+	@JsonElement(optional=true)
+	public FileDescr fileDescr;
+	
+	@JsonElement
+	public String secret;
+	
+	public IndexLogRecord() {
+		
+	}
+	
+	public IndexLogRecord(String op,
+			String ip,
+			int port,
+			String filename,
+			String fileMd5,
+			FileDescr fileDescr,
+			String secret) {
+		this.op=op;
+		this.ip=ip;
+		this.port=port;
+		this.filename=filename;
+		this.fileMd5=fileMd5;
+		this.fileDescr=fileDescr;
+		this.secret=secret;
+	}
+	
+	/**
+	 * @return the sharer key IP:PORT:FILENAME:FILEMD5 that the record applies to
+	 */
+	public String getSharerKey() {
+		String md5 = fileDescr!=null ? fileDescr.getFileMd5() : fileMd5;
+		return ip+":"+port+":"+filename+":"+md5;
+	}
+	
+	/**
+	 * @return the index element that a share record describes
+	 */
+	public IndexElement toElement() {
+		return new IndexElement(ip,port,fileDescr,filename,secret);
+	}
+}
@@ -1,14 +1,28 @@
 package comp90015.idxsrv.server;
 
+import java.util.AbstractCollection;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 import comp90015.idxsrv.filemgr.FileDescr;
 
 /**
  * A simple class for managing the files that are currently being shared, and tracking
- * the sharers.
+ * the sharers. The index is safe to use from many threads. Searches and lookups never
+ * block, they read concurrent maps that writers update in place. Shares and drops are
+ * serialized per file by a striped lock on the file's MD5 hash, so writers of different
+ * files rarely contend.
  * @author aaron
  *
  */
@@ -21,22 +35,161 @@ public class IndexMgr {
 	}
 	
 	/**
-	 * A map from a file's MD5 hash to the set of elements that share that file.
+	 * A map from a file's MD5 hash to the file, which holds the entries that share it
+	 * and their seed counts. The entries are held in the compact {@link IndexEntry}
+	 * form and only turned into {@link IndexElement} objects for replies.
 	 */
-	private HashMap<String,HashSet<IndexElement>> md5Map;
+	private ConcurrentHashMap<String,IndexFile> files;
 	
 	/**
-	 * A map from a sharer key IP:PORT:FILENAME:FILEMD5 to the index element for that unique
-	 * sharing of the file.
+	 * A map from each sharer endpoint IP:PORT to the entries it shares.
 	 */
-	private HashMap<String,IndexElement> sharerMap;
+	private ConcurrentHashMap<String,Set<IndexEntry>> endpoints;
 	
 	/**
-	 * Creates a new index manager.
+	 * A dictionary of filename tokens and their counts, used to complete prefixes.
+	 */
+	private KeywordIndex keywordIndex;
+	
+	/**
+	 * A trigram index of filenames, used to find candidates for substring searches.
+	 */
+	private TrigramIndex trigramIndex;
+	
+	/**
+	 * The number of locks that writers are striped over.
+	 */
+	private static final int NUM_LOCKS = 256;
+	
+	/**
+	 * Writers lock the stripe of the file's MD5 hash, so all updates to a file and
+	 * its entries hold the same lock.
+	 */
+	private Object[] locks;
+	
+	/**
+	 * The off-heap store of block hashes, or null if descriptors are kept on the heap.
+	 */
+	private BlockHashSlab slab;
+	
+	/**
+	 * The listeners that follow the changes made to the index, in order.
+	 */
+	private CopyOnWriteArrayList<IIndexListener> listeners;
+	
+	/**
+	 * The listeners that are called once the file's lock is released.
+	 */
+	private CopyOnWriteArrayList<IIndexListener> unorderedListeners;
+	
+	/**
+	 * A snapshot that the index is served from, in place, for every file that has not
+	 * yet been migrated into the maps above, or null once every file has been.
+	 */
+	private volatile MappedSnapshot base;
+	
+	/**
+	 * The MD5 hashes of the files that have been migrated from the snapshot.
+	 */
+	private volatile Set<String> migrated;
+	
+	/**
+	 * Creates a new index manager that keeps descriptors on the heap.
 	 */
 	public IndexMgr() {
-		md5Map=new HashMap<>();
-		sharerMap=new HashMap<>();
+		this(false);
+	}
+	
+	/**
+	 * Creates a new index manager.
+	 * @param offHeap whether to store the block hashes of descriptors off heap
+	 */
+	public IndexMgr(boolean offHeap) {
+		files=new ConcurrentHashMap<>();
+		endpoints=new ConcurrentHashMap<>();
+		slab = offHeap ? new BlockHashSlab() : null;
+		listeners=new CopyOnWriteArrayList<>();
+		unorderedListeners=new CopyOnWriteArrayList<>();
+		migrated=ConcurrentHashMap.newKeySet();
+		keywordIndex=new KeywordIndex();
+		trigramIndex=new TrigramIndex();
+		locks=new Object[NUM_LOCKS];
+		for(int i=0;i<NUM_LOCKS;i++) {
+			locks[i]=new Object();
+		}
+	}
+	
+	/**
+	 * Follow the changes made to the index from now on.
+	 * @param listener the listener to call for every successful share and drop
+	 */
+	public void addListener(IIndexListener listener) {
+		if(listener.isOrdered()) {
+			listeners.add(listener);
+		} else {
+			unorderedListeners.add(listener);
+		}
+	}
+	
+	/**
+	 * Serve the index from a snapshot, until each file is migrated into the index by
+	 * the first share or drop of the file, or by {@link #hydrate()}. Searches and
+	 * endpoint drops find the records they need from the snapshot's
+	 * {@link SnapshotIndex}, or scan every record while it is not ready. Must be
+	 * called before the index is used.
+	 * @param base the mapped snapshot
+	 */
+	public void setBase(MappedSnapshot base) {
+		this.base=base;
+	}
+	
+	/**
+	 * Migrate every file from the snapshot, one file at a time, after which the
+	 * snapshot is no longer used.
+	 */
+	public void hydrate() {
+		MappedSnapshot base = this.base;
+		if(base==null) return;
+		String previous = null;
+		for(int i=0;i<base.size();i++) {
+			String fileMd5 = base.fileMd5(i);
+			if(fileMd5.equals(previous)) continue;
+			previous=fileMd5;
+			synchronized(lockFor(fileMd5)) {
+				migrate(fileMd5);
+			}
+		}
+		// a reader that sees the new set also sees that the snapshot is gone
+		this.base=null;
+		migrated=ConcurrentHashMap.newKeySet();
+	}
+	
+	/**
+	 * @return the snapshot if the file has not been migrated from it, otherwise null
+	 */
+	private MappedSnapshot baseFor(String fileMd5) {
+		Set<String> migrated = this.migrated;
+		MappedSnapshot base = this.base;
+		if(base==null || migrated.contains(fileMd5)) return null;
+		return base;
+	}
+	
+	/**
+	 * Copy the elements of a file from the snapshot into the index, holding the
+	 * file's lock.
+	 */
+	private void migrate(String fileMd5) {
+		MappedSnapshot base = baseFor(fileMd5);
+		if(base==null) return;
+		for(int i=base.first(fileMd5);i<base.size() && base.fileMd5(i).equals(fileMd5);i++) {
+			IndexLogRecord record = base.record(i);
+			add(record.ip,record.port,record.fileDescr,record.filename,record.secret);
+		}
+		migrated.add(fileMd5);
+	}
+	
+	private Object lockFor(String fileMd5) {
+		return locks[(fileMd5.hashCode() & 0x7fffffff) % NUM_LOCKS];
 	}
 	
 	/**
@@ -48,33 +201,88 @@ public class IndexMgr {
 	 * @param fileDescrStr the string format of the file descriptor being shared
 	 * @param filename the filename of the file being shared
 	 * @param secret the secret required to drop this index element
-	 * @return {@link RETCODE.SUCCESS} if added or {@link RETCODE.FAILEDSECRET} if the element already exists and the provided secret does not match
+	 * @return {@link RETCODE.SUCCESS} if added, {@link RETCODE.INVALID} if the descriptor is not consistent or {@link RETCODE.FAILEDSECRET} if the element already exists and the provided secret does not match
 	 */
 	public RETCODE share(String ip, 
 			int port, 
 			FileDescr fileDescr, 
 			String filename,
 			String secret) {
-		// Create the new index element to share.
-		IndexElement element = new IndexElement(ip,port,fileDescr,filename,secret);
+		if(!isValid(fileDescr)) {
+			return RETCODE.INVALID;
+		}
 		String fileMd5 = fileDescr.getFileMd5(); 
-		String sharerKey = ip+":"+port+":"+filename+":"+fileMd5;
 		
-		// Drop an identical index element for this sharer if it already exists.
-		// The secret must match for this to be successful.
-		if(sharerMap.containsKey(sharerKey)) {
-			if(drop(ip,port,filename,fileMd5,secret)==RETCODE.FAILEDSECRET) {
+		synchronized(lockFor(fileMd5)) {
+			migrate(fileMd5);
+			if(add(ip,port,fileDescr,filename,secret)==RETCODE.FAILEDSECRET) {
 				return RETCODE.FAILEDSECRET;
 			}
+			for(IIndexListener listener : listeners) {
+				listener.shared(ip,port,fileDescr,filename,secret);
+			}
 		}
+		for(IIndexListener listener : unorderedListeners) {
+			listener.shared(ip,port,fileDescr,filename,secret);
+		}
+		return RETCODE.SUCCESS;
+	}
+	
+	/**
+	 * A descriptor is only indexed if it has a file MD5 hash and as many block hashes
+	 * as it has blocks, since it is later copied, stored and persisted on the
+	 * assumption that it does.
+	 * @param fileDescr a descriptor
+	 * @return true if the descriptor is consistent
+	 */
+	public static boolean isValid(FileDescr fileDescr) {
+		try {
+			return fileDescr.getFileMd5()!=null && fileDescr.getFileLength()>=0
+					&& fileDescr.getBlockLength()>=0 && CompactDescr.blockHashes(fileDescr)!=null;
+		} catch (NullPointerException e) {
+			// a field that was missing from the message
+			return false;
+		}
+	}
+	
+	/**
+	 * Add an entry to its file and to the indexes, holding the file's lock.
+	 */
+	private RETCODE add(String ip, 
+			int port, 
+			FileDescr fileDescr, 
+			String filename,
+			String secret) {
+		String fileMd5 = fileDescr.getFileMd5();
+		IndexFile file = files.get(fileMd5);
+		if(file==null) {
+			file=new IndexFile(fileDescr,slab);
+			files.put(fileMd5,file);
+		}
+		IndexEntry entry = new IndexEntry(ip,port,file,file.sameBlocks(fileDescr) ? null : new CompactDescr(fileDescr,null),filename,secret);
 		
-		// Add the element to be shared
-		sharerMap.put(sharerKey, element);
-		if(!md5Map.containsKey(fileDescr.getFileMd5())){
-			md5Map.put(fileDescr.getFileMd5(),new HashSet<IndexElement>());
+		// Drop an identical entry for this sharer if it already exists.
+		// The secret must match for this to be successful.
+		IndexEntry existingEntry = file.entries.get(entry);
+		if(existingEntry!=null) {
+			if(!existingEntry.secret.equals(secret)) {
+				return RETCODE.FAILEDSECRET;
+			}
+			remove(file,existingEntry);
 		}
-		HashSet<IndexElement> md5set = md5Map.get(fileDescr.getFileMd5());
-		md5set.add(element);
+		
+		// Add the entry to be shared
+		file.entries.put(entry,entry);
+		file.sharers.computeIfAbsent(entry.filename,name -> ConcurrentHashMap.newKeySet()).add(entry);
+		endpoints.compute(entry.ip+":"+entry.port,(endpoint,set) -> {
+			if(set==null) {
+				set=ConcurrentHashMap.newKeySet();
+			}
+			set.add(entry);
+			return set;
+		});
+		keywordIndex.add(entry);
+		trigramIndex.add(entry);
 		return RETCODE.SUCCESS;
 	}
 	
@@ -92,73 +300,475 @@ public class IndexMgr {
 			String filename,
 			String fileMd5,
 			String secret) {
-		String sharerKey = ip+":"+port+":"+filename+":"+fileMd5;
-		if(sharerMap.containsKey(sharerKey)) {
-			IndexElement existingElement = sharerMap.get(sharerKey);
-			if(existingElement.secret.equals(secret)) {
-				HashSet<IndexElement> md5set = md5Map.get(fileMd5);
-				md5set.remove(existingElement);
-				if(md5set.isEmpty()) {
-					md5Map.remove(fileMd5);
+		return drop(ip,port,filename,fileMd5,secret,null);
+	}
+	
+	/**
+	 * Drop an element from the index if a condition holds when the file's lock is held.
+	 * @return {@link RETCODE.SUCCESS} if dropped, {@link RETCODE.INVALID} if not found
+	 * or the condition does not hold, {@link RETCODE.FAILEDSECRET} if the provided
+	 * secret does not match
+	 */
+	private RETCODE drop(String ip,
+			int port,
+			String filename,
+			String fileMd5,
+			String secret,
+			BooleanSupplier condition) {
+		synchronized(lockFor(fileMd5)) {
+			migrate(fileMd5);
+			IndexFile file = files.get(fileMd5);
+			if(file==null) {
+				return RETCODE.INVALID;
+			}
+			IndexEntry existingEntry = file.entries.get(new IndexEntry(ip,port,file,null,filename,null));
+			if(existingEntry==null) {
+				return RETCODE.INVALID;
+			}
+			if(!existingEntry.secret.equals(secret)) {
+				return RETCODE.FAILEDSECRET;
+			}
+			if(condition!=null && !condition.getAsBoolean()) {
+				return RETCODE.INVALID;
+			}
+			remove(file,existingEntry);
+			if(file.entries.isEmpty()) {
+				files.remove(fileMd5);
+				file.release();
+			}
+			for(IIndexListener listener : listeners) {
+				listener.dropped(ip,port,filename,fileMd5,secret);
+			}
+		}
+		for(IIndexListener listener : unorderedListeners) {
+			listener.dropped(ip,port,filename,fileMd5,secret);
+		}
+		return RETCODE.SUCCESS;
+	}
+	
+	/**
+	 * Drop every element shared from an endpoint, such as when its lease expires.
+	 * Listeners see a drop for each element.
+	 * @param ip the ip address of the sharer
+	 * @param port the port number of the sharer
+	 * @return the number of elements dropped
+	 */
+	public int dropEndpoint(String ip, int port) {
+		return dropEndpoint(ip,port,() -> true);
+	}
+	
+	/**
+	 * Drop the elements shared from an endpoint while a condition holds. The condition
+	 * is checked holding the lock of each element's file before it is dropped, so a
+	 * listener that changes it when an element is shared stops the drops that follow.
+	 * @param ip the ip address of the sharer
+	 * @param port the port number of the sharer
+	 * @param condition true while elements should be dropped
+	 * @return the number of elements dropped
+	 */
+	public int dropEndpoint(String ip, int port, BooleanSupplier condition) {
+		String endpoint = ip+":"+port;
+		MappedSnapshot base = this.base;
+		if(base!=null) {
+			// the endpoint's files that are still in the snapshot must be migrated to be found
+			for(int i : base.records(endpoint)) {
+				String fileMd5 = base.fileMd5(i);
+				synchronized(lockFor(fileMd5)) {
+					migrate(fileMd5);
 				}
-				sharerMap.remove(sharerKey);
-				return RETCODE.SUCCESS;
 			}
-			return RETCODE.FAILEDSECRET;
 		}
-		return RETCODE.INVALID;
+		Set<IndexEntry> entries = endpoints.get(endpoint);
+		if(entries==null) return 0;
+		int dropped = 0;
+		for(IndexEntry entry : new ArrayList<>(entries)) {
+			if(!condition.getAsBoolean()) break;
+			if(drop(entry.ip,entry.port,entry.filename,entry.file.fileMd5,entry.secret,condition)==RETCODE.SUCCESS) {
+				dropped++;
+			}
+		}
+		return dropped;
 	}
 	
 	/**
-	 * Do a basic keyword search for elements where all keywords are
-	 * contained in the element's filename. Return up to maxhits responses,
-	 * in arbitrary order. Keywords should be provided
-	 * in lower case.
+	 * @param ip the ip address of the sharer
+	 * @param port the port number of the sharer
+	 * @return true if the endpoint shares at least one element, not counting those
+	 * still only in a snapshot
+	 */
+	public boolean hasEndpoint(String ip, int port) {
+		return endpoints.containsKey(ip+":"+port);
+	}
+	
+	/**
+	 * @return the endpoints IP:PORT that share at least one element, not counting
+	 * those still only in a snapshot
+	 */
+	public Set<String> getEndpoints() {
+		return Collections.unmodifiableSet(endpoints.keySet());
+	}
+	
+	/**
+	 * Remove an entry from its file and from the indexes, holding the file's lock.
+	 */
+	private void remove(IndexFile file, IndexEntry entry) {
+		file.entries.remove(entry);
+		file.sharers.computeIfPresent(entry.filename,(filename,set) -> {
+			set.remove(entry);
+			return set.isEmpty() ? null : set;
+		});
+		endpoints.computeIfPresent(entry.ip+":"+entry.port,(endpoint,set) -> {
+			set.remove(entry);
+			return set.isEmpty() ? null : set;
+		});
+		keywordIndex.remove(entry);
+		trigramIndex.remove(entry);
+	}
+	
+	/**
+	 * A search hit, either an entry of the index or a record of the snapshot, and
+	 * its seed count.
+	 */
+	private static class Hit {
+		IndexEntry entry;
+		int record = -1;
+		String filename;
+		String fileMd5;
+		int seedCount;
+		
+		Hit(IndexEntry entry, int seedCount) {
+			this.entry=entry;
+			this.filename=entry.filename;
+			this.fileMd5=entry.file.fileMd5;
+			this.seedCount=seedCount;
+		}
+		
+		Hit(int record, String filename, String fileMd5, int seedCount) {
+			this.record=record;
+			this.filename=filename;
+			this.fileMd5=fileMd5;
+			this.seedCount=seedCount;
+		}
+		
+		/**
+		 * @param base the snapshot that the hit was found in, if it is a record
+		 * @return the element of the hit, or null if its file has been released
+		 */
+		IndexElement toElement(MappedSnapshot base) {
+			if(entry!=null) {
+				return entry.toElement();
+			}
+			return base.record(record).toElement();
+		}
+	}
+	
+	/**
+	 * The ranking of search hits, best first: most seeds, then the shortest filename
+	 * since the keywords make up more of it, then by filename and MD5 hash so that the
+	 * order is stable.
+	 */
+	private static final Comparator<Hit> RANKING = Comparator
+			.comparingInt((Hit hit) -> -hit.seedCount)
+			.thenComparingInt(hit -> hit.filename.length())
+			.thenComparing(hit -> hit.filename)
+			.thenComparing(hit -> hit.fileMd5);
+	
+	/**
+	 * Do a keyword search for elements where all keywords are contained in the
+	 * element's filename. Return the top maxhits responses ranked by seed count,
+	 * with at most one element per file MD5 hash. Keywords should be provided in
+	 * lower case. Only candidates from the {@link TrigramIndex} are checked, unless
+	 * every keyword is empty. The top hits are kept in a heap
+	 * of size maxhits, so ranking n hits costs O(n log maxhits). Files that are still
+	 * served from a snapshot are found from the candidates of its {@link SnapshotIndex}.
 	 * @param keywords the array of keywords to check for, lower cased
-	 * @param maxhits the maximum number of hits to return
-	 * @return an array of elements, possibly empty
+	 * @param maxhits the maximum number of hits to return, or 0 for all hits
+	 * @return an array of elements, possibly empty, best ranked first
 	 */
 	public ArrayList<IndexElement> search(String[] keywords, int maxhits) {
-		int hits=0;
-		HashSet<String> md5s = new HashSet<String>();
-		ArrayList<IndexElement> hitElements = new ArrayList<IndexElement>();
-		for(IndexElement element : sharerMap.values()) {
-			if(md5s.contains(element.fileDescr.getFileMd5())) {
+		MappedSnapshot base = this.base;
+		
+		// keep the top maxhits in a heap with the worst ranked hit at its head
+		int k = maxhits>0 ? maxhits : Integer.MAX_VALUE;
+		PriorityQueue<Hit> top = new PriorityQueue<Hit>(RANKING.reversed());
+		for(Hit hit : hits(keywords,base)) {
+			top.add(hit);
+			if(top.size()>k) {
+				top.poll();
+			}
+		}
+		ArrayList<IndexElement> hitElements = new ArrayList<IndexElement>(top.size());
+		while(!top.isEmpty()) {
+			IndexElement element = top.poll().toElement(base);
+			if(element!=null) {
+				hitElements.add(element);
+			}
+		}
+		Collections.reverse(hitElements);
+		return hitElements;
+	}
+	
+	/**
+	 * The hits of a search, taken best first a page at a time. Only the hits that
+	 * can be taken are kept, ranked when the search is made, so ranking n hits costs
+	 * O(n log maxhits) and each page costs O(pageSize).
+	 */
+	public static class SearchResults {
+		private ArrayList<Hit> hits;
+		private MappedSnapshot base;
+		private int next;
+		
+		private SearchResults(ArrayList<Hit> hits, MappedSnapshot base) {
+			this.hits=hits;
+			this.base=base;
+		}
+		
+		/**
+		 * @param n the most hits to take
+		 * @return the next best hits, possibly fewer than n
+		 */
+		public ArrayList<IndexElement> next(int n) {
+			ArrayList<IndexElement> page = new ArrayList<>(Math.min(n,hits.size()-next));
+			while(page.size()<n && hasNext()) {
+				IndexElement element = hits.get(next).toElement(base);
+				// the taken hits are released, since the rest are kept until the cursor expires
+				hits.set(next++,null);
+				if(element!=null) {
+					page.add(element);
+				}
+			}
+			return page;
+		}
+		
+		/**
+		 * @return true if there are hits left to take
+		 */
+		public boolean hasNext() {
+			return next<hits.size();
+		}
+	}
+	
+	/**
+	 * Do the same search as {@link #search(String[], int)}, but return the hits to
+	 * be taken a page at a time.
+	 * @param keywords the array of keywords to check for, lower cased
+	 * @param maxhits the maximum number of hits to take, or 0 for all hits
+	 * @return the hits
+	 */
+	public SearchResults searchResults(String[] keywords, int maxhits) {
+		MappedSnapshot base = this.base;
+		int k = maxhits>0 ? maxhits : Integer.MAX_VALUE;
+		PriorityQueue<Hit> top = new PriorityQueue<Hit>(RANKING.reversed());
+		for(Hit hit : hits(keywords,base)) {
+			top.add(hit);
+			if(top.size()>k) {
+				top.poll();
+			}
+		}
+		ArrayList<Hit> ranked = new ArrayList<Hit>(top.size());
+		while(!top.isEmpty()) {
+			ranked.add(top.poll());
+		}
+		Collections.reverse(ranked);
+		return new SearchResults(ranked,base);
+	}
+	
+	/**
+	 * Find the best ranked hit of each file MD5 hash that matches the keywords.
+	 */
+	private Collection<Hit> hits(String[] keywords, MappedSnapshot base) {
+		Iterable<IndexEntry> candidates = trigramIndex.candidates(keywords);
+		if(candidates==null) {
+			candidates=() -> files.values().stream()
+					.flatMap(file -> file.entries.keySet().stream())
+					.iterator();
+		}
+		
+		// the best ranked hit for each file MD5 hash
+		HashMap<String,Hit> md5Hits = new HashMap<String,Hit>();
+		for(IndexEntry entry : candidates) {
+			String fileMd5 = entry.file.fileMd5;
+			Hit best = md5Hits.get(fileMd5);
+			if(best!=null && best.filename.equals(entry.filename)) {
 				continue;
 			}
-			boolean hit=true;
-			for(int k=0; k<keywords.length;k++) {
-				if(!element.filename.toLowerCase().contains(keywords[k])) {
-					hit=false;
-					break;
+			if(matches(entry.filename,keywords) && baseFor(fileMd5)==null) {
+				Hit candidate = new Hit(entry,seedCount(entry.filename,fileMd5));
+				if(best==null || RANKING.compare(candidate,best)<0) {
+					md5Hits.put(fileMd5,candidate);
 				}
 			}
-			if(hit) {
-				md5s.add(element.fileDescr.getFileMd5());
-				hitElements.add(element);
-				hits++;
-				if(hits==maxhits) break;
+		}
+		if(base!=null) {
+			int[] records = base.candidates(keywords);
+			for(int r=0;r<(records!=null ? records.length : base.size());r++) {
+				int i = records!=null ? records[r] : r;
+				String filename = base.filename(i);
+				if(!matches(filename,keywords)) continue;
+				String fileMd5 = base.fileMd5(i);
+				Hit best = md5Hits.get(fileMd5);
+				if((best!=null && best.filename.equals(filename)) || baseFor(fileMd5)==null) {
+					continue;
+				}
+				Hit candidate = new Hit(i,filename,fileMd5,base.seedCount(filename,fileMd5));
+				if(best==null || RANKING.compare(candidate,best)<0) {
+					md5Hits.put(fileMd5,candidate);
+				}
 			}
 		}
-		return hitElements;
+		return md5Hits.values();
+	}
+	
+	/**
+	 * Complete a prefix to the filename tokens that start with it, from the
+	 * {@link KeywordIndex}. Files that are still served from a snapshot are not
+	 * completed until they are migrated.
+	 * @param prefix the lower cased prefix of a token
+	 * @param max the most completions to return, up to {@link KeywordIndex#MAX_COMPLETIONS}
+	 * @return the completions, most popular first
+	 */
+	public ArrayList<String> complete(String prefix, int max) {
+		return keywordIndex.complete(prefix,max);
+	}
+	
+	/**
+	 * @param token a lower cased filename token
+	 * @return the number of elements whose filename contains the token
+	 */
+	public int tokenCount(String token) {
+		return keywordIndex.popularity(token);
+	}
+	
+	/**
+	 * @return true if the lower cased filename contains all of the keywords
+	 */
+	private static boolean matches(String filename, String[] keywords) {
+		filename = filename.toLowerCase();
+		for(int k=0; k<keywords.length;k++) {
+			if(!filename.contains(keywords[k])) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Count the sharers of a file under a given filename, in constant time once the
+	 * file is no longer served from a snapshot.
+	 * @param filename the filename
+	 * @param fileMd5 the MD5 hash of the file
+	 * @return the number of elements sharing the file under that filename
+	 */
+	public int seedCount(String filename,String fileMd5) {
+		MappedSnapshot base = baseFor(fileMd5);
+		if(base!=null) return base.seedCount(filename,fileMd5);
+		IndexFile file = files.get(fileMd5);
+		if(file==null) return 0;
+		Set<IndexEntry> sharers = file.sharers.get(filename);
+		return sharers==null ? 0 : sharers.size();
 	}
 
 	/**
-	 * Return the set of all elements corresponding to a given file MD5 hash.
+	 * Return the elements sharing a file under a given filename, found directly by
+	 * the (filename, MD5 hash) pair. The elements are an unmodifiable view of the
+	 * index rather than a copy, made as they are iterated, so the cost of a lookup
+	 * depends only on the number of elements returned. Like the index itself, the
+	 * view may or may not show elements shared or dropped while it is iterated.
+	 * @param filename the filename to lookup
 	 * @param fileMd5 the MD5 hash to lookup
-	 * @return a set of elements, possibly empty
-	 */
-	public HashSet<IndexElement> lookup(String filename,String fileMd5){
-		if(md5Map.containsKey(fileMd5)){
-			HashSet<IndexElement> hits = new HashSet<>();
-			for(IndexElement ie : md5Map.get(fileMd5)) {
-				if(ie.filename.equals(filename)) {
-					hits.add(ie);
+	 * @return a view of the elements, possibly empty
+	 */
+	public Collection<IndexElement> lookup(String filename,String fileMd5){
+		MappedSnapshot base = baseFor(fileMd5);
+		if(base!=null) {
+			ArrayList<IndexElement> hits = new ArrayList<>();
+			for(int i=base.first(fileMd5);i<base.size() && base.fileMd5(i).equals(fileMd5);i++) {
+				if(base.filename(i).equals(filename)) {
+					hits.add(base.record(i).toElement());
+				}
+			}
+			return Collections.unmodifiableList(hits);
+		}
+		IndexFile file = files.get(fileMd5);
+		Set<IndexEntry> sharers = file==null ? null : file.sharers.get(filename);
+		if(sharers==null) {
+			return Collections.emptyList();
+		}
+		return new AbstractCollection<IndexElement>() {
+			@Override
+			public Iterator<IndexElement> iterator() {
+				// an entry whose file was released while iterating has no element
+				return sharers.stream().map(IndexEntry::toElement).filter(Objects::nonNull).iterator();
+			}
+
+			@Override
+			public int size() {
+				return sharers.size();
+			}
+		};
+	}
+	
+	/**
+	 * Find the descriptor that an element was shared with.
+	 * @param ip the ip address of the sharer
+	 * @param port the port number of the sharer
+	 * @param filename the filename of the element
+	 * @param fileMd5 the MD5 hash of the file
+	 * @return the descriptor, or null if the element is not in the index
+	 */
+	public FileDescr descriptor(String ip, int port, String filename, String fileMd5) {
+		if(baseFor(fileMd5)!=null) {
+			for(IndexElement element : lookup(filename,fileMd5)) {
+				if(element.ip.equals(ip) && element.port==port) {
+					return element.fileDescr;
+				}
+			}
+			return null;
+		}
+		IndexFile file = files.get(fileMd5);
+		if(file==null) return null;
+		IndexEntry entry = file.entries.get(new IndexEntry(ip,port,file,null,filename,null));
+		if(entry==null) return null;
+		IndexElement element = entry.toElement();
+		return element!=null ? element.fileDescr : null;
+	}
+	
+	/**
+	 * @return the MD5 hashes of the files in the index, once it has been hydrated
+	 */
+	public String[] getFileMd5s() {
+		return files.keySet().toArray(new String[0]);
+	}
+	
+	/**
+	 * Visit every element of a file, once the index has been hydrated.
+	 * @param fileMd5 the MD5 hash of the file
+	 * @param consumer the visitor
+	 */
+	public void forEachElement(String fileMd5, Consumer<IndexElement> consumer) {
+		IndexFile file = files.get(fileMd5);
+		if(file==null) return;
+		for(IndexEntry entry : file.entries.keySet()) {
+			IndexElement element = entry.toElement();
+			if(element!=null) {
+				consumer.accept(element);
+			}
+		}
+	}
+	
+	/**
+	 * Visit every element of the index, once it has been hydrated. Elements shared or
+	 * dropped while visiting may or may not be visited.
+	 * @param consumer the visitor
+	 */
+	public void forEachElement(Consumer<IndexElement> consumer) {
+		for(IndexFile file : files.values()) {
+			for(IndexEntry entry : file.entries.keySet()) {
+				IndexElement element = entry.toElement();
+				if(element!=null) {
+					consumer.accept(element);
 				}
 			}
-			return hits;
-		} else {
-			return new HashSet<IndexElement>();
 		}
 	}
 	
@@ -0,0 +1,377 @@
+package comp90015.idxsrv.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A dictionary of the tokens of lower cased filenames, with the number of entries
+ * whose filename contains each token, from which prefixes are completed. A token is
+ * a maximal run of letters and digits, so "My.Movie-2021.mkv" has the tokens "my",
+ * "movie", "2021" and "mkv".
+ * <p>
+ * The tokens are held in a radix tree, a trie whose chains of single children are
+ * merged into one node, and each node that has more than {@link #MAX_COMPLETIONS}
+ * tokens below it keeps its most popular ones. The completions of a prefix are
+ * therefore read from the node the prefix leads to, or from its few tokens, no matter
+ * how many tokens the prefix starts. A node's most popular tokens are merged from
+ * those of its children, which is exact since a token that is among the most
+ * popular of a node is also among the most popular of the child it is below.
+ * <p>
+ * Nodes are never changed once made. A change of count makes new nodes on the
+ * path from the root to the token, and the new root replaces the old one in a map
+ * from the first character of tokens, so that changes to tokens with different
+ * first characters do not wait for each other, and readers never block.
+ * @author aaron
+ *
+ */
+public class KeywordIndex {
+
+	/**
+	 * The most completions returned for a prefix.
+	 */
+	public static final int MAX_COMPLETIONS = 32;
+
+	/**
+	 * A token and its count.
+	 */
+	private static class Term {
+		final String token;
+		final int count;
+
+		Term(String token, int count) {
+			this.token=token;
+			this.count=count;
+		}
+	}
+
+	/**
+	 * The ranking of completions, best first: most popular, then in order.
+	 */
+	private static final Comparator<Term> COMPLETION_RANKING = Comparator
+			.comparingInt((Term term) -> -term.count)
+			.thenComparing(term -> term.token);
+
+	private static final Node[] NO_CHILDREN = new Node[0];
+
+	/**
+	 * A node of the radix tree. The prefix of the node is the first depth characters
+	 * of rep, which is any token below the node, or the node's own token.
+	 */
+	private static class Node {
+		final String rep;
+		final int depth;
+
+		/**
+		 * The count of the token that is the node's prefix, or 0 if it is not a token.
+		 */
+		final int count;
+
+		/**
+		 * The number of tokens at or below the node.
+		 */
+		final int size;
+
+		/**
+		 * The children, in order of the character that follows the node's prefix.
+		 */
+		final Node[] children;
+
+		/**
+		 * The most popular tokens at or below the node, best first, or null if there
+		 * are no more than {@link #MAX_COMPLETIONS} of them.
+		 */
+		final Term[] top;
+
+		/**
+		 * @param previous the most popular tokens of the node that this one replaces
+		 * after a change of count, or null to find them from the children
+		 * @param changed the token whose count changed, and its new count
+		 * @param oldCount the token's count before the change
+		 */
+		Node(String rep, int depth, int count, Node[] children, Term[] previous, Term changed, int oldCount) {
+			this.rep=rep;
+			this.depth=depth;
+			this.count=count;
+			this.children=children;
+			int size = count>0 ? 1 : 0;
+			for(Node child : children) {
+				size+=child.size;
+			}
+			this.size=size;
+			Term[] top = null;
+			if(size>MAX_COMPLETIONS) {
+				if(previous!=null) {
+					top=adjust(previous,changed,oldCount);
+				}
+				if(top==null) {
+					top=best(this);
+				}
+			}
+			this.top=top;
+		}
+
+		Node(String rep, int depth, int count, Node[] children) {
+			this(rep,depth,count,children,null,null,0);
+		}
+
+		char next(int i) {
+			return children[i].rep.charAt(depth);
+		}
+	}
+
+	/**
+	 * A map from the first character of tokens to the root of their tree.
+	 */
+	private ConcurrentHashMap<Character,Node> roots = new ConcurrentHashMap<>();
+
+	/**
+	 * Add an entry's filename tokens to the dictionary.
+	 * @param entry the entry to add
+	 */
+	public void add(IndexEntry entry) {
+		for(String token : tokens(entry.filename.toLowerCase())) {
+			roots.compute(token.charAt(0),(c,root) -> update(root,token,1));
+		}
+	}
+
+	/**
+	 * Remove an entry's filename tokens from the dictionary.
+	 * @param entry the entry to remove
+	 */
+	public void remove(IndexEntry entry) {
+		for(String token : tokens(entry.filename.toLowerCase())) {
+			roots.computeIfPresent(token.charAt(0),(c,root) -> update(root,token,-1));
+		}
+	}
+
+	/**
+	 * Change the count of a token in the tree of its first character.
+	 * @return the new root, or null if the tree has no tokens left
+	 */
+	private static Node update(Node root, String token, int delta) {
+		int oldCount = count(root,token);
+		if(oldCount+delta<0) return root;
+		return update(root,token,delta,new Term(token,oldCount+delta),oldCount);
+	}
+
+	/**
+	 * Complete a prefix to the tokens that start with it, most popular first, where
+	 * the popularity of a token is the number of entries whose filename contains it.
+	 * @param prefix the lower cased prefix
+	 * @param max the most completions to return, up to {@link #MAX_COMPLETIONS}
+	 * @return the completions, most popular first, and then in order
+	 */
+	public ArrayList<String> complete(String prefix, int max) {
+		ArrayList<String> completions = new ArrayList<>();
+		if(prefix.isEmpty() || max<=0) return completions;
+		Node node = find(roots.get(prefix.charAt(0)),prefix);
+		if(node==null) return completions;
+		Term[] top = node.top!=null ? node.top : best(node);
+		for(int i=0;i<top.length && i<max;i++) {
+			completions.add(top[i].token);
+		}
+		return completions;
+	}
+
+	/**
+	 * @param term a token
+	 * @return the number of entries whose filename contains the token
+	 */
+	public int popularity(String term) {
+		if(term.isEmpty()) return 0;
+		return count(roots.get(term.charAt(0)),term);
+	}
+
+	/**
+	 * @return the count of a token in the tree below a node
+	 */
+	private static int count(Node node, String token) {
+		node = find(node,token);
+		return node!=null && node.depth==token.length() ? node.count : 0;
+	}
+
+	/**
+	 * @return the highest node at or below the given one whose prefix starts with the
+	 * given prefix, or null
+	 */
+	private static Node find(Node node, String prefix) {
+		while(node!=null) {
+			int n = Math.min(node.depth,prefix.length());
+			if(!node.rep.regionMatches(0,prefix,0,n)) return null;
+			if(node.depth>=prefix.length()) return node;
+			node = child(node,prefix.charAt(node.depth));
+		}
+		return null;
+	}
+
+	private static Node child(Node node, char c) {
+		int i = indexOf(node,c);
+		return i>=0 ? node.children[i] : null;
+	}
+
+	/**
+	 * @return the index of the child that follows the node's prefix with c, or
+	 * -(insertion point)-1 if there is none
+	 */
+	private static int indexOf(Node node, char c) {
+		int lo = 0;
+		int hi = node.children.length-1;
+		while(lo<=hi) {
+			int mid = (lo+hi)>>>1;
+			char m = node.next(mid);
+			if(m<c) {
+				lo=mid+1;
+			} else if(m>c) {
+				hi=mid-1;
+			} else {
+				return mid;
+			}
+		}
+		return -lo-1;
+	}
+
+	/**
+	 * Change the count of a token in the tree below a node whose prefix shares at
+	 * least the token's first character.
+	 * @param changed the token and its new count
+	 * @param oldCount the token's count before the change
+	 * @return the new node, or null if no tokens are left below it
+	 */
+	private static Node update(Node node, String token, int delta, Term changed, int oldCount) {
+		if(node==null) {
+			return delta>0 ? new Node(token,token.length(),delta,NO_CHILDREN) : null;
+		}
+		int common = 0;
+		int n = Math.min(node.depth,token.length());
+		while(common<n && node.rep.charAt(common)==token.charAt(common)) {
+			common++;
+		}
+		if(common<node.depth) {
+			// the token leaves the node's prefix part way, so it is not below the node
+			if(delta<0) return node;
+			if(common==token.length()) {
+				return new Node(token,common,delta,new Node[] {node});
+			}
+			Node leaf = new Node(token,token.length(),delta,NO_CHILDREN);
+			Node[] children = node.rep.charAt(common)<token.charAt(common)
+					? new Node[] {node,leaf} : new Node[] {leaf,node};
+			return new Node(token,common,0,children);
+		}
+		if(token.length()==node.depth) {
+			return make(token,node.depth,changed.count,node.children,node.top,changed,oldCount);
+		}
+		Node[] children = node.children;
+		int i = indexOf(node,token.charAt(node.depth));
+		if(i>=0) {
+			Node child = update(children[i],token,delta,changed,oldCount);
+			if(child==children[i]) return node;
+			if(child!=null) {
+				children = children.clone();
+				children[i]=child;
+			} else {
+				Node[] fewer = new Node[children.length-1];
+				System.arraycopy(children,0,fewer,0,i);
+				System.arraycopy(children,i+1,fewer,i,fewer.length-i);
+				children=fewer;
+			}
+		} else if(delta>0) {
+			i=-i-1;
+			Node[] more = new Node[children.length+1];
+			System.arraycopy(children,0,more,0,i);
+			more[i]=new Node(token,token.length(),delta,NO_CHILDREN);
+			System.arraycopy(children,i,more,i+1,children.length-i);
+			children=more;
+		} else {
+			return node;
+		}
+		return make(node.rep,node.depth,node.count,children,node.top,changed,oldCount);
+	}
+
+	/**
+	 * Make the node that replaces one after a change of count, or merge it into its
+	 * child if it is no longer a token or a branch.
+	 */
+	private static Node make(String rep, int depth, int count, Node[] children,
+			Term[] previous, Term changed, int oldCount) {
+		if(count==0 && children.length==0) return null;
+		if(count==0 && children.length==1) return children[0];
+		return new Node(count>0 ? rep : children[0].rep,depth,count,children,previous,changed,oldCount);
+	}
+
+	/**
+	 * Find the most popular tokens of a node from those it had before one token's
+	 * count changed. An increase can only move the token up, but after a decrease a
+	 * token that was not among the most popular may have to take its place, unless
+	 * it still ranks ahead of the last of them.
+	 * @return the most popular tokens, or null if they must be found from the children
+	 */
+	private static Term[] adjust(Term[] previous, Term changed, int oldCount) {
+		int i = 0;
+		while(i<previous.length && !previous[i].token.equals(changed.token)) {
+			i++;
+		}
+		if(changed.count<oldCount) {
+			if(i==previous.length) return previous;
+			if(changed.count==0 || i==previous.length-1
+					|| COMPLETION_RANKING.compare(changed,previous[previous.length-1])>0) {
+				return null;
+			}
+		}
+		Term[] top = Arrays.copyOf(previous,previous.length+1);
+		top[i]=changed;
+		Arrays.sort(top,0,i==previous.length ? top.length : previous.length,COMPLETION_RANKING);
+		return Arrays.copyOf(top,Math.min(previous.length,MAX_COMPLETIONS));
+	}
+
+	/**
+	 * @return the most popular tokens at or below a node, best first
+	 */
+	private static Term[] best(Node node) {
+		ArrayList<Term> terms = new ArrayList<>();
+		collect(node,terms);
+		Term[] best = terms.toArray(new Term[0]);
+		Arrays.sort(best,COMPLETION_RANKING);
+		return best.length>MAX_COMPLETIONS ? Arrays.copyOf(best,MAX_COMPLETIONS) : best;
+	}
+
+	/**
+	 * Add the candidates for a node's most popular tokens: its own token and the most
+	 * popular of each child.
+	 */
+	private static void collect(Node node, ArrayList<Term> terms) {
+		if(node.count>0) {
+			terms.add(new Term(node.rep,node.count));
+		}
+		for(Node child : node.children) {
+			if(child.top!=null) {
+				terms.addAll(Arrays.asList(child.top));
+			} else {
+				collect(child,terms);
+			}
+		}
+	}
+
+	/**
+	 * Split a lower cased string into its distinct tokens.
+	 * @param str the lower cased string
+	 * @return the tokens, in order of first appearance
+	 */
+	public static Set<String> tokens(String str) {
+		LinkedHashSet<String> tokens = new LinkedHashSet<>();
+		int start = -1;
+		for(int i=0;i<=str.length();i++) {
+			boolean alnum = i<str.length() && Character.isLetterOrDigit(str.charAt(i));
+			if(alnum && start<0) {
+				start=i;
+			} else if(!alnum && start>=0) {
+				tokens.add(str.substring(start,i));
+				start=-1;
+			}
+		}
+		return tokens;
+	}
+}
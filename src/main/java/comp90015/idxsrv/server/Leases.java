@@ -0,0 +1,158 @@
+package comp90015.idxsrv.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * Leases on the endpoints, i.e. the ip address and port, of sharers. Sharing a file
+ * takes out or renews the lease of the sharer's endpoint, and a sharer keeps its
+ * lease with a cheap heartbeat. When a lease expires, every element shared from the
+ * endpoint is dropped, so peers that crash without dropping their files do not stay
+ * in the index.
+ * <p>
+ * Renewing a lease only moves its expiry time. Leases are kept in a
+ * {@link TimerWheel}, and the lease thread advances the wheel every tick. A lease
+ * that comes due but was renewed in the meantime is simply scheduled again, so
+ * expired leases are found without scanning the live ones.
+ * @author aaron
+ *
+ */
+public class Leases extends Thread {
+
+	/**
+	 * The resolution of lease expiry, in milliseconds.
+	 */
+	private static final long TICK = 100;
+
+	private static class Lease {
+		String ip;
+		int port;
+		volatile long expiry;
+		boolean scheduled;
+		boolean expired;
+
+		Lease(String ip, int port) {
+			this.ip=ip;
+			this.port=port;
+		}
+	}
+
+	private ConcurrentHashMap<String,Lease> leases = new ConcurrentHashMap<>();
+
+	private TimerWheel<Lease> wheel;
+
+	private long ttl;
+
+	private IndexMgr indexMgr;
+
+	private ITerminalLogger logger;
+
+	/**
+	 * Create the leases, which are expired once the thread is started.
+	 * @param ttl the time to live of a lease from its last renewal, in milliseconds
+	 * @param indexMgr the index to drop the elements of expired endpoints from
+	 * @param logger an object that implements the terminal logger interface
+	 */
+	public Leases(long ttl, IndexMgr indexMgr, ITerminalLogger logger) {
+		this.ttl=ttl;
+		this.indexMgr=indexMgr;
+		this.logger=logger;
+		wheel = new TimerWheel<>(TICK,now());
+	}
+
+	/**
+	 * Start the lease thread as a daemon, so that it does not keep the process alive.
+	 */
+	@Override
+	public void start() {
+		setDaemon(true);
+		super.start();
+	}
+
+	/**
+	 * @return the time to live of a lease in milliseconds
+	 */
+	public long getTtl() {
+		return ttl;
+	}
+
+	/**
+	 * Take out or renew the lease of an endpoint.
+	 * @param ip the ip address of the sharer
+	 * @param port the port of the sharer
+	 */
+	public void renew(String ip, int port) {
+		String key = ip+":"+port;
+		while(true) {
+			Lease lease = leases.computeIfAbsent(key,k -> new Lease(ip,port));
+			synchronized(lease) {
+				if(lease.expired) continue;
+				lease.expiry=now()+ttl;
+				if(!lease.scheduled) {
+					lease.scheduled=true;
+					wheel.schedule(lease,lease.expiry);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Renew the lease of an endpoint that shares at least one element.
+	 * @param ip the ip address of the sharer
+	 * @param port the port of the sharer
+	 * @return false if the endpoint shares nothing, in which case it must share its
+	 * files again
+	 */
+	public boolean heartbeat(String ip, int port) {
+		if(!leases.containsKey(ip+":"+port) && !indexMgr.hasEndpoint(ip,port)) {
+			return false;
+		}
+		renew(ip,port);
+		return true;
+	}
+
+	/**
+	 * An endpoint without a lease, such as one recovered from the index log before
+	 * its lease is taken out, is taken to be live.
+	 * @param ip the ip address of the sharer
+	 * @param port the port of the sharer
+	 * @return false if the lease of the endpoint has expired
+	 */
+	public boolean isLive(String ip, int port) {
+		Lease lease = leases.get(ip+":"+port);
+		return lease==null || lease.expiry>now();
+	}
+
+	@Override
+	public void run() {
+		logger.logInfo("Lease thread running.");
+		while(!isInterrupted()) {
+			try {
+				Thread.sleep(TICK);
+			} catch (InterruptedException e) {
+				break;
+			}
+			long now = now();
+			for(Lease lease : wheel.advance(now)) {
+				synchronized(lease) {
+					if(lease.expiry>now) {
+						wheel.schedule(lease,lease.expiry);
+						continue;
+					}
+					// holding the lock, so the endpoint cannot be renewed until it is dropped
+					lease.expired=true;
+					int dropped = indexMgr.dropEndpoint(lease.ip,lease.port);
+					leases.remove(lease.ip+":"+lease.port,lease);
+					logger.logInfo("Lease of "+lease.ip+":"+lease.port+" expired, dropped "+dropped+" shares.");
+				}
+			}
+		}
+		logger.logInfo("Lease thread completed.");
+	}
+
+	private static long now() {
+		return System.nanoTime()/1000000;
+	}
+}
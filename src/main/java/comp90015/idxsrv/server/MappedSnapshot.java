@@ -0,0 +1,352 @@
+package comp90015.idxsrv.server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * A binary snapshot of the index that is memory mapped and read in place, so that a
+ * restarted server can serve searches and lookups as soon as the file is mapped,
+ * without first building an object for every element.
+ * <p>
+ * The file starts with a magic number, followed by one record per element, sorted
+ * by file MD5 hash and then filename so that the elements of a file are adjacent,
+ * followed by a table of record offsets, then the records' {@link SnapshotIndex},
+ * and finally the offsets of the index and the table and the number of records.
+ * Strings are written as their length and UTF-8 bytes. A snapshot must be smaller
+ * than 2GB, the most that can be mapped at once.
+ * <p>
+ * A snapshot written before the index was added to the file is still read. Its
+ * index is built by a background thread once {@link #buildIndex(ITerminalLogger)}
+ * is called, and until it is ready searches and endpoint drops scan every record.
+ * @author aaron
+ *
+ */
+public class MappedSnapshot {
+
+	private static final long MAGIC = 0x4944585352563032L;
+
+	/**
+	 * The magic number of a snapshot without an index.
+	 */
+	private static final long UNINDEXED_MAGIC = 0x4944585352563031L;
+
+	private MappedByteBuffer buffer;
+
+	private int count;
+
+	private int table;
+
+	/**
+	 * The index of the records, or null until an unindexed snapshot's index is built.
+	 */
+	private volatile SnapshotIndex index;
+
+	private MappedSnapshot(MappedByteBuffer buffer) throws IOException {
+		this.buffer=buffer;
+		int limit = buffer.limit();
+		if(limit<16 || (buffer.getLong(0)!=MAGIC && buffer.getLong(0)!=UNINDEXED_MAGIC)) {
+			throw new IOException("Not an index snapshot");
+		}
+		table=buffer.getInt(limit-8);
+		count=buffer.getInt(limit-4);
+		if(buffer.getLong(0)==MAGIC) {
+			index=new SnapshotIndex(buffer,buffer.getInt(limit-12));
+		}
+	}
+
+	/**
+	 * Map a snapshot file.
+	 * @param path the snapshot file
+	 * @return the mapped snapshot
+	 * @throws IOException if the file cannot be mapped or is not a snapshot
+	 */
+	public static MappedSnapshot open(Path path) throws IOException {
+		try(FileChannel channel = FileChannel.open(path,StandardOpenOption.READ)) {
+			if(channel.size()>Integer.MAX_VALUE) {
+				throw new IOException("Snapshot is too large to map");
+			}
+			return new MappedSnapshot(channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size()));
+		}
+	}
+
+	/**
+	 * Write the share records as a snapshot file, forced to disk.
+	 * @param path the snapshot file
+	 * @param records the share records, one per element
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(Path path, Collection<IndexLogRecord> records) throws IOException {
+		ArrayList<IndexLogRecord> sorted = new ArrayList<>(records);
+		sorted.sort(Comparator.comparing((IndexLogRecord record) -> record.fileDescr.getFileMd5())
+				.thenComparing(record -> record.filename));
+		int[] offsets = new int[sorted.size()];
+		try(FileOutputStream file = new FileOutputStream(path.toFile())) {
+			CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(file));
+			DataOutputStream out = new DataOutputStream(counter);
+			out.writeLong(MAGIC);
+			for(int i=0;i<sorted.size();i++) {
+				offsets[i]=(int) counter.count;
+				IndexLogRecord record = sorted.get(i);
+				FileDescr fileDescr = record.fileDescr;
+				String[] blockMd5 = CompactDescr.blockHashes(fileDescr);
+				if(blockMd5==null) {
+					throw new IOException("Inconsistent descriptor for "+record.getSharerKey());
+				}
+				writeString(out,fileDescr.getFileMd5());
+				writeString(out,record.filename);
+				writeString(out,record.ip);
+				out.writeInt(record.port);
+				writeString(out,record.secret);
+				out.writeLong(fileDescr.getFileLength());
+				out.writeInt(fileDescr.getBlockLength());
+				out.writeInt(fileDescr.getNumBlocks());
+				if(fileDescr.getFileLength()>0) {
+					out.writeInt(blockMd5.length);
+					for(String hash : blockMd5) {
+						writeString(out,hash);
+					}
+				} else {
+					out.writeInt(-1);
+				}
+				// the table and its offset must also fit below the limit
+				if(counter.count+4L*(offsets.length+2)>Integer.MAX_VALUE) {
+					throw new IOException("Snapshot is too large to map");
+				}
+			}
+			int table = (int) counter.count;
+			for(int offset : offsets) {
+				out.writeInt(offset);
+			}
+			long index = counter.count;
+			SnapshotIndex.write(out,sorted.size(),i -> sorted.get(i).filename,
+					i -> sorted.get(i).ip+":"+sorted.get(i).port);
+			if(counter.count+12>Integer.MAX_VALUE) {
+				throw new IOException("Snapshot is too large to map");
+			}
+			out.writeInt((int) index);
+			out.writeInt(table);
+			out.writeInt(offsets.length);
+			out.flush();
+			file.getChannel().force(false);
+		}
+	}
+
+	/**
+	 * Counts the bytes written as a long, since the count kept by a DataOutputStream
+	 * stops at Integer.MAX_VALUE.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b,off,len);
+			count+=len;
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Start a background thread that builds the index of a snapshot written without
+	 * one, held on the heap. Does nothing if the snapshot has its index.
+	 * @param logger an object that implements the terminal logger interface
+	 */
+	public void buildIndex(ITerminalLogger logger) {
+		if(index!=null) return;
+		Thread builder = new Thread(() -> {
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bytes);
+				SnapshotIndex.write(out,count,this::filename,this::endpoint);
+				out.flush();
+				index=new SnapshotIndex(ByteBuffer.wrap(bytes.toByteArray()),0);
+				logger.logInfo("Indexed the "+count+" records of the snapshot.");
+			} catch (IOException | OutOfMemoryError e) {
+				logger.logWarn("Could not index the snapshot, searches scan it: "+e.getMessage());
+			}
+		},"snapshot-index");
+		builder.setDaemon(true);
+		builder.start();
+	}
+
+	/**
+	 * @return true if the snapshot's index is ready
+	 */
+	public boolean isIndexed() {
+		return index!=null;
+	}
+
+	/**
+	 * Find the candidate records for a search from the snapshot's index.
+	 * @param keywords the lower cased keywords
+	 * @return the candidates in order, or null if all records must be scanned, which
+	 * they must be until the index is ready
+	 * @see SnapshotIndex#candidates(String[])
+	 */
+	public int[] candidates(String[] keywords) {
+		SnapshotIndex index = this.index;
+		return index!=null ? index.candidates(keywords) : null;
+	}
+
+	/**
+	 * @param endpoint an endpoint IP:PORT
+	 * @return the endpoint's records in order, possibly none, found by scanning every
+	 * record until the index is ready
+	 */
+	public int[] records(String endpoint) {
+		SnapshotIndex index = this.index;
+		if(index!=null) return index.records(endpoint);
+		return IntStream.range(0,count).filter(i -> endpoint(i).equals(endpoint)).toArray();
+	}
+
+	/**
+	 * @return the number of records
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @param i the index of a record
+	 * @return the MD5 hash of the record's file
+	 */
+	public String fileMd5(int i) {
+		return readString(offset(i));
+	}
+
+	/**
+	 * @param i the index of a record
+	 * @return the record's filename
+	 */
+	public String filename(int i) {
+		int pos = offset(i);
+		return readString(pos+4+buffer.getInt(pos));
+	}
+
+	/**
+	 * @param i the index of a record
+	 * @return the ip address and port of the record's sharer, as IP:PORT
+	 */
+	public String endpoint(int i) {
+		int[] pos = {offset(i)};
+		next(pos);
+		next(pos);
+		String ip = next(pos);
+		return ip+":"+buffer.getInt(pos[0]);
+	}
+
+	/**
+	 * Read a whole record.
+	 * @param i the index of a record
+	 * @return the record as a share record
+	 */
+	public IndexLogRecord record(int i) {
+		int[] pos = {offset(i)};
+		String fileMd5 = next(pos);
+		String filename = next(pos);
+		String ip = next(pos);
+		int port = buffer.getInt(pos[0]);
+		pos[0]+=4;
+		String secret = next(pos);
+		long fileLength = buffer.getLong(pos[0]);
+		int blockLength = buffer.getInt(pos[0]+8);
+		int numBlocks = buffer.getInt(pos[0]+12);
+		int numHashes = buffer.getInt(pos[0]+16);
+		pos[0]+=20;
+		String[] blockMd5 = null;
+		if(numHashes>=0) {
+			blockMd5 = new String[numHashes];
+			for(int b=0;b<numHashes;b++) {
+				blockMd5[b]=next(pos);
+			}
+		}
+		FileDescr fileDescr = new FileDescr(fileLength,blockLength,numBlocks,fileMd5,blockMd5);
+		return new IndexLogRecord(IndexLogRecord.SHARE,ip,port,filename,null,fileDescr,secret);
+	}
+
+	/**
+	 * Find the records of a file by binary search.
+	 * @param fileMd5 the MD5 hash of the file
+	 * @return the index of the first record of the file, or of the record it would
+	 * be before if there is none
+	 */
+	public int first(String fileMd5) {
+		int lo = 0;
+		int hi = count;
+		while(lo<hi) {
+			int mid = (lo+hi)>>>1;
+			if(fileMd5(mid).compareTo(fileMd5)<0) {
+				lo=mid+1;
+			} else {
+				hi=mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Count the records of a file under a given filename.
+	 * @param filename the filename
+	 * @param fileMd5 the MD5 hash of the file
+	 * @return the number of records
+	 */
+	public int seedCount(String filename, String fileMd5) {
+		int seeds = 0;
+		for(int i=first(fileMd5);i<count && fileMd5(i).equals(fileMd5);i++) {
+			if(filename(i).equals(filename)) {
+				seeds++;
+			}
+		}
+		return seeds;
+	}
+
+	private int offset(int i) {
+		return buffer.getInt(table+4*i);
+	}
+
+	private String readString(int pos) {
+		int length = buffer.getInt(pos);
+		byte[] bytes = new byte[length];
+		buffer.get(pos+4,bytes,0,length);
+		return new String(bytes,StandardCharsets.UTF_8);
+	}
+
+	private String next(int[] pos) {
+		String str = readString(pos[0]);
+		pos[0]+=4+buffer.getInt(pos[0]);
+		return str;
+	}
+}
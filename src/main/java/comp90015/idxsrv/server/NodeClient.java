@@ -0,0 +1,230 @@
+package comp90015.idxsrv.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+import comp90015.idxsrv.message.AuthenticateReply;
+import comp90015.idxsrv.message.AuthenticateRequest;
+import comp90015.idxsrv.message.JsonSerializationException;
+import comp90015.idxsrv.message.Message;
+import comp90015.idxsrv.message.MessageFactory;
+
+/**
+ * A client of another index server, used by the nodes of a cluster to send each
+ * other requests. Requests are sent on keep alive sessions, which are kept for
+ * reuse once the reply is read, and which authenticate with the node secret.
+ * <p>
+ * An idle session that the other server has since closed is discarded before it is
+ * used. A request is only sent again if sending it on a reused session failed,
+ * since the server cannot have processed a request whose line it did not receive.
+ * Once the request has been written, a failure to read the reply is not retried, as
+ * the request may have been processed, and shares and drops are not idempotent for
+ * the sharer's sharing secret checks and the listeners of the index.
+ * @author aaron
+ *
+ */
+public class NodeClient {
+
+	/**
+	 * The most idle sessions kept for reuse.
+	 */
+	private static final int MAX_IDLE = 8;
+
+	private static class Session {
+		Socket socket;
+		BufferedReader reader;
+		BufferedWriter writer;
+	}
+
+	private String host;
+
+	private int port;
+
+	private String secret;
+
+	private String nodeSecret;
+
+	private int timeout;
+
+	private ArrayDeque<Session> idle = new ArrayDeque<>();
+
+	/**
+	 * Create a client of the index server at the given node.
+	 * @param node the server, as ADDRESS:PORT
+	 * @param secret the secret of the server
+	 * @param nodeSecret the secret that index servers present to each other, or null
+	 * @param timeout the connect and read timeout in milliseconds
+	 */
+	public NodeClient(String node, String secret, String nodeSecret, int timeout) {
+		int colon = node.lastIndexOf(':');
+		this.host=node.substring(0,colon);
+		this.port=Integer.parseInt(node.substring(colon+1));
+		this.secret=secret;
+		this.nodeSecret=nodeSecret;
+		this.timeout=timeout;
+	}
+
+	/**
+	 * Send a request and wait for its reply.
+	 * @param msg the request
+	 * @return the reply
+	 * @throws IOException if the server cannot be reached or sends no valid reply
+	 */
+	public Message request(Message msg) throws IOException {
+		String request = msg.toString();
+		while(true) {
+			Session session;
+			synchronized(idle) {
+				session = idle.poll();
+			}
+			boolean reused = session!=null;
+			if(reused && isClosed(session)) {
+				session.socket.close();
+				continue;
+			}
+			if(session==null) {
+				session = open();
+			}
+			try {
+				write(session,request);
+			} catch (IOException e) {
+				session.socket.close();
+				if(!reused) throw e;
+				continue;
+			}
+			Message reply;
+			try {
+				reply = read(session);
+			} catch (IOException e) {
+				session.socket.close();
+				throw e;
+			}
+			synchronized(idle) {
+				if(idle.size()<MAX_IDLE) {
+					idle.add(session);
+					session=null;
+				}
+			}
+			if(session!=null) {
+				session.socket.close();
+			}
+			return reply;
+		}
+	}
+
+	/**
+	 * Check whether the server has closed an idle session, by waiting a moment for
+	 * the end of its stream. An idle session is sent nothing, so anything else that
+	 * is read also means the session cannot be used.
+	 */
+	private boolean isClosed(Session session) {
+		try {
+			session.socket.setSoTimeout(1);
+			session.reader.mark(1);
+			session.reader.read();
+			return true;
+		} catch (SocketTimeoutException e) {
+			try {
+				session.reader.reset();
+				session.socket.setSoTimeout(timeout);
+				return false;
+			} catch (IOException e2) {
+				return true;
+			}
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Check whether the server is up, by connecting to it on a new session and
+	 * waiting for its welcome. A server that is too busy to reply to a request in
+	 * time may still do so.
+	 * @return true if the server sent its welcome
+	 */
+	public boolean ping() {
+		try(Socket socket = new Socket()) {
+			socket.connect(new InetSocketAddress(host,port),timeout);
+			socket.setSoTimeout(timeout);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),StandardCharsets.UTF_8));
+			return reader.readLine()!=null;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Close the idle sessions.
+	 */
+	public void close() {
+		synchronized(idle) {
+			for(Session session : idle) {
+				try {
+					session.socket.close();
+				} catch (IOException e) {
+					// already closed
+				}
+			}
+			idle.clear();
+		}
+	}
+
+	private Session open() throws IOException {
+		Session session = new Session();
+		session.socket = new Socket();
+		try {
+			session.socket.connect(new InetSocketAddress(host,port),timeout);
+			session.socket.setSoTimeout(timeout);
+			session.socket.setTcpNoDelay(true);
+			session.reader = new BufferedReader(new InputStreamReader(session.socket.getInputStream(),StandardCharsets.UTF_8));
+			session.writer = new BufferedWriter(new OutputStreamWriter(session.socket.getOutputStream(),StandardCharsets.UTF_8));
+			if(session.reader.readLine()==null) {
+				throw new IOException("No welcome from "+host+":"+port);
+			}
+			AuthenticateRequest authenticate = new AuthenticateRequest(secret,true);
+			authenticate.nodeSecret = nodeSecret;
+			write(session,authenticate.toString());
+			Message reply = read(session);
+			if(reply.getClass().getName()!=AuthenticateReply.class.getName()
+					|| !((AuthenticateReply) reply).success
+					|| !Boolean.TRUE.equals(((AuthenticateReply) reply).keepAlive)
+					|| (nodeSecret!=null && !Boolean.TRUE.equals(((AuthenticateReply) reply).node))) {
+				throw new IOException("Could not authenticate with "+host+":"+port);
+			}
+			return session;
+		} catch (IOException e) {
+			session.socket.close();
+			throw e;
+		}
+	}
+
+	private static void write(Session session, String request) throws IOException {
+		session.writer.write(request);
+		session.writer.newLine();
+		session.writer.flush();
+	}
+
+	private static Message read(Session session) throws IOException {
+		String line = session.reader.readLine();
+		if(line==null) {
+			throw new IOException("Connection closed");
+		}
+		try {
+			Object reply = MessageFactory.deserialize(line);
+			if(!(reply instanceof Message)) {
+				throw new IOException("Invalid reply");
+			}
+			return (Message) reply;
+		} catch (JsonSerializationException e) {
+			throw new IOException("Invalid reply");
+		}
+	}
+}
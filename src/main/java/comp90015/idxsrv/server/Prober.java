@@ -0,0 +1,315 @@
+package comp90015.idxsrv.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * Checks that the endpoints of sharers, i.e. the ip address and port they serve
+ * blocks from, can still be connected to, so that lookups do not send peers to
+ * sharers that have gone away. An endpoint that refuses or times out
+ * {@link #MAX_FAILURES} probes in a row has every element it shares dropped.
+ * <p>
+ * Probes are scheduled in a {@link TimerWheel}, spread over the probe interval so
+ * that endpoints shared at the same time are not probed together. Each probe is a
+ * non-blocking connect registered with the prober thread's selector, and at most
+ * a configured number are in progress at once, so a large index only stretches the
+ * time between probes rather than the number of open sockets or threads. Due
+ * endpoints wait in a queue for a probe to finish. An endpoint is only ever in one
+ * of the wheel, the queue or a probe, and the wheel is not advanced while the queue
+ * holds enough endpoints for a round of probes, so the queue never holds more than
+ * the endpoints that came due in one tick on top of that.
+ * <p>
+ * After a failed probe the endpoint is probed again after {@link #RETRY_DELAY}
+ * milliseconds, doubled for each further failure and capped at the probe interval.
+ * An endpoint whose sharer shares again while it is being probed is not dropped,
+ * and dropping its elements stops as soon as it shares again, so that a sharer that
+ * comes back does not lose the shares it has just made.
+ * @author aaron
+ *
+ */
+public class Prober extends Thread implements IIndexListener {
+
+	/**
+	 * The resolution of probe times, in milliseconds.
+	 */
+	private static final long TICK = 100;
+
+	/**
+	 * The number of failed probes in a row after which an endpoint is dropped.
+	 */
+	public static final int MAX_FAILURES = 3;
+
+	/**
+	 * The time in milliseconds after a first failed probe to probe again.
+	 */
+	public static final long RETRY_DELAY = 1000;
+
+	private static class Endpoint {
+		String ip;
+		int port;
+		int failures;
+
+		/**
+		 * The time the endpoint last shared, changed while holding its map entry.
+		 */
+		volatile long lastShared;
+
+		Endpoint(String ip, int port) {
+			this.ip=ip;
+			this.port=port;
+		}
+	}
+
+	/**
+	 * A connection attempt in progress.
+	 */
+	private static class Probe {
+		Endpoint endpoint;
+		long started;
+		long deadline;
+
+		Probe(Endpoint endpoint, long started, long deadline) {
+			this.endpoint=endpoint;
+			this.started=started;
+			this.deadline=deadline;
+		}
+	}
+
+	private ConcurrentHashMap<String,Endpoint> endpoints = new ConcurrentHashMap<>();
+
+	private TimerWheel<Endpoint> wheel;
+
+	/**
+	 * The endpoints that are due but are waiting for a probe to complete, only used
+	 * by the prober thread.
+	 */
+	private ArrayDeque<Endpoint> due = new ArrayDeque<>();
+
+	/**
+	 * The number of probes in progress, only used by the prober thread.
+	 */
+	private int probes;
+
+	private long interval;
+
+	private int maxProbes;
+
+	private int timeout;
+
+	private IndexMgr indexMgr;
+
+	private ITerminalLogger logger;
+
+	/**
+	 * Create a prober that follows the shares made to the index once it is started,
+	 * when the endpoints already in the index are probed as well.
+	 * @param interval the time in milliseconds between probes of an endpoint
+	 * @param maxProbes the most probes in progress at once
+	 * @param timeout the time in milliseconds to wait for a connection before a probe fails
+	 * @param indexMgr the index to drop the elements of unreachable endpoints from
+	 * @param logger an object that implements the terminal logger interface
+	 */
+	public Prober(long interval, int maxProbes, int timeout, IndexMgr indexMgr, ITerminalLogger logger) {
+		this.interval=interval;
+		this.maxProbes=Math.max(1,maxProbes);
+		this.timeout=Math.max(1,timeout);
+		this.indexMgr=indexMgr;
+		this.logger=logger;
+		wheel = new TimerWheel<>(TICK,now());
+	}
+
+	/**
+	 * Follow the shares made to the index, and start the prober thread as a daemon.
+	 * The thread picks up the endpoints shared before this.
+	 */
+	@Override
+	public void start() {
+		indexMgr.addListener(this);
+		setDaemon(true);
+		super.start();
+	}
+
+	@Override
+	public void shared(String ip, int port, FileDescr fileDescr, String filename, String secret) {
+		long now = now();
+		boolean[] added = new boolean[1];
+		Endpoint endpoint = endpoints.compute(ip+":"+port,(key,existing) -> {
+			if(existing==null) {
+				existing = new Endpoint(ip,port);
+				added[0]=true;
+			}
+			existing.lastShared=now;
+			return existing;
+		});
+		if(added[0]) {
+			schedule(endpoint);
+		}
+	}
+
+	@Override
+	public void dropped(String ip, int port, String filename, String fileMd5, String secret) {
+		// an endpoint that no longer shares anything is forgotten when it is next due
+	}
+
+	/**
+	 * Start probing an endpoint that is already in the index.
+	 */
+	private void track(String ip, int port) {
+		Endpoint endpoint = new Endpoint(ip,port);
+		if(endpoints.putIfAbsent(ip+":"+port,endpoint)==null) {
+			schedule(endpoint);
+		}
+	}
+
+	/**
+	 * Schedule the first probe of an endpoint, at a random time within the probe interval.
+	 */
+	private void schedule(Endpoint endpoint) {
+		wheel.schedule(endpoint,now()+ThreadLocalRandom.current().nextLong(interval)+1);
+	}
+
+	@Override
+	public void run() {
+		logger.logInfo("Prober thread running.");
+		// endpoints that are only in the snapshot are not seen until they are migrated
+		indexMgr.hydrate();
+		for(String endpoint : indexMgr.getEndpoints()) {
+			int colon = endpoint.lastIndexOf(':');
+			track(endpoint.substring(0,colon),Integer.parseInt(endpoint.substring(colon+1)));
+		}
+		try(Selector selector = Selector.open()) {
+			while(!isInterrupted()) {
+				selector.select(TICK);
+				long now = now();
+				for(SelectionKey key : selector.selectedKeys()) {
+					finish(key,now);
+				}
+				selector.selectedKeys().clear();
+				for(SelectionKey key : selector.keys()) {
+					if(key.isValid() && ((Probe) key.attachment()).deadline<=now) {
+						close(key);
+						failed(((Probe) key.attachment()).endpoint,((Probe) key.attachment()).started);
+					}
+				}
+				if(due.size()<maxProbes) {
+					due.addAll(wheel.advance(now));
+				}
+				while(!due.isEmpty() && probes<maxProbes) {
+					Endpoint endpoint = due.poll();
+					if(!indexMgr.hasEndpoint(endpoint.ip,endpoint.port)) {
+						endpoints.remove(endpoint.ip+":"+endpoint.port,endpoint);
+						continue;
+					}
+					start(selector,endpoint,now);
+				}
+			}
+		} catch (IOException e) {
+			logger.logError("Prober could not use a selector: "+e.getMessage());
+		}
+		logger.logInfo("Prober thread completed.");
+	}
+
+	/**
+	 * Start connecting to an endpoint.
+	 */
+	private void start(Selector selector, Endpoint endpoint, long now) {
+		SocketChannel channel = null;
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			if(channel.connect(new InetSocketAddress(endpoint.ip,endpoint.port))) {
+				channel.close();
+				succeeded(endpoint);
+				return;
+			}
+			channel.register(selector,SelectionKey.OP_CONNECT,new Probe(endpoint,now,now+timeout));
+			probes++;
+		} catch (IOException | UnresolvedAddressException e) {
+			if(channel!=null) {
+				try {
+					channel.close();
+				} catch (IOException e2) {
+					// nothing more to do
+				}
+			}
+			failed(endpoint,now);
+		}
+	}
+
+	/**
+	 * Complete a connection attempt that the selector found ready.
+	 */
+	private void finish(SelectionKey key, long now) {
+		if(!key.isValid()) return;
+		Probe probe = (Probe) key.attachment();
+		boolean connected;
+		try {
+			connected = ((SocketChannel) key.channel()).finishConnect();
+		} catch (IOException e) {
+			connected = false;
+		}
+		close(key);
+		if(connected) {
+			succeeded(probe.endpoint);
+		} else {
+			failed(probe.endpoint,probe.started);
+		}
+	}
+
+	private void close(SelectionKey key) {
+		key.cancel();
+		probes--;
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// nothing more to do
+		}
+	}
+
+	private void succeeded(Endpoint endpoint) {
+		endpoint.failures=0;
+		wheel.schedule(endpoint,now()+interval);
+	}
+
+	/**
+	 * Schedule the next probe of an endpoint that failed a probe, or drop it.
+	 * @param started the time the failed probe started
+	 */
+	private void failed(Endpoint endpoint, long started) {
+		endpoint.failures++;
+		if(endpoint.failures<MAX_FAILURES) {
+			long delay = Math.min(interval,RETRY_DELAY<<(endpoint.failures-1));
+			wheel.schedule(endpoint,now()+delay);
+			return;
+		}
+		// the endpoint is forgotten unless it shared while it was being probed, and a
+		// share made from then on is probed afresh
+		String key = endpoint.ip+":"+endpoint.port;
+		Endpoint remaining = endpoints.computeIfPresent(key,(k,existing) ->
+				existing==endpoint && existing.lastShared<started ? null : existing);
+		if(remaining!=null) {
+			if(remaining==endpoint) {
+				endpoint.failures=0;
+				wheel.schedule(endpoint,now()+interval);
+			}
+			return;
+		}
+		// each element is only dropped if the endpoint has not shared again since
+		int dropped = indexMgr.dropEndpoint(endpoint.ip,endpoint.port,() -> !endpoints.containsKey(key));
+		logger.logInfo("Sharer "+endpoint.ip+":"+endpoint.port+" is unreachable, dropped "+dropped+" shares.");
+	}
+
+	private static long now() {
+		return System.nanoTime()/1000000;
+	}
+}
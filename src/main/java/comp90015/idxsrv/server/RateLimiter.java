@@ -0,0 +1,286 @@
+package comp90015.idxsrv.server;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import comp90015.idxsrv.message.AuthenticateRequest;
+import comp90015.idxsrv.message.AutocompleteRequest;
+import comp90015.idxsrv.message.DropShareRequest;
+import comp90015.idxsrv.message.HeartbeatRequest;
+import comp90015.idxsrv.message.LookupRequest;
+import comp90015.idxsrv.message.SearchRequest;
+import comp90015.idxsrv.message.ShareRequest;
+
+/**
+ * Per client rate limits, as a token bucket for each ip address and type of
+ * message. Each bucket holds up to a burst of tokens and refills at a steady rate,
+ * and a message is allowed if it can take a token from its bucket.
+ * <p>
+ * The type of a message is peeked from its line without deserializing it, so that
+ * a client that is over its limit costs the server little more than reading the line.
+ * Each client has a bucket for each of the {@link #TYPES} that clients send, and one
+ * bucket shared by every other type, so a client cannot make more buckets by
+ * claiming types that do not exist.
+ * <p>
+ * At most {@link #MAX_CLIENTS} clients are held. A client that has sent nothing for
+ * long enough for its buckets to refill behaves the same as a new one, so when there
+ * are too many clients those are removed, by a sweep that is made at most once per
+ * refill time. A client that has not refilled is never removed, so that a client
+ * cannot escape its limit by making the server forget it. New clients that arrive
+ * while there is no room share the buckets of a single overflow client until the
+ * next sweep makes room.
+ * @author aaron
+ *
+ */
+public class RateLimiter {
+
+	/**
+	 * The most clients held at once.
+	 */
+	public static final int MAX_CLIENTS = 65536;
+
+	/**
+	 * The types of message that have their own bucket.
+	 */
+	public static final String[] TYPES = {
+			AuthenticateRequest.class.getName(),
+			ShareRequest.class.getName(),
+			DropShareRequest.class.getName(),
+			SearchRequest.class.getName(),
+			LookupRequest.class.getName(),
+			HeartbeatRequest.class.getName(),
+			AutocompleteRequest.class.getName()
+	};
+
+	private static final HashMap<String,Integer> TYPE_INDEX = new HashMap<>();
+
+	static {
+		for(int i=0;i<TYPES.length;i++) {
+			TYPE_INDEX.put(TYPES[i],i);
+		}
+	}
+
+	private static class Bucket {
+		double tokens;
+		long last;
+
+		Bucket(double tokens, long last) {
+			this.tokens=tokens;
+			this.last=last;
+		}
+	}
+
+	/**
+	 * The buckets of one ip address, one for each of the {@link #TYPES} and one for
+	 * any other type.
+	 */
+	private static class Client {
+		final Bucket[] buckets = new Bucket[TYPES.length+1];
+
+		/**
+		 * The time the client last took a token.
+		 */
+		long last;
+
+		Client(double burst, long now) {
+			for(int i=0;i<buckets.length;i++) {
+				buckets[i]=new Bucket(burst,now);
+			}
+			last=now;
+		}
+	}
+
+	private ConcurrentHashMap<String,Client> clients = new ConcurrentHashMap<>();
+
+	private Client overflow;
+
+	private double rate;
+
+	private double burst;
+
+	/**
+	 * The time in nanoseconds for an empty bucket to refill.
+	 */
+	private long refillTime;
+
+	/**
+	 * The earliest time of the next sweep.
+	 */
+	private AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+
+	/**
+	 * Create a rate limiter.
+	 * @param rate the number of messages of each type that a client may send per second
+	 * @param burst the number of messages of each type that a client may send at once
+	 */
+	public RateLimiter(double rate, double burst) {
+		this.rate=rate;
+		this.burst=Math.max(1,burst);
+		refillTime=(long) Math.ceil(this.burst/rate*1e9);
+		overflow=new Client(this.burst,System.nanoTime());
+	}
+
+	/**
+	 * Take a token for a message.
+	 * @param ip the ip address of the client
+	 * @param type the type of the message
+	 * @return 0 if the message is allowed, otherwise the number of milliseconds until
+	 * it would be
+	 */
+	public int acquire(String ip, String type) {
+		long now = System.nanoTime();
+		Client client = clients.get(ip);
+		if(client==null) {
+			if(clients.size()>=MAX_CLIENTS) {
+				sweep(now);
+			}
+			if(clients.size()<MAX_CLIENTS) {
+				client = clients.computeIfAbsent(ip,k -> new Client(burst,now));
+			} else {
+				client = overflow;
+			}
+		}
+		Integer index = type!=null ? TYPE_INDEX.get(type) : null;
+		synchronized(client) {
+			client.last=now;
+			Bucket bucket = client.buckets[index!=null ? index : TYPES.length];
+			bucket.tokens=Math.min(burst,bucket.tokens+(now-bucket.last)*rate/1e9);
+			bucket.last=now;
+			if(bucket.tokens>=1) {
+				bucket.tokens-=1;
+				return 0;
+			}
+			return (int) Math.ceil((1-bucket.tokens)/rate*1000);
+		}
+	}
+
+	/**
+	 * Remove the clients whose buckets have refilled. The sweep is made at most once
+	 * per refill time, so that while every client is active the new clients do not
+	 * each pay for a scan of them all.
+	 */
+	private void sweep(long now) {
+		long next = nextSweep.get();
+		if(now-next<0 || !nextSweep.compareAndSet(next,now+refillTime)) return;
+		clients.values().removeIf(client -> {
+			synchronized(client) {
+				return now-client.last>=refillTime;
+			}
+		});
+	}
+
+	/**
+	 * Peek the value of a top level string or number field in a message line,
+	 * without deserializing the line. Fields of nested objects and text inside
+	 * strings are skipped. Escapes in names and string values are decoded, as the
+	 * message factory decodes them.
+	 * @param jsonStr the message line
+	 * @param name the name of the field
+	 * @return the value, without quotes and unescaped, or null if it was not found
+	 */
+	public static String peek(String jsonStr, String name) {
+		int depth = 0;
+		int i = 0;
+		int n = jsonStr.length();
+		while(i<n) {
+			char c = jsonStr.charAt(i);
+			if(c=='"') {
+				int end = endOfString(jsonStr,i);
+				if(end<0) return null;
+				if(depth==1 && isName(jsonStr,i+1,end,name)) {
+					i=end+1;
+					while(i<n && (jsonStr.charAt(i)==' ' || jsonStr.charAt(i)==':')) {
+						i++;
+					}
+					if(i>=n) return null;
+					if(jsonStr.charAt(i)=='"') {
+						end = endOfString(jsonStr,i);
+						return end<0 ? null : unescape(jsonStr,i+1,end);
+					}
+					end = i;
+					while(end<n && (Character.isDigit(jsonStr.charAt(end)) || jsonStr.charAt(end)=='-')) {
+						end++;
+					}
+					return end>i ? jsonStr.substring(i,end) : null;
+				}
+				i=end+1;
+				continue;
+			}
+			if(c=='{' || c=='[') {
+				depth++;
+			} else if(c=='}' || c==']') {
+				depth--;
+			}
+			i++;
+		}
+		return null;
+	}
+
+	/**
+	 * @return whether the string between start and end is the given name
+	 */
+	private static boolean isName(String jsonStr, int start, int end, String name) {
+		if(end-start==name.length() && jsonStr.startsWith(name,start)) return true;
+		int escape = jsonStr.indexOf('\\',start);
+		return escape>=0 && escape<end && name.equals(unescape(jsonStr,start,end));
+	}
+
+	/**
+	 * @return the string between start and end with its escapes decoded, or null
+	 * if an escape is malformed
+	 */
+	private static String unescape(String jsonStr, int start, int end) {
+		int escape = jsonStr.indexOf('\\',start);
+		if(escape<0 || escape>=end) return jsonStr.substring(start,end);
+		StringBuilder sb = new StringBuilder(end-start);
+		sb.append(jsonStr,start,escape);
+		for(int i=escape;i<end;i++) {
+			char c = jsonStr.charAt(i);
+			if(c!='\\') {
+				sb.append(c);
+				continue;
+			}
+			if(++i>=end) return null;
+			switch(jsonStr.charAt(i)) {
+			case '"': sb.append('"'); break;
+			case '\\': sb.append('\\'); break;
+			case '/': sb.append('/'); break;
+			case 'b': sb.append('\b'); break;
+			case 'f': sb.append('\f'); break;
+			case 'n': sb.append('\n'); break;
+			case 'r': sb.append('\r'); break;
+			case 't': sb.append('\t'); break;
+			case 'u':
+				if(i+4>=end) return null;
+				int code = 0;
+				for(int d=1;d<=4;d++) {
+					int digit = Character.digit(jsonStr.charAt(i+d),16);
+					if(digit<0) return null;
+					code = code*16+digit;
+				}
+				sb.append((char) code);
+				i+=4;
+				break;
+			default:
+				return null;
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the index of the quote that closes the string opened at start, or -1
+	 */
+	private static int endOfString(String jsonStr, int start) {
+		for(int i=start+1;i<jsonStr.length();i++) {
+			char c = jsonStr.charAt(i);
+			if(c=='\\') {
+				i++;
+			} else if(c=='"') {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,251 @@
+package comp90015.idxsrv.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import comp90015.idxsrv.message.ErrorMsg;
+import comp90015.idxsrv.message.JsonSerializationException;
+import comp90015.idxsrv.message.Message;
+import comp90015.idxsrv.message.MessageFactory;
+import comp90015.idxsrv.message.ReplicateReply;
+import comp90015.idxsrv.message.ReplicateRequest;
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * A hot standby of a primary index server. The Replica thread fetches the changes
+ * made to the primary's index and applies them to its own index, which serves
+ * searches and lookups while shares and drops are refused. The replica
+ * authenticates with the node secret, which the primary requires of replicas.
+ * <p>
+ * A failed fetch only shows that one request was slow or lost, so the replica then
+ * checks whether the primary still accepts connections and sends its welcome. Once
+ * the primary has neither replied nor accepted a connection for
+ * {@link #FAILOVER_TIMEOUT} milliseconds, the replica is promoted and takes over as
+ * the primary.
+ * @author aaron
+ *
+ */
+public class Replica extends Thread {
+
+	/**
+	 * The most changes fetched at once.
+	 */
+	private static final int BATCH = 1000;
+
+	/**
+	 * The time in milliseconds to wait before fetching again once the replica has
+	 * caught up with the primary, or after a failed fetch.
+	 */
+	private static final int POLL_INTERVAL = 100;
+
+	/**
+	 * The time in milliseconds without a reply from the primary after which the
+	 * replica is promoted, which is also the connect and read timeout for the primary.
+	 */
+	public static final int FAILOVER_TIMEOUT = 5000;
+
+	private String primary;
+
+	private IndexMgr indexMgr;
+
+	private Runnable onPromotion;
+
+	private ITerminalLogger logger;
+
+	private NodeClient client;
+
+	private volatile boolean promoted;
+
+	private Long epoch;
+
+	private long sequence;
+
+	/**
+	 * The full copy of the primary's index being fetched, or null.
+	 */
+	private Long copy;
+
+	/**
+	 * The position in the full copy of the next file to fetch.
+	 */
+	private int offset;
+
+	/**
+	 * The secret of each element in the pages of the full copy fetched so far, by
+	 * its key IP:PORT:FILENAME:FILEMD5.
+	 */
+	private HashMap<String,String> copied = new HashMap<>();
+
+	/**
+	 * Create a replica of a primary. The thread must be started to begin replicating.
+	 * @param primary the primary, as ADDRESS:PORT
+	 * @param secret the secret of the primary
+	 * @param nodeSecret the node secret of the primary
+	 * @param indexMgr the index to apply the primary's changes to
+	 * @param onPromotion run once the replica is promoted
+	 * @param logger an object that implements the terminal logger interface
+	 */
+	public Replica(String primary,
+			String secret,
+			String nodeSecret,
+			IndexMgr indexMgr,
+			Runnable onPromotion,
+			ITerminalLogger logger) {
+		this.primary=primary;
+		this.indexMgr=indexMgr;
+		this.onPromotion=onPromotion;
+		this.logger=logger;
+		client = new NodeClient(primary,secret,nodeSecret,FAILOVER_TIMEOUT);
+	}
+
+	/**
+	 * @return the primary, as ADDRESS:PORT
+	 */
+	public String getPrimary() {
+		return primary;
+	}
+
+	/**
+	 * @return true if the replica has taken over as the primary
+	 */
+	public boolean isPromoted() {
+		return promoted;
+	}
+
+	@Override
+	public void run() {
+		logger.logInfo("Replica thread running, replicating "+primary);
+		long lastContact = System.nanoTime();
+		while(!isInterrupted()) {
+			boolean caughtUp = true;
+			int wait = POLL_INTERVAL;
+			try {
+				ReplicateRequest request = new ReplicateRequest(epoch,sequence,BATCH);
+				if(copy!=null) {
+					request.copy=copy;
+					request.offset=offset;
+				}
+				Message reply = client.request(request);
+				lastContact = System.nanoTime();
+				if(reply.getClass().getName()==ReplicateReply.class.getName()) {
+					caughtUp = !apply((ReplicateReply) reply);
+				} else if(reply.getClass().getName()==ErrorMsg.class.getName()) {
+					ErrorMsg error = (ErrorMsg) reply;
+					logger.logWarn("The primary refused to replicate: "+error.msg);
+					if(error.retryAfter!=null) {
+						wait = Math.max(wait,error.retryAfter);
+					}
+				}
+			} catch (IOException e) {
+				if(client.ping()) {
+					lastContact = System.nanoTime();
+				} else if(System.nanoTime()-lastContact>FAILOVER_TIMEOUT*1000000L) {
+					promote();
+					break;
+				}
+			}
+			if(caughtUp) {
+				// a pooled server has a worker thread for each open session
+				client.close();
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+		client.close();
+		logger.logInfo("Replica thread completed.");
+	}
+
+	/**
+	 * Apply a reply from the primary to the index, called only by the replica thread.
+	 * @return true if there is more to fetch straight away
+	 */
+	boolean apply(ReplicateReply reply) {
+		IndexLogRecord[] records = new IndexLogRecord[reply.records.length];
+		try {
+			for(int i=0;i<records.length;i++) {
+				records[i]=(IndexLogRecord) MessageFactory.deserialize(reply.records[i]);
+			}
+		} catch (JsonSerializationException | ClassCastException e) {
+			// nothing is applied, so the same changes are fetched again
+			logger.logWarn("The primary sent an unreadable record.");
+			return false;
+		}
+		if(reply.reset) {
+			if(!reply.copy.equals(copy)) {
+				// the primary started the copy again
+				copied.clear();
+			}
+			for(IndexLogRecord record : records) {
+				copied.put(record.getSharerKey(),record.secret);
+			}
+		}
+		for(IndexLogRecord record : records) {
+			if(record.op.equals(IndexLogRecord.SHARE)) {
+				share(record);
+			} else {
+				indexMgr.drop(record.ip,record.port,record.filename,record.fileMd5,record.secret);
+			}
+		}
+		if(reply.reset && reply.offset!=null) {
+			copy=reply.copy;
+			offset=reply.offset;
+			return true;
+		}
+		if(reply.reset) {
+			discardUncopied();
+			copy=null;
+		}
+		epoch=reply.epoch;
+		sequence=reply.sequence;
+		return records.length>=BATCH;
+	}
+
+	/**
+	 * Share an element as the primary has it. An element the replica holds with
+	 * another secret, which the primary's element replaced while the replica was
+	 * behind, is dropped first, since the share would otherwise be refused.
+	 */
+	private void share(IndexLogRecord record) {
+		if(indexMgr.share(record.ip,record.port,record.fileDescr,record.filename,record.secret)
+				!=IndexMgr.RETCODE.FAILEDSECRET) {
+			return;
+		}
+		String fileMd5 = record.fileDescr.getFileMd5();
+		for(IndexElement element : new ArrayList<>(indexMgr.lookup(record.filename,fileMd5))) {
+			if(element.ip.equals(record.ip) && element.port.equals(record.port)) {
+				indexMgr.drop(element.ip,element.port,element.filename,fileMd5,element.secret);
+			}
+		}
+		indexMgr.share(record.ip,record.port,record.fileDescr,record.filename,record.secret);
+	}
+
+	/**
+	 * Discard the elements that were in no page of a complete full copy, or that the
+	 * primary has with another secret.
+	 */
+	private void discardUncopied() {
+		indexMgr.hydrate();
+		ArrayList<IndexElement> stale = new ArrayList<>();
+		indexMgr.forEachElement(element -> {
+			String key = element.ip+":"+element.port+":"+element.filename+":"+element.fileDescr.getFileMd5();
+			if(!element.secret.equals(copied.get(key))) {
+				stale.add(element);
+			}
+		});
+		for(IndexElement element : stale) {
+			indexMgr.drop(element.ip,element.port,element.filename,element.fileDescr.getFileMd5(),element.secret);
+		}
+		logger.logInfo("Copied "+copied.size()+" shares from the primary.");
+		copied.clear();
+	}
+
+	private void promote() {
+		promoted=true;
+		logger.logWarn("The primary "+primary+" has not been reachable for "+FAILOVER_TIMEOUT+" ms, taking over as the primary.");
+		onPromotion.run();
+	}
+}
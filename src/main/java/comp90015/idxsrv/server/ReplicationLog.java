@@ -0,0 +1,258 @@
+package comp90015.idxsrv.server;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.message.JsonSerializationException;
+import comp90015.idxsrv.message.MessageFactory;
+import comp90015.idxsrv.message.ReplicateReply;
+import comp90015.idxsrv.message.ReplicateRequest;
+
+/**
+ * The most recent changes made to an {@link IndexMgr}, held in a ring buffer for
+ * replicas to fetch. Each change has a sequence number, and a replica fetches the
+ * changes that follow the last one it applied. A replica that has fallen behind
+ * by more than {@link #CAPACITY} changes, or that follows an earlier log of a
+ * restarted primary, is sent a full copy of the index instead.
+ * <p>
+ * The ring does not hold the descriptors of shares, which would keep every block
+ * hash of the most recent shares alive. A share is sent with the descriptor that
+ * the index holds for its element when it is fetched, and is left out if the
+ * element has since been dropped, since the drop follows it in the log. A later
+ * share of the same element may have replaced the descriptor, in which case the
+ * share is sent with the later descriptor, which the later share sets again.
+ * <p>
+ * A full copy is sent a page at a time. It starts from the sequence number of the
+ * next change and the files of the index at that moment, and each page holds the
+ * elements of the next files as they are when the page is fetched. Changes made
+ * while copying may therefore be both in the copy and in the log after it. Applying
+ * them again to the copy leaves the same index, since a share of an element that is
+ * already shared and a drop of one that is not are both ignored.
+ * @author aaron
+ *
+ */
+public class ReplicationLog implements IIndexListener {
+
+	/**
+	 * The number of changes held for replicas to fetch.
+	 */
+	public static final int CAPACITY = 65536;
+
+	/**
+	 * The most full copies in progress at once.
+	 */
+	public static final int MAX_COPIES = 4;
+
+	/**
+	 * The time in milliseconds after which a full copy whose next page has not been
+	 * fetched is discarded.
+	 */
+	public static final long COPY_TTL = 60000;
+
+	/**
+	 * A change held in the ring. The ip address and filename are interned, as they
+	 * are by the index, so a change costs little more than its own object.
+	 */
+	private static class Change {
+		final boolean share;
+		final String ip;
+		final int port;
+		final String filename;
+		final String fileMd5;
+		final String secret;
+
+		Change(boolean share, String ip, int port, String filename, String fileMd5, String secret) {
+			this.share=share;
+			this.ip=ip.intern();
+			this.port=port;
+			this.filename=filename.intern();
+			this.fileMd5=fileMd5;
+			this.secret=secret;
+		}
+	}
+
+	/**
+	 * A full copy in progress: the files of the index when it started, and the
+	 * sequence number of the next change at that moment.
+	 */
+	private static class Copy {
+		final long sequence;
+		final String[] files;
+		volatile long expires;
+
+		Copy(long sequence, String[] files) {
+			this.sequence=sequence;
+			this.files=files;
+			this.expires=System.currentTimeMillis()+COPY_TTL;
+		}
+	}
+
+	/**
+	 * Identifies this log, since sequence numbers start again on a restart.
+	 */
+	private long epoch = ThreadLocalRandom.current().nextLong();
+
+	private Change[] ring = new Change[CAPACITY];
+
+	/**
+	 * The sequence number of the next change.
+	 */
+	private long next;
+
+	private ConcurrentHashMap<Long,Copy> copies = new ConcurrentHashMap<>();
+
+	private IndexMgr indexMgr;
+
+	/**
+	 * Create a log of the changes made to the index, which must be started to follow them.
+	 * @param indexMgr the index
+	 */
+	public ReplicationLog(IndexMgr indexMgr) {
+		this.indexMgr=indexMgr;
+	}
+
+	/**
+	 * Follow the changes made to the index from now on.
+	 */
+	public void start() {
+		indexMgr.addListener(this);
+	}
+
+	@Override
+	public synchronized void shared(String ip, int port, FileDescr fileDescr, String filename, String secret) {
+		ring[(int)(next++ % CAPACITY)]=new Change(true,ip,port,filename,fileDescr.getFileMd5(),secret);
+	}
+
+	@Override
+	public synchronized void dropped(String ip, int port, String filename, String fileMd5, String secret) {
+		ring[(int)(next++ % CAPACITY)]=new Change(false,ip,port,filename,fileMd5,secret);
+	}
+
+	/**
+	 * Fetch the changes that a replica asked for, or a page of a full copy of the
+	 * index if they are no longer held or the replica is part way through a copy.
+	 * @param msg the replica's request
+	 * @return the reply to send to the replica
+	 */
+	public ReplicateReply fetch(ReplicateRequest msg) {
+		int max = Math.max(1,msg.maxRecords);
+		if(msg.copy!=null) {
+			Copy copy = copies.get(msg.copy);
+			if(copy!=null && msg.offset!=null && msg.offset>=0) {
+				return page(msg.copy,copy,msg.offset,max);
+			}
+			return startCopy(max);
+		}
+		Change[] changes;
+		long sequence = msg.sequence;
+		synchronized(this) {
+			if(msg.epoch==null || msg.epoch!=epoch || sequence<next-CAPACITY || sequence<0
+					|| sequence>next) {
+				changes=null;
+			} else {
+				int count = (int) Math.min(max,next-sequence);
+				changes = new Change[count];
+				for(int i=0;i<count;i++) {
+					changes[i]=ring[(int)((sequence+i) % CAPACITY)];
+				}
+			}
+		}
+		if(changes==null) {
+			return startCopy(max);
+		}
+		// the descriptors are found without holding the log's lock, which the index
+		// calls listeners while holding the lock of a file
+		ArrayList<IndexLogRecord> records = new ArrayList<>(changes.length);
+		for(Change change : changes) {
+			if(!change.share) {
+				records.add(new IndexLogRecord(IndexLogRecord.DROP,change.ip,change.port,
+						change.filename,change.fileMd5,null,change.secret));
+				continue;
+			}
+			FileDescr fileDescr = indexMgr.descriptor(change.ip,change.port,change.filename,change.fileMd5);
+			if(fileDescr!=null) {
+				records.add(new IndexLogRecord(IndexLogRecord.SHARE,change.ip,change.port,
+						change.filename,null,fileDescr,change.secret));
+			}
+		}
+		return new ReplicateReply(epoch,sequence+changes.length,false,serialize(records));
+	}
+
+	/**
+	 * @return the records in the string format of the index log
+	 */
+	private static String[] serialize(ArrayList<IndexLogRecord> records) {
+		String[] lines = new String[records.size()];
+		for(int i=0;i<lines.length;i++) {
+			try {
+				lines[i]=MessageFactory.serialize(records.get(i));
+			} catch (JsonSerializationException e) {
+				// a change left out would be missed by the replica for good
+				throw new IllegalStateException("Could not serialize a replicated record",e);
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Start a full copy of the index and send its first page.
+	 */
+	private ReplicateReply startCopy(int max) {
+		long sequence;
+		synchronized(this) {
+			sequence=next;
+		}
+		indexMgr.hydrate();
+		Copy copy = new Copy(sequence,indexMgr.getFileMd5s());
+		long id = ThreadLocalRandom.current().nextLong();
+		expireCopies();
+		copies.put(id,copy);
+		return page(id,copy,0,max);
+	}
+
+	/**
+	 * Send the elements of the files of a copy from the given position, whole files
+	 * at a time, until there are at least max of them or the copy is complete.
+	 */
+	private ReplicateReply page(long id, Copy copy, int offset, int max) {
+		ArrayList<IndexLogRecord> records = new ArrayList<>();
+		int i = offset;
+		while(i<copy.files.length && records.size()<max) {
+			indexMgr.forEachElement(copy.files[i++],element -> records.add(new IndexLogRecord(IndexLogRecord.SHARE,
+					element.ip,element.port,element.filename,null,element.fileDescr,element.secret)));
+		}
+		ReplicateReply reply = new ReplicateReply(epoch,copy.sequence,true,serialize(records));
+		reply.copy=id;
+		if(i<copy.files.length) {
+			reply.offset=i;
+			copy.expires=System.currentTimeMillis()+COPY_TTL;
+		} else {
+			copies.remove(id);
+		}
+		return reply;
+	}
+
+	/**
+	 * Discard the copies that have not been fetched for {@link #COPY_TTL}, and then the
+	 * copies that expire soonest until there is room for another.
+	 */
+	private void expireCopies() {
+		long now = System.currentTimeMillis();
+		copies.values().removeIf(copy -> copy.expires<now);
+		while(copies.size()>=MAX_COPIES) {
+			Long soonest = null;
+			long expires = Long.MAX_VALUE;
+			for(Map.Entry<Long,Copy> entry : copies.entrySet()) {
+				if(entry.getValue().expires<expires) {
+					soonest=entry.getKey();
+					expires=entry.getValue().expires;
+				}
+			}
+			if(soonest==null) break;
+			copies.remove(soonest);
+		}
+	}
+}
@@ -0,0 +1,375 @@
+package comp90015.idxsrv.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.message.SearchReply;
+
+/**
+ * A bounded cache of search replies, keyed by the set of lower cased keywords and
+ * maxhits. The cache follows the index, and a share or drop removes exactly the
+ * cached searches whose keywords are all contained in the filename shared or
+ * dropped, since those are the only searches whose hits or seed counts it can change.
+ * <p>
+ * A search that misses is added as a pending entry before it runs. A share or drop
+ * made while it runs that matches the keywords invalidates the pending entry, and
+ * the reply is then not cached, so a reply is never cached that misses a change
+ * made after it started.
+ * <p>
+ * The searches that a filename may match are found from an index keyed by the
+ * first three characters of each search's longest keyword, or the whole keyword if
+ * it is shorter. Every such key of a matching search is a substring of the filename,
+ * so only the searches under the filename's substrings of up to three characters
+ * need to be checked, rather than every cached search. The cache is notified after
+ * the index releases the file's lock, so checking does not hold up other changes
+ * to the file, but still before the share or drop returns, so a search made once
+ * it has been acknowledged is never answered from a reply that misses it.
+ * <p>
+ * Looking up a search takes no lock. When the cache is full, searches are evicted
+ * in the order they were added, except that a search that has been looked up since
+ * it was last passed over is passed over again. At most {@link #MAX_REPLY_HITS} hits
+ * are cached for a single search, and at most {@link #HITS_PER_ENTRY} hits per
+ * cached search on average, so that searches for every file are not cached.
+ * @author aaron
+ *
+ */
+public class SearchCache implements IIndexListener {
+
+	/**
+	 * The most hits of a reply that is cached.
+	 */
+	public static final int MAX_REPLY_HITS = 100;
+
+	/**
+	 * The most hits cached per search that the cache can hold, on average.
+	 */
+	public static final int HITS_PER_ENTRY = 16;
+
+	/**
+	 * The longest key of the invalidation index.
+	 */
+	private static final int KEY_LENGTH = 3;
+
+	/**
+	 * The hits of a cached search.
+	 */
+	private static class Reply {
+		final ArrayList<IndexElement> hits;
+		final Integer[] seedCounts;
+
+		Reply(ArrayList<IndexElement> hits, Integer[] seedCounts) {
+			this.hits=hits;
+			this.seedCounts=seedCounts;
+		}
+	}
+
+	/**
+	 * A cached search, which is pending until its reply is set.
+	 */
+	public static class Entry {
+		private String key;
+		private String[] keywords;
+		private String indexKey;
+		private volatile Reply reply;
+		private volatile boolean referenced;
+
+		/**
+		 * True once the entry has been removed, after which its reply is not set.
+		 * Changed while holding the entry's lock.
+		 */
+		private volatile boolean removed;
+
+		private Entry(String key, String[] keywords) {
+			this.key=key;
+			this.keywords=keywords;
+			this.indexKey=indexKey(keywords);
+		}
+
+		/**
+		 * @return a new reply with the cached hits, or null if the entry is pending
+		 */
+		private SearchReply reply() {
+			Reply reply = this.reply;
+			if(reply==null) return null;
+			return new SearchReply(reply.hits,reply.seedCounts);
+		}
+	}
+
+	private int capacity;
+
+	private ConcurrentHashMap<String,Entry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * The searches under the key of the invalidation index.
+	 */
+	private ConcurrentHashMap<String,Set<Entry>> index = new ConcurrentHashMap<>();
+
+	/**
+	 * The searches in the order they are considered for eviction. Removed searches
+	 * are left in the queue until they reach its head, or until there are too many.
+	 */
+	private ConcurrentLinkedQueue<Entry> clock = new ConcurrentLinkedQueue<>();
+
+	private AtomicInteger clockSize = new AtomicInteger();
+
+	/**
+	 * The number of hits of the cached searches.
+	 */
+	private AtomicLong cachedHits = new AtomicLong();
+
+	private Object evictLock = new Object();
+
+	private AtomicLong hits = new AtomicLong();
+
+	private AtomicLong misses = new AtomicLong();
+
+	private AtomicLong evictions = new AtomicLong();
+
+	private AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * Create a cache that must then be added as a listener of the index.
+	 * @param capacity the most searches cached
+	 */
+	public SearchCache(int capacity) {
+		this.capacity=capacity;
+	}
+
+	/**
+	 * @param keywords the lower cased keywords
+	 * @param maxhits the maxhits of the search
+	 * @return the key of the search, which does not depend on the order of the keywords
+	 */
+	public static String key(String[] keywords, int maxhits) {
+		StringBuilder sb = new StringBuilder().append(maxhits);
+		for(String keyword : new TreeSet<>(Arrays.asList(keywords))) {
+			sb.append('\0').append(keyword);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the key that a search is held under in the invalidation index
+	 */
+	private static String indexKey(String[] keywords) {
+		String longest = "";
+		for(String keyword : keywords) {
+			if(keyword.length()>longest.length()) {
+				longest=keyword;
+			}
+		}
+		return longest.substring(0,Math.min(KEY_LENGTH,longest.length()));
+	}
+
+	@Override
+	public boolean isOrdered() {
+		return false;
+	}
+
+	/**
+	 * Look up a search, without waiting for changes to the cache.
+	 * @param key the key of the search
+	 * @return a new reply with the cached hits, or null if the search is not cached
+	 */
+	public SearchReply get(String key) {
+		Entry entry = entries.get(key);
+		SearchReply reply = entry!=null ? entry.reply() : null;
+		if(reply!=null) {
+			entry.referenced=true;
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		return reply;
+	}
+
+	/**
+	 * Add a pending entry for a search that missed, before the search is made.
+	 * @param key the key of the search
+	 * @param keywords the lower cased keywords
+	 * @return the pending entry
+	 */
+	public Entry begin(String key, String[] keywords) {
+		Entry entry = new Entry(key,keywords.clone());
+		// added within compute, so that a remove emptying the same set cannot drop it
+		// from the index in between
+		index.compute(entry.indexKey,(k,set) -> {
+			if(set==null) {
+				set=ConcurrentHashMap.newKeySet();
+			}
+			set.add(entry);
+			return set;
+		});
+		Entry previous = entries.put(key,entry);
+		if(previous!=null) {
+			remove(previous);
+		}
+		if(entry.removed) {
+			// invalidated before it was added to the map
+			entries.remove(key,entry);
+		}
+		clock.add(entry);
+		if(clockSize.incrementAndGet()>2*capacity) {
+			synchronized(evictLock) {
+				clock.removeIf(queued -> queued.removed);
+				clockSize.set(clock.size());
+			}
+		}
+		evict();
+		return entry;
+	}
+
+	/**
+	 * Set the reply of a pending entry, unless the index changed in a way that
+	 * matters to the search since the entry was added, or the reply has too many hits.
+	 * @param entry the pending entry
+	 * @param hits the hits of the search
+	 * @param seedCounts the seed counts of the hits
+	 */
+	public void complete(Entry entry, ArrayList<IndexElement> hits, Integer[] seedCounts) {
+		if(hits.size()>MAX_REPLY_HITS) {
+			remove(entry);
+			return;
+		}
+		synchronized(entry) {
+			if(entry.removed) return;
+			entry.reply=new Reply(hits,seedCounts);
+			cachedHits.addAndGet(hits.size());
+		}
+		evict();
+	}
+
+	/**
+	 * Evict searches until there are no more than the capacity, and no more hits
+	 * than the cache may hold.
+	 */
+	private void evict() {
+		long maxHits = (long) HITS_PER_ENTRY*capacity;
+		if(entries.size()<=capacity && cachedHits.get()<=maxHits) return;
+		synchronized(evictLock) {
+			while(entries.size()>capacity || cachedHits.get()>maxHits) {
+				Entry entry = clock.poll();
+				if(entry==null) break;
+				if(entry.removed) {
+					clockSize.decrementAndGet();
+					continue;
+				}
+				if(entry.referenced) {
+					entry.referenced=false;
+					clock.add(entry);
+					continue;
+				}
+				clockSize.decrementAndGet();
+				if(remove(entry)) {
+					evictions.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove a search from the cache and the invalidation index.
+	 * @return true if it had not already been removed
+	 */
+	private boolean remove(Entry entry) {
+		synchronized(entry) {
+			if(entry.removed) return false;
+			entry.removed=true;
+			if(entry.reply!=null) {
+				cachedHits.addAndGet(-entry.reply.hits.size());
+			}
+		}
+		entries.remove(entry.key,entry);
+		index.computeIfPresent(entry.indexKey,(k,set) -> {
+			set.remove(entry);
+			return set.isEmpty() ? null : set;
+		});
+		return true;
+	}
+
+	@Override
+	public void shared(String ip, int port, FileDescr fileDescr, String filename, String secret) {
+		invalidate(filename);
+	}
+
+	@Override
+	public void dropped(String ip, int port, String filename, String fileMd5, String secret) {
+		invalidate(filename);
+	}
+
+	/**
+	 * Remove the searches that the filename matches, found under the filename's
+	 * substrings of up to three characters in the invalidation index.
+	 */
+	private void invalidate(String filename) {
+		String lower = filename.toLowerCase();
+		HashSet<String> keys = new HashSet<>();
+		keys.add("");
+		for(int i=0;i<lower.length();i++) {
+			for(int n=1;n<=KEY_LENGTH && i+n<=lower.length();n++) {
+				keys.add(lower.substring(i,i+n));
+			}
+		}
+		for(String key : keys) {
+			Set<Entry> candidates = index.get(key);
+			if(candidates==null) continue;
+			for(Entry entry : candidates) {
+				if(matches(lower,entry.keywords) && remove(entry)) {
+					invalidations.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	private static boolean matches(String filename, String[] keywords) {
+		for(String keyword : keywords) {
+			if(!filename.contains(keyword)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of searches answered from the cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of searches not answered from the cache
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of searches removed to make room for others
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return the number of searches removed by shares and drops
+	 */
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	/**
+	 * @return the statistics of the cache, for logging
+	 */
+	@Override
+	public String toString() {
+		return "hits ["+getHits()+"] misses ["+getMisses()+"] evictions ["+getEvictions()
+				+"] invalidations ["+getInvalidations()+"]";
+	}
+}
@@ -0,0 +1,256 @@
+package comp90015.idxsrv.server;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.message.ErrorMsg;
+import comp90015.idxsrv.message.Message;
+import comp90015.idxsrv.message.SearchReply;
+
+/**
+ * Holds the searches that have more pages of hits to come, so that a client can
+ * fetch the next page with the cursor it was given instead of searching again.
+ * The hits of a search are ranked once and kept with the cursor, and each page
+ * takes the next best hits from them. Like session tokens, cursors are bound to the
+ * ip address they were issued to and expire after a time to live, renewed by each
+ * page.
+ * <p>
+ * A paged search keeps at most {@link #MAX_PAGED_HITS} hits. Each ip address may
+ * hold at most {@link #MAX_CURSORS_PER_IP} cursors, and issuing another discards
+ * its oldest. At most {@link #MAX_CURSORS} are held in all. Expired cursors are
+ * removed by a sweep made at most once per time to live, and when the store is full
+ * the cursors are checked in the order they were issued, removing those that have
+ * expired or finished, until there is room. If the oldest cursor is still in use
+ * the search is refused with a time to retry after, rather than discarding the
+ * cursor of another client or scanning every cursor for one to discard.
+ * @author aaron
+ *
+ */
+public class SearchCursors {
+
+	/**
+	 * The default time to live of a cursor in milliseconds.
+	 */
+	public static final long DEFAULT_TTL = 60*1000;
+
+	/**
+	 * The most cursors held at once.
+	 */
+	public static final int MAX_CURSORS = 4096;
+
+	/**
+	 * The most cursors held for one ip address.
+	 */
+	public static final int MAX_CURSORS_PER_IP = 16;
+
+	/**
+	 * The most hits of a paged search, which are all kept until its cursor expires.
+	 */
+	public static final int MAX_PAGED_HITS = 1000;
+
+	/**
+	 * The remaining hits of a search.
+	 */
+	public interface Pager {
+
+		/**
+		 * @param pageSize the most hits to take
+		 * @return a reply with the next best hits, without a cursor
+		 */
+		public SearchReply next(int pageSize);
+
+		/**
+		 * @return true if there are hits left
+		 */
+		public boolean hasNext();
+	}
+
+	private static class Cursor {
+		String token;
+		String ip;
+		volatile long expiry;
+		volatile boolean removed;
+		int pageSize;
+		Pager pager;
+
+		Cursor(String token, String ip, long expiry, int pageSize, Pager pager) {
+			this.token=token;
+			this.ip=ip;
+			this.expiry=expiry;
+			this.pageSize=pageSize;
+			this.pager=pager;
+		}
+	}
+
+	private ConcurrentHashMap<String,Cursor> cursors = new ConcurrentHashMap<>();
+
+	/**
+	 * The cursors of each ip address, oldest first.
+	 */
+	private ConcurrentHashMap<String,ArrayDeque<Cursor>> clients = new ConcurrentHashMap<>();
+
+	/**
+	 * The cursors in the order they were issued. Removed cursors are left in the
+	 * queue until they reach its head, or until there are too many.
+	 */
+	private ConcurrentLinkedQueue<Cursor> issued = new ConcurrentLinkedQueue<>();
+
+	private AtomicInteger issuedSize = new AtomicInteger();
+
+	private SecureRandom random = new SecureRandom();
+
+	private long ttl;
+
+	private volatile long nextSweep;
+
+	/**
+	 * Create a cursor store.
+	 * @param ttl the time to live of each cursor in milliseconds
+	 */
+	public SearchCursors(long ttl) {
+		this.ttl=ttl;
+		this.nextSweep=System.currentTimeMillis()+ttl;
+	}
+
+	/**
+	 * @param maxhits the maxhits of a paged search, or 0 for all hits
+	 * @return the most hits to keep for the search
+	 */
+	public static int maxPagedHits(int maxhits) {
+		return maxhits>0 ? Math.min(maxhits,MAX_PAGED_HITS) : MAX_PAGED_HITS;
+	}
+
+	/**
+	 * Take the first page of a search, and issue a cursor for the rest if there are
+	 * hits left.
+	 * @param ip the ip address of the client
+	 * @param pageSize the most hits per page
+	 * @param pager the ranked hits of the search
+	 * @return the first page, or an error if there is no room for another cursor
+	 */
+	public Message first(String ip, int pageSize, Pager pager) {
+		SearchReply reply = pager.next(pageSize);
+		if(pager.hasNext()) {
+			long now = System.currentTimeMillis();
+			sweep(now);
+			long wait = makeRoom(now);
+			if(wait>0) {
+				ErrorMsg error = new ErrorMsg("Too many searches in progress");
+				error.retryAfter=(int) Math.min(wait,Integer.MAX_VALUE);
+				return error;
+			}
+			byte[] bytes = new byte[16];
+			random.nextBytes(bytes);
+			String token = FileDescr.bytesToHex(bytes);
+			Cursor cursor = new Cursor(token,ip,now+ttl,pageSize,pager);
+			cursors.put(token,cursor);
+			Cursor[] oldest = new Cursor[1];
+			clients.compute(ip,(k,owned) -> {
+				if(owned==null) {
+					owned = new ArrayDeque<>();
+				}
+				if(owned.size()>=MAX_CURSORS_PER_IP) {
+					oldest[0]=owned.poll();
+				}
+				owned.add(cursor);
+				return owned;
+			});
+			if(oldest[0]!=null) {
+				oldest[0].removed=true;
+				cursors.remove(oldest[0].token,oldest[0]);
+			}
+			issued.add(cursor);
+			if(issuedSize.incrementAndGet()>2*MAX_CURSORS) {
+				synchronized(issued) {
+					issued.removeIf(queued -> queued.removed);
+					issuedSize.set(issued.size());
+				}
+			}
+			reply.cursor=token;
+		}
+		return reply;
+	}
+
+	/**
+	 * Take the next page of a search.
+	 * @param token the cursor presented by the client
+	 * @param ip the ip address of the client
+	 * @param pageSize the most hits per page, or null for the page size of the first page
+	 * @return the next page, with the same cursor if there are hits left, or null if
+	 * the cursor is not valid for the client or has expired
+	 */
+	public SearchReply next(String token, String ip, Integer pageSize) {
+		Cursor cursor = cursors.get(token);
+		long now = System.currentTimeMillis();
+		if(cursor==null || !cursor.ip.equals(ip)) return null;
+		if(cursor.expiry<now) {
+			remove(cursor);
+			return null;
+		}
+		SearchReply reply;
+		boolean more;
+		synchronized(cursor) {
+			reply = cursor.pager.next(pageSize!=null && pageSize>0 ? pageSize : cursor.pageSize);
+			more = cursor.pager.hasNext();
+		}
+		if(more) {
+			cursor.expiry=now+ttl;
+			reply.cursor=token;
+		} else {
+			remove(cursor);
+		}
+		return reply;
+	}
+
+	/**
+	 * Remove a cursor from the store and from the cursors of its ip address.
+	 */
+	private void remove(Cursor cursor) {
+		cursor.removed=true;
+		cursors.remove(cursor.token,cursor);
+		clients.computeIfPresent(cursor.ip,(k,owned) -> {
+			owned.remove(cursor);
+			return owned.isEmpty() ? null : owned;
+		});
+	}
+
+	/**
+	 * Remove expired cursors, at most once per time to live.
+	 */
+	private void sweep(long now) {
+		if(now<nextSweep) return;
+		nextSweep=now+ttl;
+		for(Cursor cursor : cursors.values()) {
+			if(cursor.expiry<now) {
+				remove(cursor);
+			}
+		}
+	}
+
+	/**
+	 * Make room for another cursor if the store is full, by removing the oldest
+	 * cursors that have been removed or have expired.
+	 * @return 0 if there is room, otherwise the milliseconds until the oldest cursor
+	 * expires if it is not used again
+	 */
+	private long makeRoom(long now) {
+		if(cursors.size()<MAX_CURSORS) return 0;
+		synchronized(issued) {
+			while(cursors.size()>=MAX_CURSORS) {
+				Cursor oldest = issued.peek();
+				if(oldest==null) return 0;
+				if(!oldest.removed && oldest.expiry>=now) {
+					return oldest.expiry-now+1;
+				}
+				issued.poll();
+				issuedSize.decrementAndGet();
+				remove(oldest);
+			}
+		}
+		return 0;
+	}
+}
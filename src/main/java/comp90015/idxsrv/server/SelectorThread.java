@@ -0,0 +1,488 @@
+package comp90015.idxsrv.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import comp90015.idxsrv.message.ErrorMsg;
+import comp90015.idxsrv.message.Goodbye;
+import comp90015.idxsrv.message.JsonSerializationException;
+import comp90015.idxsrv.message.Message;
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * A non-blocking alternative to the IOThread and worker threads. The selector
+ * thread accepts connections on a server socket channel and runs the welcome,
+ * authenticate and request steps of every connection itself, so no thread is
+ * tied up by a connection that is waiting on its client.
+ * <p>
+ * Each connection has a read deadline, measured from the last complete message
+ * it received, which replaces the socket timeout used for blocking sockets. A
+ * client that trickles bytes, or never reads its reply, is therefore closed once
+ * the deadline passes.
+ * <p>
+ * Requests that may wait on the disk or another index server, such as a share that
+ * is only answered once it has been logged, are processed on the server's request
+ * executor like pipelined requests. Until the reply is sent the connection is not
+ * read from, and the bytes already read after the request are held, so that the
+ * replies of a session that is not pipelined stay in the order of its requests.
+ * @author aaron
+ *
+ */
+public class SelectorThread extends Thread {
+
+	/**
+	 * The longest message line accepted from a client, in bytes.
+	 */
+	private static final int MAX_LINE_LENGTH = 16*1024*1024;
+
+	private enum STATE {
+		AUTHENTICATE,
+		REQUEST,
+		CLOSING
+	}
+
+	/**
+	 * The session state of a single connection.
+	 */
+	private static class Connection {
+		SocketChannel channel;
+		SelectionKey key;
+		String ip;
+		int port;
+		STATE state = STATE.AUTHENTICATE;
+		boolean keepAlive;
+		boolean node;
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+		long deadline;
+		boolean closed;
+		int inFlight;
+
+		/**
+		 * True while a request that is not pipelined is being processed by the
+		 * executor, during which no further lines are handled.
+		 */
+		boolean waiting;
+
+		/**
+		 * The bytes read after the line of the request being waited for, or null.
+		 */
+		ByteBuffer held;
+	}
+
+	/**
+	 * A deadline set on a connection. Deadlines are queued in the order they are
+	 * set, which is also the order they expire since the timeout is fixed. A queued
+	 * deadline is stale if the connection has since been given a later one.
+	 */
+	private static class Deadline {
+		Connection connection;
+		long time;
+
+		Deadline(Connection connection, long time) {
+			this.connection=connection;
+			this.time=time;
+		}
+	}
+
+	private Selector selector;
+
+	private ServerSocketChannel serverChannel;
+
+	private Server server;
+
+	private ITerminalLogger logger;
+
+	private int timeout;
+
+	private ByteBuffer readBuffer = ByteBuffer.allocateDirect(64*1024);
+
+	private ArrayDeque<Deadline> deadlines = new ArrayDeque<>();
+
+	/**
+	 * Replies to pipelined requests, completed on executor threads and waiting to be
+	 * sent by this thread.
+	 */
+	private ConcurrentLinkedQueue<Runnable> completions = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Bind a server socket channel to the provided port, for a SelectorThread to
+	 * accept connections from.
+	 * @param port the port for the server socket channel
+	 * @return the bound server socket channel
+	 * @throws IOException
+	 */
+	public static ServerSocketChannel bind(int port) throws IOException {
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			serverChannel.close();
+			throw e;
+		}
+		return serverChannel;
+	}
+
+	/**
+	 * Create a SelectorThread, which accepts connections from a bound server socket
+	 * channel without blocking. The thread must be explicitly started.
+	 * @param serverChannel the server socket channel, see {@link #bind(int)}
+	 * @param server the server that implements the protocol steps
+	 * @param timeout the read deadline in milliseconds for connections, or 0 for no deadline
+	 * @param logger an object that implements the terminal logger interface
+	 * @throws IOException
+	 */
+	public SelectorThread(ServerSocketChannel serverChannel,
+			Server server,
+			int timeout,
+			ITerminalLogger logger) throws IOException {
+		this.server=server;
+		this.timeout=timeout;
+		this.logger=logger;
+		this.serverChannel=serverChannel;
+		selector = Selector.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Shutdown the server socket channel, which simply closes it.
+	 * @throws IOException
+	 */
+	public void shutdown() throws IOException {
+		serverChannel.close();
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		logger.logInfo("Selector thread running");
+		while(!isInterrupted()) {
+			try {
+				selector.select(nextDeadlineWait());
+			} catch (IOException e) {
+				logger.logError("Selector thread failed to select.");
+				break;
+			}
+			Runnable completion;
+			while((completion=completions.poll())!=null) {
+				completion.run();
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if(!key.isValid()) continue;
+				if(key.isAcceptable()) {
+					accept();
+					continue;
+				}
+				Connection connection = (Connection) key.attachment();
+				try {
+					if(key.isReadable()) {
+						read(connection);
+					}
+					if(!connection.closed && key.isWritable()) {
+						flush(connection);
+					}
+				} catch (IOException e) {
+					logger.logWarn("Something went wrong with the connection.");
+					close(connection);
+				}
+			}
+			expireDeadlines();
+		}
+		for(SelectionKey key : selector.keys()) {
+			if(key.attachment()!=null) {
+				close((Connection) key.attachment());
+			}
+		}
+		try {
+			serverChannel.close();
+			selector.close();
+		} catch (IOException e) {
+			logger.logWarn("Selector thread could not close the selector.");
+		}
+		logger.logInfo("Selector thread completed.");
+	}
+
+	private void accept() {
+		SocketChannel channel;
+		try {
+			while((channel=serverChannel.accept())!=null) {
+				try {
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+					Connection connection = new Connection();
+					connection.channel=channel;
+					connection.ip=channel.socket().getInetAddress().getHostAddress();
+					connection.port=channel.socket().getPort();
+					connection.key=channel.register(selector, SelectionKey.OP_READ, connection);
+					logger.logInfo("Server processing request on connection "+connection.ip);
+					resetDeadline(connection);
+					send(connection,server.welcomeMsg());
+				} catch (IOException e) {
+					logger.logWarn("Something went wrong with the connection.");
+					channel.close();
+				}
+			}
+		} catch (IOException e) {
+			logger.logError("Selector thread failed to accept.");
+		}
+	}
+
+	/**
+	 * Read what is available on the connection and handle each complete line.
+	 * Bytes after the line that moves the connection to {@link STATE#CLOSING}
+	 * are ignored.
+	 */
+	private void read(Connection connection) throws IOException {
+		readBuffer.clear();
+		int n = connection.channel.read(readBuffer);
+		if(n<0) {
+			close(connection);
+			return;
+		}
+		readBuffer.flip();
+		consume(connection,readBuffer);
+	}
+
+	/**
+	 * Handle each complete line in the buffer, holding the bytes that follow a
+	 * request that the connection must wait for.
+	 */
+	private void consume(Connection connection,ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining() && connection.state!=STATE.CLOSING) {
+			if(connection.waiting) {
+				connection.held = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+				return;
+			}
+			byte b = buffer.get();
+			if(b!='\n') {
+				if(connection.line.size()>=MAX_LINE_LENGTH) {
+					connection.state=STATE.CLOSING;
+					send(connection,new ErrorMsg("Message too long"));
+					return;
+				}
+				connection.line.write(b);
+				continue;
+			}
+			String jsonStr = connection.line.toString(StandardCharsets.UTF_8);
+			connection.line.reset();
+			if(jsonStr.endsWith("\r")) {
+				jsonStr=jsonStr.substring(0,jsonStr.length()-1);
+			}
+			handleLine(connection,jsonStr);
+		}
+	}
+
+	/**
+	 * The per connection state machine, following the same welcome, authenticate and
+	 * request protocol as the blocking server, including keep alive sessions.
+	 */
+	private void handleLine(Connection connection,String jsonStr) throws IOException {
+		Message limited = server.rateLimit(jsonStr,connection.ip,connection.node);
+		if(limited!=null) {
+			if(connection.state==STATE.AUTHENTICATE || !connection.keepAlive) {
+				connection.state=STATE.CLOSING;
+			} else {
+				resetDeadline(connection);
+			}
+			send(connection,limited);
+			return;
+		}
+		Message msg;
+		try {
+			msg = server.parseMsg(jsonStr);
+		} catch (JsonSerializationException e) {
+			connection.state=STATE.CLOSING;
+			send(connection,new ErrorMsg("Invalid message"));
+			return;
+		}
+		Message reply;
+		try {
+			if(connection.state==STATE.AUTHENTICATE && server.hasSessionToken(msg,connection.ip)) {
+				connection.state=STATE.CLOSING;
+				if(server.mayBlock(msg)) {
+					processLater(connection,msg,false);
+					return;
+				}
+				reply = server.processRequestMsg(msg,connection.ip,connection.port,false);
+			} else if(connection.state==STATE.AUTHENTICATE) {
+				reply = server.authenticate(msg,connection.ip);
+				connection.state = server.isAuthenticated(reply) ? STATE.REQUEST : STATE.CLOSING;
+				connection.keepAlive = server.isKeepAlive(reply);
+				connection.node = server.isNode(reply);
+			} else if(connection.keepAlive && msg.getClass().getName()==Goodbye.class.getName()) {
+				connection.state=STATE.CLOSING;
+				flush(connection);
+				return;
+			} else if(connection.keepAlive && msg.requestId!=null && connection.inFlight<Server.MAX_PIPELINED) {
+				connection.inFlight++;
+				resetDeadline(connection);
+				server.processPipelined(msg,connection.ip,connection.port,connection.node,pipelinedReply -> {
+					completions.add(() -> complete(connection,pipelinedReply));
+					selector.wakeup();
+				});
+				return;
+			} else {
+				if(!connection.keepAlive) {
+					connection.state=STATE.CLOSING;
+				}
+				if(server.mayBlock(msg)) {
+					processLater(connection,msg,connection.node);
+					return;
+				}
+				reply = server.processRequestMsg(msg,connection.ip,connection.port,connection.node);
+			}
+		} catch (RuntimeException e) {
+			logger.logWarn("Server failed to process message: "+e.getMessage());
+			reply = new ErrorMsg("Invalid message");
+			connection.state=STATE.CLOSING;
+		}
+		if(connection.state!=STATE.CLOSING) {
+			resetDeadline(connection);
+		}
+		send(connection,reply);
+	}
+
+	/**
+	 * Have a request that is not pipelined processed by the executor, and stop
+	 * handling the connection's lines until its reply is sent.
+	 */
+	private void processLater(Connection connection,Message msg,boolean node) {
+		connection.inFlight++;
+		connection.waiting=true;
+		connection.key.interestOps(0);
+		server.processPipelined(msg,connection.ip,connection.port,node,reply -> {
+			completions.add(() -> resume(connection,reply));
+			selector.wakeup();
+		});
+	}
+
+	/**
+	 * Send the reply to a request the connection was waiting for, and then handle
+	 * the lines held while waiting.
+	 */
+	private void resume(Connection connection,Message reply) {
+		connection.waiting=false;
+		complete(connection,reply);
+		if(connection.closed) return;
+		if(connection.state!=STATE.CLOSING) {
+			resetDeadline(connection);
+		}
+		ByteBuffer held = connection.held;
+		connection.held=null;
+		try {
+			if(held!=null) {
+				consume(connection,held);
+			}
+			flush(connection);
+		} catch (IOException e) {
+			logger.logWarn("Something went wrong with the connection.");
+			close(connection);
+		}
+	}
+
+	/**
+	 * Send the reply to a pipelined request, unless the connection has been closed
+	 * in the meantime.
+	 */
+	private void complete(Connection connection,Message reply) {
+		connection.inFlight--;
+		if(connection.closed) return;
+		try {
+			send(connection,reply);
+		} catch (IOException e) {
+			logger.logWarn("Something went wrong with the connection.");
+			close(connection);
+		}
+	}
+
+	private void send(Connection connection,Message msg) throws IOException {
+		logger.logDebug("sending: "+msg.toString());
+		connection.pending.add(ByteBuffer.wrap((msg.toString()+"\n").getBytes(StandardCharsets.UTF_8)));
+		flush(connection);
+	}
+
+	/**
+	 * Write as much pending data as the channel accepts. Read interest is dropped
+	 * while a reply is pending, and the connection is closed once the final reply
+	 * has been written and no pipelined requests are still in progress.
+	 */
+	private void flush(Connection connection) throws IOException {
+		while(!connection.pending.isEmpty()) {
+			ByteBuffer buffer = connection.pending.peek();
+			connection.channel.write(buffer);
+			if(buffer.hasRemaining()) {
+				connection.key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			connection.pending.poll();
+		}
+		if(connection.state!=STATE.CLOSING) {
+			connection.key.interestOps(connection.waiting ? 0 : SelectionKey.OP_READ);
+		} else if(connection.inFlight==0) {
+			close(connection);
+		} else {
+			connection.key.interestOps(0);
+		}
+	}
+
+	private void close(Connection connection) {
+		if(connection.closed) return;
+		connection.closed=true;
+		connection.key.cancel();
+		try {
+			connection.channel.close();
+		} catch (IOException e) {
+			logger.logWarn("Selector thread could not close connection.");
+		}
+	}
+
+	/*
+	 * Read deadlines.
+	 */
+
+	private static long now() {
+		return System.nanoTime()/1000000;
+	}
+
+	private void resetDeadline(Connection connection) {
+		if(timeout<=0) return;
+		connection.deadline=now()+timeout;
+		deadlines.add(new Deadline(connection,connection.deadline));
+	}
+
+	/**
+	 * @return the number of milliseconds until the earliest deadline, or 0 to wait indefinitely
+	 */
+	private long nextDeadlineWait() {
+		Deadline deadline = deadlines.peek();
+		if(deadline==null) return 0;
+		return Math.max(1,deadline.time-now());
+	}
+
+	private void expireDeadlines() {
+		long now = now();
+		while(!deadlines.isEmpty() && deadlines.peek().time<=now) {
+			Deadline deadline = deadlines.poll();
+			Connection connection = deadline.connection;
+			// a connection waiting for its reply is given a new deadline once it is sent
+			if(!connection.closed && !connection.waiting && connection.deadline==deadline.time) {
+				logger.logDebug("Selector thread closed connection "+connection.ip+" after read deadline.");
+				close(connection);
+			}
+		}
+	}
+}
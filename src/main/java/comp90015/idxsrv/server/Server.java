@@ -7,25 +7,42 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collection;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.StandardCharsets;
 
 import comp90015.idxsrv.message.AuthenticateReply;
 import comp90015.idxsrv.message.AuthenticateRequest;
+import comp90015.idxsrv.message.AutocompleteReply;
+import comp90015.idxsrv.message.AutocompleteRequest;
+import comp90015.idxsrv.message.ClusterUpdate;
 import comp90015.idxsrv.message.DropShareReply;
 import comp90015.idxsrv.message.DropShareRequest;
 import comp90015.idxsrv.message.ErrorMsg;
+import comp90015.idxsrv.message.ForwardRequest;
+import comp90015.idxsrv.message.Goodbye;
+import comp90015.idxsrv.message.HeartbeatReply;
+import comp90015.idxsrv.message.HeartbeatRequest;
+import comp90015.idxsrv.message.JoinRequest;
 import comp90015.idxsrv.message.JsonSerializationException;
 import comp90015.idxsrv.message.LookupReply;
 import comp90015.idxsrv.message.LookupRequest;
 import comp90015.idxsrv.message.Message;
 import comp90015.idxsrv.message.MessageFactory;
+import comp90015.idxsrv.message.ReplicateRequest;
 import comp90015.idxsrv.message.SearchReply;
 import comp90015.idxsrv.message.SearchRequest;
 import comp90015.idxsrv.message.ShareReply;
@@ -38,11 +55,34 @@ import comp90015.idxsrv.textgui.ITerminalLogger;
 /**
  * Server protocol implementation for the Index Server, which extends thread
  * and processes an unbounded number of incoming connections until it is interrupted.
+ * In {@link MODE#POOL} mode incoming connections are drained from the queue by a pool
+ * of worker threads, so that a slow client only holds up one worker rather than the
+ * whole server. In {@link MODE#VIRTUAL} mode each connection is processed on its own
+ * virtual thread instead. In {@link MODE#NIO} mode a single {@link SelectorThread}
+ * multiplexes all connections without a thread per connection.
  * @author aaron
  *
  */
 public class Server extends Thread {
 	
+	/**
+	 * How connections are accepted and processed.
+	 */
+	public enum MODE {
+		/**
+		 * Blocking sockets accepted by an {@link IOThread} and processed by worker threads.
+		 */
+		POOL,
+		/**
+		 * Blocking sockets accepted by an {@link IOThread} and each processed on a new virtual thread.
+		 */
+		VIRTUAL,
+		/**
+		 * Non-blocking channels multiplexed by a single {@link SelectorThread}.
+		 */
+		NIO
+	}
+	
 	/*
 	 * Some private variables.
 	 */
@@ -53,70 +93,451 @@ public class Server extends Thread {
 	
 	private IOThread ioThread;
 	
+	private SelectorThread selectorThread;
+	
+	/**
+	 * The channel that the SelectorThread accepts connections from, in {@link MODE#NIO} mode.
+	 */
+	private ServerSocketChannel serverChannel;
+	
+	private int socketTimeout;
+	
 	private String welcome;
 	
 	private String secret;
 	
+	/**
+	 * The secret that other index servers present, or null if none may connect.
+	 */
+	private String nodeSecret;
+	
 	private ITerminalLogger logger;
 	
+	private MODE mode;
+	
+	private int numWorkers;
+	
+	/**
+	 * Processes requests that are pipelined on keep alive sessions.
+	 */
+	private ExecutorService requestExecutor;
+	
+	private SessionTokens sessionTokens;
+	
+	private SearchCursors searchCursors;
+	
+	/**
+	 * The cache of search replies, or null if searches are not cached.
+	 */
+	private SearchCache searchCache;
+	
+	/**
+	 * The log that persists the index, or null if the index is not persisted.
+	 */
+	private IndexLog indexLog;
+	
+	/**
+	 * The leases of sharer endpoints, or null if shares do not expire.
+	 */
+	private Leases leases;
+	
+	/**
+	 * Probes the endpoints of sharers, or null if they are not probed.
+	 */
+	private Prober prober;
+	
+	/**
+	 * The cluster that this server is a node of, or null if it serves the whole index.
+	 */
+	private Cluster cluster;
+	
+	/**
+	 * The node whose cluster to join when the server starts, or an empty string.
+	 */
+	private String seed;
+	
+	/**
+	 * The address of this server as a node of a cluster, as ADDRESS:PORT.
+	 */
+	private String self;
+	
+	/**
+	 * The primary that this server is a replica of, or null if it is a primary.
+	 */
+	private String primary;
+	
+	/**
+	 * The replica of a primary that this server is, or null if it is a primary.
+	 */
+	private Replica replica;
+	
+	/**
+	 * The changes fetched by replicas of this server, made when the first replica
+	 * fetches them.
+	 */
+	private ReplicationLog replicationLog;
+	
+	/**
+	 * The rate limits of clients, or null if requests are not limited.
+	 */
+	private RateLimiter rateLimiter;
+	
+	private Object replicationLock = new Object();
+	
+	/**
+	 * The most requests a single session may have in progress at once. Further
+	 * pipelined requests are processed in order until some complete.
+	 */
+	static final int MAX_PIPELINED = 64;
+	
+	/**
+	 * The least time in milliseconds that a shed client is told to wait before retrying.
+	 * Otherwise the hint is the socket timeout, by which time any slow connections ahead
+	 * of the client in the queue have been dealt with.
+	 */
+	private static final int MIN_RETRY_AFTER = 100;
+	
+	/**
+	 * The error sent for a share or drop once the index log can no longer be written.
+	 */
+	private static final String LOG_FAILED = "The index can not be persisted, shares and drops are refused";
+	
+	/**
+	 * The error sent for a drop of an element that is not in the index.
+	 */
+	static final String NOT_FOUND = "Not found";
+	
+	/**
+	 * The error sent for a share of an element that is shared with another secret.
+	 */
+	static final String FAILED_SHARING_SECRET = "Failed sharing secret";
+	
 	/**
 	 * The Server thread must be explicitly started after creating an instance. The
-	 * Server starts an independent IOThread to accept connections.
-	 * @param port
-	 * @param address
-	 * @param welcome
-	 * @param dir
-	 * @param secret
-	 * @param socketTimeout
+	 * Server starts an independent IOThread, or a SelectorThread in {@link MODE#NIO}
+	 * mode, to accept connections.
+	 * @param config the settings of the server
 	 * @param logger
 	 * @throws IOException
 	 */
-	public Server(int port,
-			InetAddress address,
-			String welcome,
-			String dir,
-			String secret,
-			int socketTimeout,
-			ITerminalLogger logger) throws IOException {
-		this.welcome=welcome;
-		this.secret=secret;
+	public Server(ServerConfig config, ITerminalLogger logger) throws IOException {
+		this.welcome=config.welcome;
+		this.secret=config.secret;
+		this.nodeSecret=config.nodeSecret;
 		this.logger=logger;
-		indexMgr = new IndexMgr();
-		incomingConnections=new LinkedBlockingDeque<Socket>();
-		ioThread = new IOThread(port,incomingConnections,socketTimeout,logger);
-		ioThread.start();
+		String seed = config.cluster;
+		if(seed!=null && nodeSecret==null) {
+			logger.logWarn("A cluster node needs a node secret, serving the whole index.");
+			seed=null;
+		}
+		String primary = config.primary!=null && nodeSecret==null ? null : config.primary;
+		if(config.primary!=null && primary==null) {
+			logger.logWarn("A replica needs the node secret of its primary, serving as a primary.");
+		}
+		MODE mode = config.mode;
+		if(seed!=null && mode!=MODE.VIRTUAL) {
+			// a node blocks on other nodes while forwarding, and keeps sessions open to
+			// them, which would tie up every worker or the selector thread
+			logger.logWarn("Cluster nodes process connections on virtual threads, not in "+mode.name().toLowerCase()+" mode.");
+			mode=MODE.VIRTUAL;
+		}
+		this.mode=mode;
+		this.numWorkers=Math.max(1,config.numWorkers);
+		indexMgr = new IndexMgr(config.offHeap);
+		if(config.searchCacheSize>0) {
+			searchCache = new SearchCache(config.searchCacheSize);
+			indexMgr.addListener(searchCache);
+		}
+		if(config.probeInterval>0) {
+			prober = new Prober(config.probeInterval,config.probeConcurrency,config.probeTimeout,indexMgr,logger);
+		}
+		if(config.rateLimit>0) {
+			rateLimiter = new RateLimiter(config.rateLimit,config.rateLimit);
+		}
+		if(config.leaseTtl>0) {
+			leases = new Leases(config.leaseTtl,indexMgr,logger);
+		}
+		if(config.persist) {
+			indexLog = new IndexLog(config.dir,logger);
+			indexLog.recover(indexMgr);
+			indexMgr.addListener(indexLog);
+			indexLog.start();
+		}
+		sessionTokens = new SessionTokens(SessionTokens.DEFAULT_TTL);
+		searchCursors = new SearchCursors(SearchCursors.DEFAULT_TTL);
+		if(mode==MODE.VIRTUAL) {
+			requestExecutor = Executors.newVirtualThreadPerTaskExecutor();
+		} else {
+			requestExecutor = Executors.newFixedThreadPool(this.numWorkers);
+		}
+		socketTimeout=config.socketTimeout;
+		if(mode==MODE.NIO) {
+			serverChannel = SelectorThread.bind(config.port);
+		} else {
+			incomingConnections=new LinkedBlockingDeque<Socket>(Math.max(1,config.queueCapacity));
+			ioThread = new IOThread(config.port,incomingConnections,config.socketTimeout,
+					Math.max(MIN_RETRY_AFTER,config.socketTimeout),logger);
+		}
+		if(seed!=null) {
+			this.self=config.address.getHostAddress()+":"+config.port;
+			this.seed=seed;
+		}
+		this.primary=primary;
+	}
+	
+	/**
+	 * Start the threads that are handed the server, which accept connections and
+	 * maintain the index, and then the Server thread itself.
+	 */
+	@Override
+	public void start() {
+		if(seed!=null) {
+			cluster = new Cluster(self,secret,nodeSecret,this,indexMgr,logger);
+		}
+		if(primary!=null) {
+			replica = new Replica(primary,secret,nodeSecret,indexMgr,this::promoted,logger);
+		}
+		if(indexLog!=null) {
+			// serve from the mapped snapshot straight away and migrate the rest in the background
+			Thread hydration = new Thread(() -> {
+				indexMgr.hydrate();
+				logger.logInfo("Index hydrated from the snapshot.");
+				if(primary==null) {
+					// recovered sharers get a full lease to show that they are still live
+					renewLeases();
+				}
+			});
+			hydration.setDaemon(true);
+			hydration.setPriority(Thread.MIN_PRIORITY);
+			hydration.start();
+		}
+		if(leases!=null) {
+			leases.start();
+		}
+		if(mode==MODE.NIO) {
+			try {
+				selectorThread = new SelectorThread(serverChannel,this,socketTimeout,logger);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			selectorThread.start();
+		} else {
+			ioThread.start();
+		}
+		super.start();
+	}
+	
+	/**
+	 * Take over as the primary once the primary that this server is a replica of fails.
+	 */
+	private void promoted() {
+		renewLeases();
+		if(prober!=null) {
+			prober.start();
+		}
+	}
+	
+	/**
+	 * Give every sharer in the index a full lease, for sharers that the server did
+	 * not see share their files.
+	 */
+	private void renewLeases() {
+		if(leases==null) return;
+		for(String endpoint : indexMgr.getEndpoints()) {
+			int colon = endpoint.lastIndexOf(':');
+			leases.renew(endpoint.substring(0,colon),Integer.parseInt(endpoint.substring(colon+1)));
+		}
+	}
+	
+	/**
+	 * @return the cache of search replies, or null if searches are not cached
+	 */
+	public SearchCache getSearchCache() {
+		return searchCache;
+	}
+	
+	/**
+	 * @return the number of accepted connections waiting for a thread
+	 */
+	public int getQueueDepth() {
+		return incomingConnections==null ? 0 : incomingConnections.size();
+	}
+	
+	/**
+	 * @return the number of connections shed because the incoming connection queue was full
+	 */
+	public long getDroppedConnections() {
+		return ioThread==null ? 0 : ioThread.getDroppedConnections();
 	}
 	
 	@Override
 	public void run() {
-		logger.logInfo("Server thread running.");
-		while(!isInterrupted()) {
+		if(cluster!=null && !seed.isEmpty()) {
 			try {
-				Socket socket = incomingConnections.take();
-				processRequest(socket);
-				socket.close();
-			} catch (InterruptedException e) {
-				logger.logWarn("Server interrupted.");
-				break;
+				cluster.join(seed);
 			} catch (IOException e) {
-				logger.logWarn("Server received io exception on socket.");
+				logger.logError("Could not join the cluster of "+seed+", serving as a new cluster: "+e.getMessage());
 			}
 		}
+		if(replica!=null) {
+			replica.start();
+		} else if(prober!=null) {
+			// a replica follows the primary's index until it is promoted
+			prober.start();
+		}
+		if(mode==MODE.NIO) {
+			runSelector();
+		} else if(mode==MODE.VIRTUAL) {
+			runVirtualThreads();
+		} else {
+			runWorkers();
+		}
+		requestExecutor.shutdown();
+		if(searchCache!=null) {
+			logger.logInfo("Search cache "+searchCache);
+		}
+		if(cluster!=null) {
+			cluster.shutdown();
+		}
+		if(replica!=null) {
+			replica.interrupt();
+		}
+		if(leases!=null) {
+			leases.interrupt();
+		}
+		if(prober!=null) {
+			prober.interrupt();
+		}
+		if(indexLog!=null) {
+			indexLog.shutdown();
+		}
+		if(mode==MODE.NIO) {
+			logger.logInfo("Server thread completed.");
+			return;
+		}
 		logger.logInfo("Server thread waiting for IO thread to stop...");
 		ioThread.interrupt();
 		try {
+			ioThread.shutdown();
 			ioThread.join();
+		} catch (IOException e) {
+			logger.logWarn("Server could not shutdown IO thread.");
 		} catch (InterruptedException e) {
 			logger.logWarn("Interrupted while joining with IO thread.");
 		}
 		logger.logInfo("Server thread completed.");
 	}
 	
+	private void runSelector() {
+		logger.logInfo("Server thread running in selector mode.");
+		try {
+			selectorThread.join();
+		} catch (InterruptedException e) {
+			logger.logWarn("Server interrupted.");
+		}
+		logger.logInfo("Server thread waiting for selector thread to stop...");
+		selectorThread.interrupt();
+		try {
+			selectorThread.shutdown();
+			selectorThread.join();
+		} catch (IOException e) {
+			logger.logWarn("Server could not shutdown selector thread.");
+		} catch (InterruptedException e) {
+			logger.logWarn("Interrupted while joining with selector thread.");
+		}
+	}
+	
+	private void runWorkers() {
+		logger.logInfo("Server thread running with "+numWorkers+" worker threads.");
+		Thread[] workers = new Thread[numWorkers];
+		for(int i=0;i<numWorkers;i++) {
+			workers[i] = new Thread(this::processConnections,"IdxSrv-worker-"+i);
+			workers[i].start();
+		}
+		try {
+			for(Thread worker : workers) {
+				worker.join();
+			}
+		} catch (InterruptedException e) {
+			logger.logWarn("Server interrupted.");
+		}
+		logger.logInfo("Server thread waiting for worker threads to stop...");
+		for(Thread worker : workers) {
+			worker.interrupt();
+		}
+		for(Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				logger.logWarn("Interrupted while joining with worker thread.");
+			}
+		}
+	}
+	
+	/**
+	 * Start a new virtual thread for every connection taken off the incoming queue.
+	 * Virtual threads that are still processing a connection when the server is
+	 * interrupted are left to finish on their own.
+	 */
+	private void runVirtualThreads() {
+		logger.logInfo("Server thread running with a virtual thread per connection.");
+		Thread.Builder builder = Thread.ofVirtual().name("IdxSrv-vthread-",0);
+		while(!isInterrupted()) {
+			Socket socket;
+			try {
+				socket = incomingConnections.take();
+			} catch (InterruptedException e) {
+				logger.logWarn("Server interrupted.");
+				break;
+			}
+			builder.start(() -> processConnection(socket));
+		}
+	}
+	
+	/**
+	 * The body of each worker thread, which takes connections off the incoming
+	 * queue and processes them until the worker is interrupted.
+	 */
+	private void processConnections() {
+		while(!Thread.currentThread().isInterrupted()) {
+			Socket socket;
+			try {
+				socket = incomingConnections.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+			processConnection(socket);
+		}
+	}
+	
+	/**
+	 * Process the request on a connection and then close it.
+	 * @param socket
+	 */
+	private void processConnection(Socket socket) {
+		try {
+			processRequest(socket);
+		} catch (IOException e) {
+			logger.logWarn("Server received io exception on socket.");
+		} catch (RuntimeException e) {
+			// the connection is closed, but the worker goes on to the next one
+			logger.logError("Server failed on connection: "+e);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				logger.logWarn("Server could not close socket.");
+			}
+		}
+	}
+	
 	
 	/**
 	 * This method is essentially the "Session Layer" logic, where the session is
 	 * short since it consists of exactly one request on the socket, then the socket
-	 * is closed.
+	 * is closed. If the client asks for keep alive when authenticating then the
+	 * session instead continues with any number of requests until the client sends
+	 * a {@link Goodbye}, closes the connection, or stays idle past the socket timeout.
 	 * @param socket
 	 * @throws IOException
 	 */
@@ -134,102 +555,532 @@ public class Server extends Thread {
 		 */
 		
 		// write the welcome
-		writeMsg(bufferedWriter,new WelcomeMsg(welcome));
+		writeMsg(bufferedWriter,welcomeMsg());
 		
 		// get a message
 		Message msg;
 		try {
-			msg = readMsg(bufferedReader);
+			String jsonStr = readLine(bufferedReader);
+			Message limited = rateLimit(jsonStr,ip,false);
+			if(limited!=null) {
+				writeMsg(bufferedWriter,limited);
+				return;
+			}
+			msg = parseMsg(jsonStr);
 		} catch (JsonSerializationException e1) {
 			writeMsg(bufferedWriter,new ErrorMsg("Invalid message"));
 			return;
 		}
 		
+		// a request with a valid session token skips the authenticate step
+		if(hasSessionToken(msg,ip)) {
+			writeMsg(bufferedWriter,processSafely(msg,ip,port,false));
+			bufferedReader.close();
+			bufferedWriter.close();
+			return;
+		}
+		
 		// check it is an authenticate request
-		if(msg.getClass().getName()==AuthenticateRequest.class.getName()) {
-			AuthenticateRequest ar = (AuthenticateRequest) msg;
-			if(!ar.secret.equals(this.secret)) {
-				writeMsg(bufferedWriter,new AuthenticateReply(false));
-				return;
-			} else {
-				writeMsg(bufferedWriter,new AuthenticateReply(true));
-			}
-		} else {
-			writeMsg(bufferedWriter,new ErrorMsg("Expecting AuthenticateRequest"));
+		Message reply;
+		try {
+			reply = authenticate(msg,ip);
+		} catch (RuntimeException e) {
+			logger.logWarn("Server failed to authenticate: "+e.getMessage());
+			writeMsg(bufferedWriter,new ErrorMsg("Invalid message"));
+			return;
+		}
+		writeMsg(bufferedWriter,reply);
+		if(!isAuthenticated(reply)) {
 			return;
 		}
 		
 		/*
 		 * Now get the request and process it. This is a single-request-per-connection
-		 * protocol.
+		 * protocol unless keep alive was agreed.
 		 */
 		
-		// get the request message
+		boolean keepAlive = isKeepAlive(reply);
+		boolean node = isNode(reply);
+		Phaser pipelined = new Phaser(1);
 		try {
-			msg = readMsg(bufferedReader);
-		} catch (JsonSerializationException e) {
-			writeMsg(bufferedWriter,new ErrorMsg("Invalid message"));
-			return;
+			do {
+				// get the request message
+				try {
+					String jsonStr = readLine(bufferedReader);
+					Message limited = rateLimit(jsonStr,ip,node);
+					if(limited!=null) {
+						writeMsg(bufferedWriter,limited);
+						continue;
+					}
+					msg = parseMsg(jsonStr);
+				} catch (JsonSerializationException e) {
+					writeMsg(bufferedWriter,new ErrorMsg("Invalid message"));
+					return;
+				} catch (SocketTimeoutException e) {
+					if(!keepAlive) throw e;
+					logger.logDebug("Server closing idle session on connection "+ip);
+					return;
+				} catch (IOException e) {
+					if(!keepAlive) throw e;
+					return;
+				}
+				if(keepAlive && msg.getClass().getName()==Goodbye.class.getName()) {
+					break;
+				}
+				
+				// process the request message, pipelined requests are processed concurrently
+				// and their replies written as they complete
+				if(keepAlive && msg.requestId!=null && pipelined.getUnarrivedParties()<=MAX_PIPELINED) {
+					pipelined.register();
+					processPipelined(msg,ip,port,node,pipelinedReply -> {
+						try {
+							writeMsg(bufferedWriter,pipelinedReply);
+						} catch (IOException e) {
+							logger.logWarn("Server could not write pipelined reply.");
+						} finally {
+							pipelined.arriveAndDeregister();
+						}
+					});
+				} else {
+					writeMsg(bufferedWriter,processSafely(msg,ip,port,node));
+				}
+			} while(keepAlive);
+		} finally {
+			// wait for replies to pipelined requests before the connection is closed
+			pipelined.arriveAndAwaitAdvance();
 		}
 		
-		// process the request message
+		// close the streams
+		bufferedReader.close();
+		bufferedWriter.close();
+	}
+	
+	/*
+	 * Protocol steps shared by the blocking workers and the selector thread.
+	 */
+	
+	/**
+	 * @return the welcome message sent as the first message on every connection
+	 */
+	Message welcomeMsg() {
+		return new WelcomeMsg(welcome);
+	}
+	
+	/**
+	 * @param msg the first message received from the client
+	 * @param ip the ip address of the client
+	 * @return true if the message is a request that carries a valid session token,
+	 * in which case it is processed without an authenticate step
+	 */
+	boolean hasSessionToken(Message msg,String ip) {
+		return msg.token!=null &&
+				msg.getClass().getName()!=AuthenticateRequest.class.getName() &&
+				sessionTokens.isValid(msg.token,ip);
+	}
+	
+	/**
+	 * Check the first message received on a connection, which must be an
+	 * authenticate request with the correct server secret. A session token is
+	 * issued if the client asks for one. A connection that also presents the node
+	 * secret is from another index server.
+	 * @param msg the first message received from the client
+	 * @param ip the ip address of the client
+	 * @return the reply to send, see {@link #isAuthenticated(Message)}
+	 */
+	Message authenticate(Message msg,String ip) {
+		if(msg.getClass().getName()==AuthenticateRequest.class.getName()) {
+			AuthenticateRequest ar = (AuthenticateRequest) msg;
+			if(!this.secret.equals(ar.secret)) {
+				return new AuthenticateReply(false);
+			}
+			if(ar.nodeSecret!=null && (nodeSecret==null || !nodeSecret.equals(ar.nodeSecret))) {
+				return new AuthenticateReply(false);
+			}
+			AuthenticateReply reply;
+			if(ar.keepAlive!=null && ar.keepAlive) {
+				reply = new AuthenticateReply(true,true);
+			} else {
+				reply = new AuthenticateReply(true);
+			}
+			if(ar.requestToken!=null && ar.requestToken) {
+				reply.sessionToken = sessionTokens.issue(ip);
+				reply.sessionTokenTtl = sessionTokens.getTtl();
+			}
+			if(ar.nodeSecret!=null) {
+				reply.node = true;
+			}
+			return reply;
+		} else if(msg.token!=null) {
+			return new ErrorMsg("Invalid or expired session token");
+		} else {
+			return new ErrorMsg("Expecting AuthenticateRequest");
+		}
+	}
+	
+	/**
+	 * @param reply a reply returned by {@link #authenticate(Message,String)}
+	 * @return true if the session may proceed to the request, false if it should be closed
+	 */
+	boolean isAuthenticated(Message reply) {
+		return reply.getClass().getName()==AuthenticateReply.class.getName() &&
+				((AuthenticateReply) reply).success;
+	}
+	
+	/**
+	 * @param reply a reply returned by {@link #authenticate(Message,String)}
+	 * @return true if the session continues with further requests until a {@link Goodbye}
+	 */
+	boolean isKeepAlive(Message reply) {
+		return isAuthenticated(reply) &&
+				Boolean.TRUE.equals(((AuthenticateReply) reply).keepAlive);
+	}
+	
+	/**
+	 * @param reply a reply returned by {@link #authenticate(Message,String)}
+	 * @return true if the connection is from another index server, and may make the
+	 * requests that only index servers make to each other
+	 */
+	boolean isNode(Message reply) {
+		return isAuthenticated(reply) &&
+				Boolean.TRUE.equals(((AuthenticateReply) reply).node);
+	}
+	
+	/**
+	 * Process a request message on the request executor, so that requests pipelined on
+	 * a keep alive session are processed concurrently and answered in whatever order they
+	 * complete. The reply carries the request's id.
+	 * @param msg the request message
+	 * @param ip the ip address of the client
+	 * @param port the port number of the client's connection
+	 * @param node true if the connection is from another index server
+	 * @param onReply called with the reply, on an executor thread
+	 */
+	void processPipelined(Message msg,String ip,int port,boolean node,Consumer<Message> onReply) {
+		Runnable task = () -> onReply.accept(processSafely(msg,ip,port,node));
+		try {
+			requestExecutor.execute(task);
+		} catch (RejectedExecutionException e) {
+			task.run();
+		}
+	}
+	
+	/**
+	 * Process a request message, replying with an error if processing it fails, so
+	 * that a request that breaks the server is answered rather than leaving the
+	 * client without a reply.
+	 */
+	private Message processSafely(Message msg,String ip,int port,boolean node) {
+		try {
+			return processRequestMsg(msg,ip,port,node);
+		} catch (RuntimeException e) {
+			logger.logWarn("Server failed to process message: "+e.getMessage());
+			Message reply = new ErrorMsg("Invalid message");
+			reply.requestId = msg.requestId;
+			return reply;
+		}
+	}
+	
+	/**
+	 * @param msg a request message
+	 * @return true if processing the request may wait for the index log to be forced
+	 * to disk or for another index server, in which case a selector thread has it
+	 * processed by {@link #processPipelined} rather than processing it itself
+	 */
+	boolean mayBlock(Message msg) {
+		if(cluster!=null) return true;
 		String msgname = msg.getClass().getName();
+		return indexLog!=null && (msgname==ShareRequest.class.getName()
+				|| msgname==DropShareRequest.class.getName()
+				|| msgname==ForwardRequest.class.getName());
+	}
+	
+	/**
+	 * Process a request message against the index.
+	 * @param msg the request message
+	 * @param ip the ip address of the client
+	 * @param port the port number of the client's connection
+	 * @param node true if the connection is from another index server
+	 * @return the reply to send to the client, with the request's id if it has one
+	 */
+	Message processRequestMsg(Message msg,String ip,int port,boolean node) {
+		Message reply = processRequestCmd(msg,ip,port,node);
+		reply.requestId = msg.requestId;
+		return reply;
+	}
+	
+	private Message processRequestCmd(Message msg,String ip,int port,boolean node) {
+		String msgname = msg.getClass().getName();
+		if(msgname==ReplicateRequest.class.getName()) {
+			if(!node) {
+				return new ErrorMsg("Expecting a node connection");
+			}
+			return processReplicateCmd((ReplicateRequest) msg,ip,port);
+		}
+		if(msgname==ForwardRequest.class.getName()
+				|| msgname==JoinRequest.class.getName()
+				|| msgname==ClusterUpdate.class.getName()) {
+			// the client's address in a forwarded request is only trusted from a node
+			if(!node) {
+				return new ErrorMsg("Expecting a node connection");
+			}
+			if(cluster==null) {
+				return new ErrorMsg("Not a cluster node");
+			}
+			if(msgname==JoinRequest.class.getName()) {
+				return cluster.processJoin((JoinRequest) msg);
+			} else if(msgname==ClusterUpdate.class.getName()) {
+				return cluster.processUpdate((ClusterUpdate) msg);
+			}
+			return processForwardCmd((ForwardRequest) msg,port);
+		}
+		if(cluster!=null) {
+			Message reply = cluster.route(msg,ip,port);
+			if(reply!=null) {
+				return reply;
+			}
+		}
+		return processLocalCmd(msg,ip,port);
+	}
+	
+	/**
+	 * Process a request against this server's own index, whether or not it is a
+	 * cluster node.
+	 * @param msg the request message
+	 * @param ip the ip address of the client
+	 * @param port the port number of the client's connection
+	 * @return the reply
+	 */
+	Message processLocalCmd(Message msg,String ip,int port) {
+		String msgname = msg.getClass().getName();
+		if(isReadOnly() && (msgname==ShareRequest.class.getName()
+				|| msgname==DropShareRequest.class.getName()
+				|| msgname==HeartbeatRequest.class.getName())) {
+			return new ErrorMsg("Read only replica of "+replica.getPrimary());
+		}
 		if(msgname==ShareRequest.class.getName()) {
-			processShareCmd(bufferedWriter,(ShareRequest) msg,ip,port);
+			return processShareCmd((ShareRequest) msg,ip,port);
 		} else if(msgname==DropShareRequest.class.getName()) {
-			processDropCmd(bufferedWriter,(DropShareRequest) msg,ip,port);
+			return processDropCmd((DropShareRequest) msg,ip,port);
 		} else if(msgname==SearchRequest.class.getName()) {
-			processSearchCmd(bufferedWriter,(SearchRequest) msg,ip,port);
+			return processSearchCmd((SearchRequest) msg,ip,port);
 		} else if(msgname==LookupRequest.class.getName()) {
-			processLookupCmd(bufferedWriter,(LookupRequest) msg,ip,port);
+			return processLookupCmd((LookupRequest) msg,ip,port);
+		} else if(msgname==HeartbeatRequest.class.getName()) {
+			return processHeartbeatCmd((HeartbeatRequest) msg,ip,port);
+		} else if(msgname==AutocompleteRequest.class.getName()) {
+			return processAutocompleteCmd((AutocompleteRequest) msg,ip,port);
 		} else {
-			writeMsg(bufferedWriter,new ErrorMsg("Expecting a request message"));
+			return new ErrorMsg("Expecting a request message");
 		}
-		
-		// close the streams
-		bufferedReader.close();
-		bufferedWriter.close();
 	}
 	
 	/*
 	 * Methods to process each of the possible requests.
 	 */
 	
-	private void processShareCmd(BufferedWriter bufferedWriter,ShareRequest msg,String ip, int port) throws IOException {
-		if(indexMgr.share(ip, msg.port, msg.fileDescr, msg.filename, msg.sharingSecret)==RETCODE.FAILEDSECRET) {
-			writeMsg(bufferedWriter,new ErrorMsg("Failed sharing secret"));
+	private Message processForwardCmd(ForwardRequest msg,int port) {
+		Message request;
+		try {
+			request = parseMsg(msg.request);
+		} catch (JsonSerializationException e) {
+			return new ErrorMsg("Invalid forwarded request");
+		}
+		// the node that forwarded the request has already routed it
+		return processLocalCmd(request,msg.ip,port);
+	}
+	
+	private Message processShareCmd(ShareRequest msg,String ip, int port) {
+		if(isLogFailed()) {
+			return new ErrorMsg(LOG_FAILED);
+		}
+		if(leases!=null) {
+			leases.renew(ip,msg.port);
+		}
+		RETCODE retcode = indexMgr.share(ip, msg.port, msg.fileDescr, msg.filename, msg.sharingSecret);
+		if(retcode==RETCODE.FAILEDSECRET) {
+			return new ErrorMsg(FAILED_SHARING_SECRET);
+		} else if(retcode==RETCODE.INVALID) {
+			return new ErrorMsg("Invalid file descriptor");
+		} else if(!awaitDurable()) {
+			return new ErrorMsg(LOG_FAILED);
 		} else {
-			Integer numSharers = indexMgr.lookup(msg.filename,msg.fileDescr.getFileMd5()).size();
-			writeMsg(bufferedWriter,new ShareReply(numSharers));
+			Integer numSharers = indexMgr.seedCount(msg.filename,msg.fileDescr.getFileMd5());
+			return new ShareReply(numSharers);
 		}			
 	}
 	
-	private void processDropCmd(BufferedWriter bufferedWriter,DropShareRequest msg,String ip, int port) throws IOException {
+	private Message processDropCmd(DropShareRequest msg,String ip, int port) {
+		if(isLogFailed()) {
+			return new ErrorMsg(LOG_FAILED);
+		}
 		RETCODE retcode = indexMgr.drop(ip, msg.port, msg.filename, msg.fileMd5, msg.sharingSecret);
 		if(retcode==RETCODE.FAILEDSECRET) {
-			writeMsg(bufferedWriter,new ErrorMsg("Failed secret"));
+			return new ErrorMsg("Failed secret");
 		} else if(retcode==RETCODE.INVALID) {
-			writeMsg(bufferedWriter,new ErrorMsg("Not found"));
+			return new ErrorMsg(NOT_FOUND);
+		} else if(!awaitDurable()) {
+			return new ErrorMsg(LOG_FAILED);
 		} else {
-			writeMsg(bufferedWriter,new DropShareReply(true));
+			return new DropShareReply(true);
 		}			
 	}
 	
-	private void processSearchCmd(BufferedWriter bufferedWriter,SearchRequest msg,String ip,int port) throws IOException {
+	/**
+	 * @param reply a reply to a request
+	 * @param error an error sent by the server
+	 * @return true if the reply is that error
+	 */
+	static boolean isError(Message reply, String error) {
+		return reply.getClass().getName()==ErrorMsg.class.getName() && error.equals(((ErrorMsg) reply).msg);
+	}
+	
+	/**
+	 * Wait for the changes made to the index to be logged, if it is persisted, so
+	 * that a change is never acknowledged before it would survive a restart.
+	 * @return false if the index is persisted and the changes could not be logged
+	 */
+	private boolean awaitDurable() {
+		return indexLog==null || indexLog.await();
+	}
+	
+	/**
+	 * @return true if the index is persisted but its log can no longer be written,
+	 * in which case shares and drops are refused rather than acknowledged
+	 */
+	private boolean isLogFailed() {
+		return indexLog!=null && indexLog.isFailed();
+	}
+	
+	private Message processSearchCmd(SearchRequest msg,String ip,int port) {
+		if(msg.cursor!=null) {
+			SearchReply reply = searchCursors.next(msg.cursor,ip,msg.pageSize);
+			return reply!=null ? reply : new ErrorMsg("Invalid or expired cursor");
+		}
+		if(!isSearch(msg)) {
+			return new ErrorMsg("Expecting keywords and maxhits");
+		}
 		for(int i=0;i<msg.keywords.length;i++) {
 			msg.keywords[i]=msg.keywords[i].toLowerCase();
 		}
+		if(msg.pageSize!=null && msg.pageSize>0) {
+			IndexMgr.SearchResults results = indexMgr.searchResults(msg.keywords,
+					SearchCursors.maxPagedHits(msg.maxhits));
+			return searchCursors.first(ip,msg.pageSize,new SearchCursors.Pager() {
+				@Override
+				public SearchReply next(int pageSize) {
+					return searchReply(results.next(pageSize));
+				}
+
+				@Override
+				public boolean hasNext() {
+					return results.hasNext();
+				}
+			});
+		}
+		if(searchCache==null) {
+			return searchReply(indexMgr.search(msg.keywords, msg.maxhits));
+		}
+		String key = SearchCache.key(msg.keywords,msg.maxhits);
+		SearchReply cached = searchCache.get(key);
+		if(cached!=null) {
+			return cached;
+		}
+		SearchCache.Entry entry = searchCache.begin(key,msg.keywords);
 		ArrayList<IndexElement> hits = indexMgr.search(msg.keywords, msg.maxhits);
+		SearchReply reply = searchReply(hits);
+		searchCache.complete(entry,hits,reply.seedCounts);
+		return reply;
+	}
+	
+	/**
+	 * @param msg a search request without a cursor
+	 * @return true if the request has the keywords and maxhits of a search
+	 */
+	static boolean isSearch(SearchRequest msg) {
+		if(msg.keywords==null || msg.maxhits==null) return false;
+		for(String keyword : msg.keywords) {
+			if(keyword==null) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Take the first page of a search and keep the rest for the client's cursor.
+	 * @param ip the ip address of the client
+	 * @param pageSize the most hits per page
+	 * @param pager the ranked hits of the search
+	 * @return the first page, or an error if there is no room for another cursor
+	 */
+	Message firstPage(String ip,int pageSize,SearchCursors.Pager pager) {
+		return searchCursors.first(ip,pageSize,pager);
+	}
+	
+	private Message processAutocompleteCmd(AutocompleteRequest msg,String ip,int port) {
+		// only the token being typed is completed, not one that has been ended
+		String prefix = msg.prefix.toLowerCase();
+		int start = prefix.length();
+		while(start>0 && Character.isLetterOrDigit(prefix.charAt(start-1))) {
+			start--;
+		}
+		ArrayList<String> completions = new ArrayList<>();
+		if(start<prefix.length()) {
+			completions = indexMgr.complete(prefix.substring(start),Math.max(0,msg.maxhits));
+		}
+		Integer[] counts = new Integer[completions.size()];
+		for(int i=0;i<completions.size();i++) {
+			counts[i]=indexMgr.tokenCount(completions.get(i));
+		}
+		return new AutocompleteReply(completions,counts);
+	}
+	
+	private SearchReply searchReply(ArrayList<IndexElement> hits) {
 		Integer[] seedCounts = new Integer[hits.size()];
 		for(int i=0;i<hits.size();i++) {
-			seedCounts[i]=indexMgr.lookup(hits.get(i).filename,hits.get(i).fileDescr.getFileMd5()).size();
+			seedCounts[i]=indexMgr.seedCount(hits.get(i).filename,hits.get(i).fileDescr.getFileMd5());
+		}
+		return new SearchReply(hits,seedCounts);
+	}
+	
+	private Message processLookupCmd(LookupRequest msg,String ip,int port) {
+		Collection<IndexElement> sharers = indexMgr.lookup(msg.filename,msg.fileMd5);
+		ArrayList<IndexElement> hits = new ArrayList<>(sharers.size());
+		for(IndexElement element : sharers) {
+			// leave out sharers whose lease has expired but that have not yet been dropped
+			if(leases==null || isReadOnly() || leases.isLive(element.ip,element.port)) {
+				hits.add(element);
+			}
+		}
+		return new LookupReply(hits);
+	}
+	
+	private Message processReplicateCmd(ReplicateRequest msg,String ip,int port) {
+		ReplicationLog replicationLog;
+		synchronized(replicationLock) {
+			if(this.replicationLog==null) {
+				this.replicationLog = new ReplicationLog(indexMgr);
+				this.replicationLog.start();
+				logger.logInfo("Replicating the index to "+ip);
+			}
+			replicationLog = this.replicationLog;
 		}
-		writeMsg(bufferedWriter,new SearchReply(hits,seedCounts));
+		return replicationLog.fetch(msg);
 	}
 	
-	private void processLookupCmd(BufferedWriter bufferedWriter,LookupRequest msg,String ip,int port) throws IOException {
-		HashSet<IndexElement> hits = indexMgr.lookup(msg.filename,msg.fileMd5);
-		writeMsg(bufferedWriter,new LookupReply(new ArrayList<IndexElement>(hits)));
+	/**
+	 * @return true if the server is a replica that has not been promoted
+	 */
+	private boolean isReadOnly() {
+		return replica!=null && !replica.isPromoted();
+	}
+	
+	private Message processHeartbeatCmd(HeartbeatRequest msg,String ip,int port) {
+		if(cluster!=null) {
+			cluster.heartbeat();
+		}
+		if(leases==null) {
+			return new HeartbeatReply(indexMgr.hasEndpoint(ip,msg.port),0);
+		}
+		return new HeartbeatReply(leases.heartbeat(ip,msg.port),leases.getTtl());
 	}
 	
 	/*
@@ -238,19 +1089,68 @@ public class Server extends Thread {
 	
 	private void writeMsg(BufferedWriter bufferedWriter,Message msg) throws IOException {
 		logger.logDebug("sending: "+msg.toString());
-		bufferedWriter.write(msg.toString());
-		bufferedWriter.newLine();
-		bufferedWriter.flush();
+		synchronized(bufferedWriter) {
+			bufferedWriter.write(msg.toString());
+			bufferedWriter.newLine();
+			bufferedWriter.flush();
+		}
 	}
 	
-	private Message readMsg(BufferedReader bufferedReader) throws IOException, JsonSerializationException {
+	private String readLine(BufferedReader bufferedReader) throws IOException {
 		String jsonStr = bufferedReader.readLine();
 		if(jsonStr!=null) {
-			Message msg = (Message) MessageFactory.deserialize(jsonStr);
-			logger.logDebug("received: "+msg.toString());
-			return msg;
+			return jsonStr;
 		} else {
 			throw new IOException();
 		}
 	}
+	
+	/**
+	 * Check a line received from a client against the client's rate limit for the
+	 * type of request, before the line is deserialized. Requests on connections from
+	 * other index servers are not limited, since a node sends on behalf of many
+	 * clients, and neither is the authenticate request that presents the node secret.
+	 * @param jsonStr the line, without the new line delimiter
+	 * @param ip the ip address of the client
+	 * @param node true if the connection is from another index server
+	 * @return the reply to send instead of processing the request, or null if the
+	 * request is allowed
+	 */
+	Message rateLimit(String jsonStr,String ip,boolean node) {
+		if(rateLimiter==null || node) return null;
+		String type = RateLimiter.peek(jsonStr,"_class");
+		if(nodeSecret!=null && AuthenticateRequest.class.getName().equals(type)
+				&& nodeSecret.equals(RateLimiter.peek(jsonStr,"nodeSecret"))) {
+			return null;
+		}
+		int retryAfter = rateLimiter.acquire(ip,type);
+		if(retryAfter==0) return null;
+		ErrorMsg reply = new ErrorMsg("Rate limit exceeded");
+		reply.retryAfter=retryAfter;
+		String requestId = RateLimiter.peek(jsonStr,"requestId");
+		if(requestId!=null) {
+			try {
+				reply.requestId=Integer.parseInt(requestId);
+			} catch (NumberFormatException e) {
+				// the reply is not matched to the request
+			}
+		}
+		return reply;
+	}
+	
+	/**
+	 * Deserialize a line received from a client.
+	 * @param jsonStr the line, without the new line delimiter
+	 * @return the message
+	 * @throws JsonSerializationException if the line is not a valid message
+	 */
+	Message parseMsg(String jsonStr) throws JsonSerializationException {
+		Object obj = MessageFactory.deserialize(jsonStr);
+		if(!(obj instanceof Message)) {
+			throw new JsonSerializationException("The JSON object is not a message.");
+		}
+		Message msg = (Message) obj;
+		logger.logDebug("received: "+msg.toString());
+		return msg;
+	}
 }
@@ -0,0 +1,121 @@
+package comp90015.idxsrv.server;
+
+import java.net.InetAddress;
+
+/**
+ * The settings of a {@link Server}. Each field starts out with its default, so only
+ * the settings that differ need to be set before the server is made.
+ * @author aaron
+ *
+ */
+public class ServerConfig {
+
+	/**
+	 * The port to accept connections on.
+	 */
+	public int port = 3200;
+
+	/**
+	 * The address that the server advertises to other nodes of its cluster.
+	 */
+	public InetAddress address = InetAddress.getLoopbackAddress();
+
+	/**
+	 * The welcome message sent to every new connection.
+	 */
+	public String welcome = "Welcome to the default IdxSrv implementation for COMP90015 SM2 2022.";
+
+	/**
+	 * The directory for the index log and snapshots.
+	 */
+	public String dir = System.getProperty("user.dir");
+
+	/**
+	 * The secret required to access the server.
+	 */
+	public String secret = "server123";
+
+	/**
+	 * The secret that index servers present to each other, which a cluster node
+	 * needs, or null if no connection may make the requests of a node.
+	 */
+	public String nodeSecret = null;
+
+	/**
+	 * The socket timeout in milliseconds.
+	 */
+	public int socketTimeout = 1000;
+
+	/**
+	 * The most accepted connections waiting for a thread, further connections are
+	 * shed until the queue drains, not used in {@link Server.MODE#NIO} mode.
+	 */
+	public int queueCapacity = 1024;
+
+	/**
+	 * How connections are accepted and processed.
+	 */
+	public Server.MODE mode = Server.MODE.POOL;
+
+	/**
+	 * The number of worker threads processing requests in {@link Server.MODE#POOL}
+	 * mode, at least 1.
+	 */
+	public int numWorkers = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Whether the index stores the block hashes of descriptors off heap.
+	 */
+	public boolean offHeap = false;
+
+	/**
+	 * Whether the index is logged to, and recovered from, the directory.
+	 */
+	public boolean persist = false;
+
+	/**
+	 * The time to live in milliseconds of a sharer's lease, after which its shares are
+	 * dropped unless renewed, or 0 if shares do not expire.
+	 */
+	public int leaseTtl = 0;
+
+	/**
+	 * The most search replies cached, or 0 to not cache them.
+	 */
+	public int searchCacheSize = 1024;
+
+	/**
+	 * The time in milliseconds between connection attempts to each sharer, which are
+	 * dropped when unreachable, or 0 if sharers are not probed.
+	 */
+	public int probeInterval = 0;
+
+	/**
+	 * The most sharer probes in progress at once.
+	 */
+	public int probeConcurrency = 64;
+
+	/**
+	 * The time in milliseconds to wait for a sharer to accept a probe's connection.
+	 */
+	public int probeTimeout = 2000;
+
+	/**
+	 * The number of requests of each type that a client may send per second, and at
+	 * once, or 0 if requests are not limited.
+	 */
+	public int rateLimit = 0;
+
+	/**
+	 * Null to serve the whole index, an empty string to start a new cluster, or any
+	 * node of a cluster to join, as ADDRESS:PORT, in which case connections are
+	 * processed in {@link Server.MODE#VIRTUAL} mode.
+	 */
+	public String cluster = null;
+
+	/**
+	 * The primary to serve as a read only replica of until it fails, as ADDRESS:PORT,
+	 * or null to serve as a primary.
+	 */
+	public String primary = null;
+}
@@ -0,0 +1,103 @@
+package comp90015.idxsrv.server;
+
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+
+/**
+ * Issues and checks short lived session tokens. A client that has authenticated
+ * with the server secret may ask for a token, and then present the token with the
+ * first request on later connections instead of authenticating again. Tokens are
+ * bound to the ip address they were issued to.
+ * @author aaron
+ *
+ */
+public class SessionTokens {
+	
+	/**
+	 * The default time to live of a token in milliseconds.
+	 */
+	public static final long DEFAULT_TTL = 5*60*1000;
+	
+	private static class Token {
+		String ip;
+		long expiry;
+		
+		Token(String ip, long expiry) {
+			this.ip=ip;
+			this.expiry=expiry;
+		}
+	}
+	
+	private ConcurrentHashMap<String,Token> tokens = new ConcurrentHashMap<>();
+	
+	private SecureRandom random = new SecureRandom();
+	
+	private long ttl;
+	
+	private volatile long nextSweep;
+	
+	/**
+	 * Create a token store.
+	 * @param ttl the time to live of each token in milliseconds
+	 */
+	public SessionTokens(long ttl) {
+		this.ttl=ttl;
+		this.nextSweep=System.currentTimeMillis()+ttl;
+	}
+	
+	/**
+	 * @return the time to live of each token in milliseconds
+	 */
+	public long getTtl() {
+		return ttl;
+	}
+	
+	/**
+	 * Issue a new token for a client that has authenticated.
+	 * @param ip the ip address of the client
+	 * @return the token
+	 */
+	public String issue(String ip) {
+		long now = System.currentTimeMillis();
+		sweep(now);
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		String token = FileDescr.bytesToHex(bytes);
+		tokens.put(token, new Token(ip,now+ttl));
+		return token;
+	}
+	
+	/**
+	 * @param token the token presented by a client
+	 * @param ip the ip address of the client
+	 * @return true if the token was issued to this ip address and has not expired
+	 */
+	public boolean isValid(String token, String ip) {
+		Token t = tokens.get(token);
+		if(t==null) return false;
+		if(t.expiry<System.currentTimeMillis()) {
+			tokens.remove(token,t);
+			return false;
+		}
+		return t.ip.equals(ip);
+	}
+	
+	/**
+	 * Remove expired tokens, at most once per time to live so that the cost is
+	 * spread over many issued tokens.
+	 */
+	private void sweep(long now) {
+		if(now<nextSweep) return;
+		nextSweep=now+ttl;
+		Iterator<Map.Entry<String,Token>> it = tokens.entrySet().iterator();
+		while(it.hasNext()) {
+			if(it.next().getValue().expiry<now) {
+				it.remove();
+			}
+		}
+	}
+}
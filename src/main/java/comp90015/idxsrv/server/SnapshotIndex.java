@@ -0,0 +1,269 @@
+package comp90015.idxsrv.server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.IntFunction;
+
+/**
+ * The trigrams of the filenames, and the endpoints, of the records of a
+ * {@link MappedSnapshot}, so that searches and endpoint drops find the records
+ * they need without reading every record of the snapshot. The trigrams are the same
+ * as those of the {@link TrigramIndex}, and candidates must likewise still be
+ * verified against the filename.
+ * <p>
+ * The index is written into the snapshot when it is compacted, and read in place
+ * from the mapped file, so that a restarted server does not build it. It starts
+ * with the number of trigrams, the trigrams in order, each packed into a long, and
+ * for each trigram the position of its posting in the postings that follow, with one
+ * more position for the end of the last. Postings are sorted record numbers. Then
+ * come the number of endpoints, the position of each endpoint's entry in order of
+ * the endpoints, and the entries, each an endpoint IP:PORT as a string followed by
+ * the number of its records and the records. Positions are relative to the start of
+ * the index.
+ * @author aaron
+ *
+ */
+public class SnapshotIndex {
+
+	private ByteBuffer buffer;
+
+	/**
+	 * The position of the index in the buffer.
+	 */
+	private int start;
+
+	private int numTrigrams;
+
+	private int trigrams;
+
+	private int postingStarts;
+
+	private int postings;
+
+	private int numEndpoints;
+
+	private int endpoints;
+
+	/**
+	 * A growable array of record numbers.
+	 */
+	private static class Records {
+		int[] records = new int[4];
+		int size;
+
+		void add(int record) {
+			if(size>0 && records[size-1]==record) return;
+			if(size==records.length) {
+				records=Arrays.copyOf(records,2*size);
+			}
+			records[size++]=record;
+		}
+	}
+
+	/**
+	 * Read an index in place.
+	 * @param buffer the buffer holding the index
+	 * @param start the position of the index in the buffer
+	 */
+	public SnapshotIndex(ByteBuffer buffer, int start) {
+		this.buffer=buffer;
+		this.start=start;
+		numTrigrams=buffer.getInt(start);
+		trigrams=start+4;
+		postingStarts=trigrams+8*numTrigrams;
+		postings=postingStarts+4*(numTrigrams+1);
+		int endpointsAt = postings+4*buffer.getInt(postingStarts+4*numTrigrams);
+		numEndpoints=buffer.getInt(endpointsAt);
+		endpoints=endpointsAt+4;
+	}
+
+	/**
+	 * Write the index of records, in the order of the records.
+	 * @param out the stream to write to, whose position is the start of the index
+	 * @param size the number of records
+	 * @param filename the filename of each record
+	 * @param endpoint the endpoint IP:PORT of each record
+	 * @return the number of bytes written
+	 * @throws IOException if the index cannot be written
+	 */
+	public static long write(DataOutputStream out, int size, IntFunction<String> filename,
+			IntFunction<String> endpoint) throws IOException {
+		HashMap<Long,Records> trigramRecords = new HashMap<>();
+		HashMap<String,Records> endpointRecords = new HashMap<>();
+		for(int i=0;i<size;i++) {
+			for(Long trigram : TrigramIndex.trigrams(filename.apply(i).toLowerCase(),true)) {
+				trigramRecords.computeIfAbsent(trigram,t -> new Records()).add(i);
+			}
+			endpointRecords.computeIfAbsent(endpoint.apply(i),e -> new Records()).add(i);
+		}
+		long[] sortedTrigrams = new long[trigramRecords.size()];
+		int t = 0;
+		for(Long trigram : trigramRecords.keySet()) {
+			sortedTrigrams[t++]=trigram;
+		}
+		Arrays.sort(sortedTrigrams);
+		long written = 4;
+		out.writeInt(sortedTrigrams.length);
+		for(long trigram : sortedTrigrams) {
+			out.writeLong(trigram);
+		}
+		written+=8L*sortedTrigrams.length;
+		long position = 0;
+		for(long trigram : sortedTrigrams) {
+			out.writeInt((int) position);
+			position+=trigramRecords.get(trigram).size;
+		}
+		out.writeInt((int) position);
+		written+=4L*(sortedTrigrams.length+1);
+		for(long trigram : sortedTrigrams) {
+			Records records = trigramRecords.remove(trigram);
+			for(int r=0;r<records.size;r++) {
+				out.writeInt(records.records[r]);
+			}
+		}
+		written+=4*position;
+
+		ArrayList<String> sortedEndpoints = new ArrayList<>(endpointRecords.keySet());
+		sortedEndpoints.sort(null);
+		byte[][] names = new byte[sortedEndpoints.size()][];
+		out.writeInt(sortedEndpoints.size());
+		written+=4;
+		long entry = written+4L*sortedEndpoints.size();
+		for(int e=0;e<names.length;e++) {
+			names[e]=sortedEndpoints.get(e).getBytes(StandardCharsets.UTF_8);
+			out.writeInt((int) entry);
+			entry+=8+names[e].length+4L*endpointRecords.get(sortedEndpoints.get(e)).size;
+		}
+		for(int e=0;e<names.length;e++) {
+			Records records = endpointRecords.get(sortedEndpoints.get(e));
+			out.writeInt(names[e].length);
+			out.write(names[e]);
+			out.writeInt(records.size);
+			for(int r=0;r<records.size;r++) {
+				out.writeInt(records.records[r]);
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Find the candidate records for a search, with the same choice of trigrams as
+	 * {@link TrigramIndex#candidates(String[])}, but taking the smallest posting of
+	 * the keywords of three or more characters as the candidates.
+	 * @param keywords the lower cased keywords
+	 * @return the candidates in order, or null if every keyword is empty and all
+	 * records must be scanned
+	 */
+	public int[] candidates(String[] keywords) {
+		int bestFrom = -1;
+		int bestTo = -1;
+		for(String keyword : keywords) {
+			for(Long trigram : TrigramIndex.trigrams(keyword,false)) {
+				int t = find(trigram);
+				if(t<0) return new int[0];
+				if(bestFrom<0 || postingStart(t+1)-postingStart(t)<bestTo-bestFrom) {
+					bestFrom=postingStart(t);
+					bestTo=postingStart(t+1);
+				}
+			}
+		}
+		if(bestFrom>=0) return postings(bestFrom,bestTo);
+		long bestSize = Long.MAX_VALUE;
+		for(String keyword : keywords) {
+			if(keyword.isEmpty()) continue;
+			int from = postingStart(insertionPoint(TrigramIndex.rangeStart(keyword)));
+			int to = postingStart(insertionPoint(TrigramIndex.rangeEnd(keyword)+1));
+			if(to-from<bestSize) {
+				bestFrom=from;
+				bestTo=to;
+				bestSize=to-from;
+			}
+		}
+		if(bestFrom<0) return null;
+		// a filename that contains the keyword more than once is in several postings
+		return Arrays.stream(postings(bestFrom,bestTo)).sorted().distinct().toArray();
+	}
+
+	/**
+	 * @param endpoint an endpoint IP:PORT
+	 * @return the endpoint's records in order, possibly none
+	 */
+	public int[] records(String endpoint) {
+		byte[] name = endpoint.getBytes(StandardCharsets.UTF_8);
+		int lo = 0;
+		int hi = numEndpoints;
+		while(lo<hi) {
+			int mid = (lo+hi)>>>1;
+			int entry = start+buffer.getInt(endpoints+4*mid);
+			int cmp = compare(entry,name);
+			if(cmp==0) {
+				int count = entry+4+buffer.getInt(entry);
+				int[] records = new int[buffer.getInt(count)];
+				for(int r=0;r<records.length;r++) {
+					records[r]=buffer.getInt(count+4+4*r);
+				}
+				return records;
+			} else if(cmp<0) {
+				lo=mid+1;
+			} else {
+				hi=mid;
+			}
+		}
+		return new int[0];
+	}
+
+	/**
+	 * Compare the endpoint of an entry with an endpoint, in the order of their strings.
+	 */
+	private int compare(int entry, byte[] name) {
+		byte[] bytes = new byte[buffer.getInt(entry)];
+		buffer.get(entry+4,bytes);
+		return new String(bytes,StandardCharsets.UTF_8).compareTo(new String(name,StandardCharsets.UTF_8));
+	}
+
+	private int[] postings(int from, int to) {
+		int[] records = new int[to-from];
+		for(int r=0;r<records.length;r++) {
+			records[r]=buffer.getInt(postings+4*(from+r));
+		}
+		return records;
+	}
+
+	private int postingStart(int t) {
+		return buffer.getInt(postingStarts+4*t);
+	}
+
+	private long trigram(int t) {
+		return buffer.getLong(trigrams+8*t);
+	}
+
+	/**
+	 * @return the position of the trigram, or -1 if the index does not have it
+	 */
+	private int find(long trigram) {
+		int t = insertionPoint(trigram);
+		return t<numTrigrams && trigram(t)==trigram ? t : -1;
+	}
+
+	/**
+	 * @return the position of the first trigram not less than the given one
+	 */
+	private int insertionPoint(long trigram) {
+		int lo = 0;
+		int hi = numTrigrams;
+		while(lo<hi) {
+			int mid = (lo+hi)>>>1;
+			if(trigram(mid)<trigram) {
+				lo=mid+1;
+			} else {
+				hi=mid;
+			}
+		}
+		return lo;
+	}
+}
@@ -0,0 +1,122 @@
+package comp90015.idxsrv.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timer wheel, which holds many timers and finds the ones that are
+ * due without scanning the rest. Time is divided into ticks. The first level has a
+ * slot for each of the next {@link #SLOTS} ticks, and each slot of a higher level
+ * covers a whole turn of the level below it. A timer is placed in the lowest level
+ * that reaches its due tick, and timers move down a level each time the level below
+ * completes a turn, so scheduling and expiring a timer both cost O(1).
+ * <p>
+ * Timers cannot be cancelled. Owners that may postpone a timer instead check, when
+ * it is due, whether it is still wanted and schedule it again if not.
+ * @author aaron
+ *
+ * @param <T> the type of item that a timer is for
+ */
+public class TimerWheel<T> {
+
+	private static final int BITS = 6;
+
+	private static final int SLOTS = 1<<BITS;
+
+	private static final int LEVELS = 4;
+
+	private static class Timer<T> {
+		T item;
+		long due;
+
+		Timer(T item, long due) {
+			this.item=item;
+			this.due=due;
+		}
+	}
+
+	private long tick;
+
+	/**
+	 * The last tick that has been advanced to.
+	 */
+	private long current;
+
+	private ArrayList<ArrayList<Timer<T>>> slots;
+
+	/**
+	 * Create a timer wheel.
+	 * @param tick the length of a tick in milliseconds
+	 * @param now the current time in milliseconds
+	 */
+	public TimerWheel(long tick, long now) {
+		this.tick=tick;
+		this.current=now/tick;
+		slots = new ArrayList<>(LEVELS*SLOTS);
+		for(int i=0;i<LEVELS*SLOTS;i++) {
+			slots.add(new ArrayList<>());
+		}
+	}
+
+	/**
+	 * @return the length of a tick in milliseconds
+	 */
+	public long getTick() {
+		return tick;
+	}
+
+	/**
+	 * Schedule a timer. A timer that is already due fires on the next tick.
+	 * @param item the item that the timer is for
+	 * @param time the time in milliseconds at which the timer is due
+	 */
+	public synchronized void schedule(T item, long time) {
+		insert(new Timer<T>(item,Math.max(current+1,(time+tick-1)/tick)));
+	}
+
+	/**
+	 * Advance the wheel to the given time.
+	 * @param now the current time in milliseconds
+	 * @return the items of the timers that became due
+	 */
+	public synchronized List<T> advance(long now) {
+		ArrayList<T> due = new ArrayList<>();
+		long target = now/tick;
+		while(current<target) {
+			current++;
+			cascade(1);
+			ArrayList<Timer<T>> slot = take(0,(int)(current & (SLOTS-1)));
+			for(Timer<T> timer : slot) {
+				due.add(timer.item);
+			}
+		}
+		return due;
+	}
+
+	/**
+	 * Move the timers of the level's current slot down, when the level below has
+	 * completed a turn.
+	 */
+	private void cascade(int level) {
+		if(level>=LEVELS || ((current >>> (BITS*(level-1))) & (SLOTS-1))!=0) return;
+		cascade(level+1);
+		for(Timer<T> timer : take(level,(int)((current >>> (BITS*level)) & (SLOTS-1)))) {
+			insert(timer);
+		}
+	}
+
+	private void insert(Timer<T> timer) {
+		long delta = timer.due-current;
+		int level = 0;
+		while(level<LEVELS-1 && delta>=(1L<<(BITS*(level+1)))) {
+			level++;
+		}
+		slots.get(level*SLOTS+(int)((timer.due >>> (BITS*level)) & (SLOTS-1))).add(timer);
+	}
+
+	private ArrayList<Timer<T>> take(int level, int slot) {
+		ArrayList<Timer<T>> timers = slots.get(level*SLOTS+slot);
+		slots.set(level*SLOTS+slot,new ArrayList<>());
+		return timers;
+	}
+}
@@ -0,0 +1,165 @@
+package comp90015.idxsrv.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * An index from every trigram, i.e. every substring of three characters, of lower
+ * cased filenames to the entries whose filename contains it. A filename can only
+ * contain a keyword of three or more characters if it contains every trigram of the
+ * keyword, so intersecting the keyword's trigram postings gives the candidates for
+ * an exact substring match, including partial words such as "021" or "mkv".
+ * <p>
+ * The last two characters of a filename also start a trigram, padded with
+ * {@link #END}, so every occurrence of a keyword of one or two characters starts a
+ * trigram of the filename. Trigrams are kept in order, and the candidates for such
+ * a keyword are the postings of the range of trigrams that it starts.
+ * <p>
+ * Candidates must still be verified against the filename. The index is safe to use
+ * from many threads, and readers never block.
+ * @author aaron
+ *
+ */
+public class TrigramIndex {
+
+	/**
+	 * The number of posting sets, after the smallest, that candidates are probed
+	 * against. Probing more sets than this rarely removes further candidates, which
+	 * are verified against the filename anyway.
+	 */
+	private static final int MAX_PROBES = 4;
+
+	/**
+	 * The character that pads the trigrams at the end of a filename.
+	 */
+	private static final char END = 0;
+
+	/**
+	 * A map from each trigram, packed into a long, to the entries whose filename
+	 * contains it.
+	 */
+	private ConcurrentSkipListMap<Long,Set<IndexEntry>> postings = new ConcurrentSkipListMap<>();
+
+	/**
+	 * Add an entry's filename trigrams to the index.
+	 * @param entry the entry to add
+	 */
+	public void add(IndexEntry entry) {
+		for(Long trigram : trigrams(entry.filename.toLowerCase(),true)) {
+			postings.compute(trigram, (t,set) -> {
+				if(set==null) {
+					set=ConcurrentHashMap.newKeySet();
+				}
+				set.add(entry);
+				return set;
+			});
+		}
+	}
+
+	/**
+	 * Remove an entry's filename trigrams from the index.
+	 * @param entry the entry to remove
+	 */
+	public void remove(IndexEntry entry) {
+		for(Long trigram : trigrams(entry.filename.toLowerCase(),true)) {
+			postings.computeIfPresent(trigram, (t,set) -> {
+				set.remove(entry);
+				return set.isEmpty() ? null : set;
+			});
+		}
+	}
+
+	/**
+	 * Find the candidate entries for a search by intersecting the trigram postings
+	 * of every keyword of at least three characters, smallest posting set first. If
+	 * every keyword is shorter, then the candidates are those of the keyword whose
+	 * range of trigrams has the fewest postings. All candidates must still be
+	 * verified.
+	 * @param keywords the lower cased keywords
+	 * @return the candidates, or null if every keyword is empty and all entries must
+	 * be scanned
+	 */
+	public Iterable<IndexEntry> candidates(String[] keywords) {
+		ArrayList<Set<IndexEntry>> sets = new ArrayList<>();
+		for(String keyword : keywords) {
+			for(Long trigram : trigrams(keyword,false)) {
+				Set<IndexEntry> set = postings.get(trigram);
+				if(set==null) {
+					return Collections.emptyList();
+				}
+				sets.add(set);
+			}
+		}
+		if(sets.isEmpty()) return shortCandidates(keywords);
+		sets.sort(Comparator.comparingInt(Set::size));
+		Set<IndexEntry> smallest = sets.get(0);
+		List<Set<IndexEntry>> probes = sets.subList(1,Math.min(sets.size(),1+MAX_PROBES));
+		return () -> smallest.stream()
+				.filter(entry -> probes.stream().allMatch(set -> set.contains(entry)))
+				.iterator();
+	}
+
+	/**
+	 * @return the candidates of the most selective keyword of one or two characters,
+	 * or null if there is none
+	 */
+	private Iterable<IndexEntry> shortCandidates(String[] keywords) {
+		Collection<Set<IndexEntry>> best = null;
+		long bestSize = Long.MAX_VALUE;
+		for(String keyword : keywords) {
+			if(keyword.isEmpty()) continue;
+			Collection<Set<IndexEntry>> range = postings.subMap(rangeStart(keyword),true,rangeEnd(keyword),true).values();
+			long size = 0;
+			for(Set<IndexEntry> set : range) {
+				size+=set.size();
+			}
+			if(size<bestSize) {
+				best=range;
+				bestSize=size;
+			}
+		}
+		if(best==null) return null;
+		Collection<Set<IndexEntry>> range = best;
+		// a filename that contains the keyword more than once is in several postings
+		return () -> range.stream().flatMap(Set::stream).distinct().iterator();
+	}
+
+	/**
+	 * @param keyword a keyword of one or two characters
+	 * @return the first of the trigrams that the keyword starts
+	 */
+	static long rangeStart(String keyword) {
+		return ((long)keyword.charAt(0)<<32) | (keyword.length()>1 ? (long)keyword.charAt(1)<<16 : 0);
+	}
+
+	/**
+	 * @param keyword a keyword of one or two characters
+	 * @return the last of the trigrams that the keyword starts
+	 */
+	static long rangeEnd(String keyword) {
+		return rangeStart(keyword) | (keyword.length()>1 ? 0xFFFFL : 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @param str a lower cased string
+	 * @param padded whether to include the trigrams started by the last two characters
+	 * @return the distinct trigrams of the string, each packed into a long
+	 */
+	static Set<Long> trigrams(String str, boolean padded) {
+		HashSet<Long> trigrams = new HashSet<>();
+		int n = str.length();
+		for(int i=0;i<(padded ? n : n-2);i++) {
+			char c1 = i+1<n ? str.charAt(i+1) : END;
+			char c2 = i+2<n ? str.charAt(i+2) : END;
+			trigrams.add(((long)str.charAt(i)<<32) | ((long)c1<<16) | c2);
+		}
+		return trigrams;
+	}
+}
@@ -0,0 +1,102 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Storing block hashes in a slab, and reading them while their regions are freed
+ * and reused.
+ * @author aaron
+ *
+ */
+public class BlockHashSlabTest {
+
+	static String[] hashes(int seed, int n) {
+		String[] hashes = new String[n];
+		for(int i=0;i<n;i++) {
+			hashes[i]=String.format("%016X%016X",seed,i);
+		}
+		return hashes;
+	}
+
+	@Test
+	public void storesAndLoads() {
+		BlockHashSlab slab = new BlockHashSlab();
+		String[] hashes = hashes(1,10);
+		BlockHashSlab.Region region = slab.store(hashes);
+		assertArrayEquals(hashes,slab.load(region));
+		assertArrayEquals(new String[0],slab.load(slab.store(new String[0])));
+	}
+
+	@Test
+	public void rejectsHashesThatCannotBeRestored() {
+		BlockHashSlab slab = new BlockHashSlab();
+		assertNull(slab.store(new String[] {"not a hash"}));
+		assertNull(slab.store(new String[] {hashes(0xABC,1)[0].toLowerCase()}));
+	}
+
+	@Test
+	public void freedRegionIsNotRead() {
+		BlockHashSlab slab = new BlockHashSlab();
+		BlockHashSlab.Region region = slab.store(hashes(1,4));
+		long reserved = slab.getReservedBytes();
+		slab.free(region);
+		assertNull(slab.load(region));
+		assertEquals(0,slab.getReservedBytes());
+
+		// the freed space is reused, and the old region still reads as freed
+		BlockHashSlab.Region reused = slab.store(hashes(2,4));
+		assertEquals(reserved,slab.getReservedBytes());
+		assertNull(slab.load(region));
+		assertArrayEquals(hashes(2,4),slab.load(reused));
+	}
+
+	@Test
+	public void readersNeverSeeReusedHashes() throws Exception {
+		BlockHashSlab slab = new BlockHashSlab();
+		AtomicReference<BlockHashSlab.Region> current = new AtomicReference<>(slab.store(hashes(0,8)));
+		AtomicReference<String[]> expected = new AtomicReference<>(hashes(0,8));
+		AtomicBoolean running = new AtomicBoolean(true);
+		AtomicReference<String> failure = new AtomicReference<>();
+		Thread reader = new Thread(() -> {
+			while(running.get()) {
+				String[] want;
+				BlockHashSlab.Region region;
+				// read the pair consistently, as the index does from its entry
+				synchronized(current) {
+					region = current.get();
+					want = expected.get();
+				}
+				String[] got = slab.load(region);
+				if(got!=null && !Arrays.equals(want,got)) {
+					failure.set("read hashes of a reused region");
+				}
+			}
+		});
+		reader.start();
+		for(int seed=1;seed<20000;seed++) {
+			BlockHashSlab.Region old;
+			synchronized(current) {
+				old = current.get();
+			}
+			// free before storing, so the store reuses the region being read
+			slab.free(old);
+			String[] next = hashes(seed,8);
+			BlockHashSlab.Region region = slab.store(next);
+			synchronized(current) {
+				current.set(region);
+				expected.set(next);
+			}
+		}
+		running.set(false);
+		reader.join();
+		assertNull(failure.get(),failure.get());
+	}
+}
@@ -0,0 +1,144 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+import comp90015.idxsrv.message.ClusterUpdate;
+import comp90015.idxsrv.message.DropShareReply;
+import comp90015.idxsrv.message.DropShareRequest;
+import comp90015.idxsrv.message.HeartbeatRequest;
+import comp90015.idxsrv.message.Message;
+import comp90015.idxsrv.message.ShareReply;
+import comp90015.idxsrv.message.ShareRequest;
+
+/**
+ * Moving elements between the nodes of a cluster of servers on the loopback address.
+ * @author aaron
+ *
+ */
+public class ClusterTest {
+
+	private static final String NODE_SECRET = "nodes";
+
+	private static final int FILES = 40;
+
+	private ArrayList<Server> servers = new ArrayList<>();
+
+	private ArrayList<NodeClient> clients = new ArrayList<>();
+
+	@After
+	public void stop() throws InterruptedException {
+		for(NodeClient client : clients) {
+			client.close();
+		}
+		for(Server server : servers) {
+			server.interrupt();
+			server.join(5000);
+		}
+	}
+
+	private static int freePort() throws IOException {
+		try(ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static String node(int port) {
+		return "127.0.0.1:"+port;
+	}
+
+	private Server start(int port) throws IOException {
+		ServerConfig config = new ServerConfig();
+		config.port=port;
+		config.nodeSecret=NODE_SECRET;
+		config.cluster="";
+		config.mode=Server.MODE.VIRTUAL;
+		config.searchCacheSize=0;
+		Server server = new Server(config,IndexLogTest.QUIET);
+		server.start();
+		servers.add(server);
+		return server;
+	}
+
+	private NodeClient client(int port) {
+		NodeClient client = new NodeClient(node(port),new ServerConfig().secret,NODE_SECRET,5000);
+		clients.add(client);
+		return client;
+	}
+
+	private static IndexMgr indexMgr(Server server) throws ReflectiveOperationException {
+		Field field = Server.class.getDeclaredField("indexMgr");
+		field.setAccessible(true);
+		return (IndexMgr) field.get(server);
+	}
+
+	/**
+	 * @return the number of elements of the index whose file the node owns, and the
+	 * number that it does not
+	 */
+	private static int[] owned(IndexMgr indexMgr, HashRing ring, String self) {
+		int[] counts = new int[2];
+		indexMgr.forEachElement(element -> {
+			counts[ring.owner(element.fileDescr.getFileMd5()).equals(self) ? 0 : 1]++;
+		});
+		return counts;
+	}
+
+	private static void awaitOwned(IndexMgr indexMgr, HashRing ring, String self, int expected)
+			throws InterruptedException {
+		for(int wait=0;wait<100 && !Arrays.equals(new int[] {expected,0},owned(indexMgr,ring,self));wait++) {
+			Thread.sleep(50);
+		}
+		assertEquals(expected+" owned and none other",Arrays.toString(new int[] {expected,0}),
+				Arrays.toString(owned(indexMgr,ring,self)));
+	}
+
+	@Test
+	public void retriesMovesAndDropsSharesNotYetMoved() throws Exception {
+		int portA = freePort();
+		int portB = freePort();
+		Server a = start(portA);
+		NodeClient clientA = client(portA);
+		for(int i=0;i<FILES;i++) {
+			Message reply = clientA.request(new ShareRequest(IndexLogTest.descr(i),"file"+i+".txt","secret",4000));
+			assertEquals(ShareReply.class,reply.getClass());
+		}
+
+		// B is in the cluster but not yet listening, so nothing can be moved to it
+		clientA.request(new ClusterUpdate(new String[] {node(portA),node(portB)}));
+		HashRing ring = new HashRing(Arrays.asList(node(portA),node(portB)));
+		int ownedByA = 0;
+		int droppedFromB = -1;
+		for(int i=0;i<FILES;i++) {
+			if(ring.owner(IndexLogTest.descr(i).getFileMd5()).equals(node(portA))) {
+				ownedByA++;
+			} else if(droppedFromB<0) {
+				droppedFromB=i;
+			}
+		}
+		assertTrue(ownedByA>0 && droppedFromB>=0);
+		Thread.sleep(500);
+		assertEquals(Arrays.toString(new int[] {ownedByA,FILES-ownedByA}),
+				Arrays.toString(owned(indexMgr(a),ring,node(portA))));
+
+		Server b = start(portB);
+		// the owner does not have the element yet, so it is dropped where it is
+		String md5 = IndexLogTest.descr(droppedFromB).getFileMd5();
+		Message reply = clientA.request(new DropShareRequest("file"+droppedFromB+".txt",md5,"secret",4000));
+		assertEquals(DropShareReply.class,reply.getClass());
+
+		// the heartbeat moves the rest
+		clientA.request(new HeartbeatRequest(4000));
+		awaitOwned(indexMgr(a),ring,node(portA),ownedByA);
+		awaitOwned(indexMgr(b),ring,node(portB),FILES-ownedByA-1);
+	}
+}
@@ -0,0 +1,156 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * Recovery of the index from its log, after a clean shutdown, after a crash that
+ * left the log thread running, and after a crash part way through writing a record.
+ * @author aaron
+ *
+ */
+public class IndexLogTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	static final ITerminalLogger QUIET = new ITerminalLogger() {
+		@Override
+		public void logInfo(String msg) {}
+		@Override
+		public void logWarn(String msg) {}
+		@Override
+		public void logError(String msg) {}
+		@Override
+		public void logDebug(String msg) {}
+	};
+
+	static FileDescr descr(int i) {
+		String md5 = String.format("%032X",i);
+		return new FileDescr(100,100,1,md5,new String[] {md5});
+	}
+
+	/**
+	 * Start a log over a new index in the folder.
+	 */
+	private IndexLog start(IndexMgr indexMgr) throws IOException {
+		IndexLog log = new IndexLog(folder.getRoot().getPath(),QUIET);
+		log.recover(indexMgr);
+		indexMgr.addListener(log);
+		log.start();
+		return log;
+	}
+
+	private static TreeSet<String> filenames(IndexMgr indexMgr) {
+		TreeSet<String> filenames = new TreeSet<>();
+		for(IndexElement element : indexMgr.search(new String[] {""},0)) {
+			filenames.add(element.filename);
+		}
+		return filenames;
+	}
+
+	private static void shareAndDrop(IndexMgr indexMgr, IndexLog log) {
+		for(int i=0;i<3;i++) {
+			indexMgr.share("10.0.0.1",4000,descr(i),"file"+i+".txt","secret");
+		}
+		indexMgr.drop("10.0.0.1",4000,"file1.txt",descr(1).getFileMd5(),"secret");
+		log.await();
+	}
+
+	@Test
+	public void recoversAfterShutdown() throws Exception {
+		IndexMgr indexMgr = new IndexMgr();
+		IndexLog log = start(indexMgr);
+		shareAndDrop(indexMgr,log);
+		log.shutdown();
+		log.join();
+
+		IndexMgr recovered = new IndexMgr();
+		IndexLog next = start(recovered);
+		assertEquals(filenames(indexMgr),filenames(recovered));
+		assertEquals(1,recovered.lookup("file0.txt",descr(0).getFileMd5()).size());
+		assertEquals(0,recovered.lookup("file1.txt",descr(1).getFileMd5()).size());
+		next.shutdown();
+		next.join();
+	}
+
+	@Test
+	public void recoversAfterCrash() throws Exception {
+		IndexMgr indexMgr = new IndexMgr();
+		IndexLog log = start(indexMgr);
+		shareAndDrop(indexMgr,log);
+
+		// the log thread is left running, as if the process had died after the
+		// changes were acknowledged
+		IndexMgr recovered = new IndexMgr();
+		new IndexLog(folder.getRoot().getPath(),QUIET).recover(recovered);
+		TreeSet<String> expected = new TreeSet<>();
+		expected.add("file0.txt");
+		expected.add("file2.txt");
+		assertEquals(expected,filenames(recovered));
+		log.shutdown();
+		log.join();
+	}
+
+	@Test
+	public void skipsTruncatedRecord() throws Exception {
+		IndexMgr indexMgr = new IndexMgr();
+		IndexLog log = start(indexMgr);
+		shareAndDrop(indexMgr,log);
+		log.shutdown();
+		log.join();
+
+		// a crash part way through writing a share leaves half a line at the end
+		Path logFile = folder.getRoot().toPath().resolve("index-1.log");
+		ArrayList<String> lines = new ArrayList<>(Files.readAllLines(logFile,StandardCharsets.UTF_8));
+		String partial = lines.get(0).replace("file0.txt","file9.txt");
+		Files.write(logFile,partial.substring(0,partial.length()/2).getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.APPEND);
+
+		IndexMgr recovered = new IndexMgr();
+		new IndexLog(folder.getRoot().getPath(),QUIET).recover(recovered);
+		TreeSet<String> filenames = filenames(recovered);
+		assertEquals(2,filenames.size());
+		assertTrue(filenames.contains("file0.txt"));
+		assertTrue(filenames.contains("file2.txt"));
+	}
+
+	@Test
+	public void reportsChangesThatCouldNotBeLogged() throws Exception {
+		IndexMgr indexMgr = new IndexMgr();
+		IndexLog log = start(indexMgr);
+		indexMgr.share("10.0.0.1",4000,descr(0),"file0.txt","secret");
+		assertTrue(log.await());
+		assertFalse(log.isFailed());
+
+		// the next write fails, as it would if the disk were full
+		Field channel = IndexLog.class.getDeclaredField("log");
+		channel.setAccessible(true);
+		((FileChannel) channel.get(log)).close();
+		indexMgr.share("10.0.0.1",4000,descr(1),"file1.txt","secret");
+		assertFalse(log.await());
+		assertTrue(log.isFailed());
+		indexMgr.share("10.0.0.1",4000,descr(2),"file2.txt","secret");
+		assertFalse(log.await());
+		log.shutdown();
+		log.join();
+	}
+}
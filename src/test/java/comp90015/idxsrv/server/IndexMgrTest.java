@@ -0,0 +1,193 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Searching the index, checked against scanning every share.
+ * @author aaron
+ *
+ */
+public class IndexMgrTest {
+
+	private static final String[] WORDS = {"Movie","movies","2021","mkv","Holiday","photo","a","b1"};
+
+	private static final String[] SEPARATORS = {".","-"," ","_",""};
+
+	/**
+	 * A share made to the index.
+	 */
+	private static class Share {
+		int port;
+		String filename;
+		int file;
+
+		Share(int port, String filename, int file) {
+			this.port=port;
+			this.filename=filename;
+			this.file=file;
+		}
+	}
+
+	private static String filename(Random random) {
+		StringBuilder sb = new StringBuilder(WORDS[random.nextInt(WORDS.length)]);
+		for(int w=random.nextInt(4);w>0;w--) {
+			sb.append(SEPARATORS[random.nextInt(SEPARATORS.length)]).append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return sb.toString();
+	}
+
+	private static ArrayList<Share> share(IndexMgr indexMgr, Random random, int n) {
+		ArrayList<Share> shares = new ArrayList<>();
+		for(int i=0;i<n;i++) {
+			// files are shared under several names and by several sharers
+			Share share = new Share(random.nextInt(5),filename(random),random.nextInt(n/3));
+			assertEquals(IndexMgr.RETCODE.SUCCESS,
+					indexMgr.share("10.0.0.1",share.port,IndexLogTest.descr(share.file),share.filename,"secret"));
+			shares.add(share);
+		}
+		return shares;
+	}
+
+	private static boolean matches(String filename, String[] keywords) {
+		String lower = filename.toLowerCase();
+		return Arrays.stream(keywords).allMatch(lower::contains);
+	}
+
+	@Test
+	public void searchFindsEveryFileContainingAllKeywords() {
+		Random random = new Random(9);
+		IndexMgr indexMgr = new IndexMgr();
+		ArrayList<Share> shares = share(indexMgr,random,600);
+		for(int i=0;i<150;i++) {
+			Share share = shares.remove(random.nextInt(shares.size()));
+			indexMgr.drop("10.0.0.1",share.port,share.filename,IndexLogTest.descr(share.file).getFileMd5(),"secret");
+			shares.removeIf(other -> other.port==share.port && other.file==share.file
+					&& other.filename.equals(share.filename));
+		}
+		for(int q=0;q<300;q++) {
+			String[] keywords = new String[1+random.nextInt(3)];
+			for(int k=0;k<keywords.length;k++) {
+				String word = WORDS[random.nextInt(WORDS.length)].toLowerCase();
+				int from = random.nextInt(word.length());
+				keywords[k]=word.substring(from,from+1+random.nextInt(word.length()-from));
+			}
+			HashMap<String,HashSet<String>> expected = new HashMap<>();
+			for(Share share : shares) {
+				if(matches(share.filename,keywords)) {
+					expected.computeIfAbsent(IndexLogTest.descr(share.file).getFileMd5(),
+							md5 -> new HashSet<>()).add(share.filename);
+				}
+			}
+			ArrayList<IndexElement> hits = indexMgr.search(keywords,0);
+			HashSet<String> found = new HashSet<>();
+			for(IndexElement hit : hits) {
+				String md5 = hit.fileDescr.getFileMd5();
+				// one hit per file, under one of the names that match
+				assertTrue(found.add(md5));
+				assertTrue(Arrays.toString(keywords)+" "+hit.filename,
+						expected.containsKey(md5) && expected.get(md5).contains(hit.filename));
+			}
+			assertEquals(Arrays.toString(keywords),expected.keySet(),found);
+			int maxhits = 1+random.nextInt(5);
+			assertEquals(Math.min(maxhits,expected.size()),indexMgr.search(keywords,maxhits).size());
+		}
+	}
+
+	@Test
+	public void ranksTopHitsBySeedCount() {
+		Random random = new Random(11);
+		IndexMgr indexMgr = new IndexMgr();
+		ArrayList<Share> shares = share(indexMgr,random,600);
+		// the seeds of each filename of each file, counting each sharer once
+		HashMap<String,HashSet<Integer>> seeds = new HashMap<>();
+		for(Share share : shares) {
+			seeds.computeIfAbsent(share.file+"\0"+share.filename,key -> new HashSet<>()).add(share.port);
+		}
+		Comparator<String[]> ranking = Comparator
+				.comparingInt((String[] hit) -> -Integer.parseInt(hit[2]))
+				.thenComparingInt(hit -> hit[1].length())
+				.thenComparing(hit -> hit[1])
+				.thenComparing(hit -> hit[0]);
+		for(String keyword : new String[] {"movie","2021","a","o",""}) {
+			HashMap<String,String[]> best = new HashMap<>();
+			for(String key : seeds.keySet()) {
+				String[] parts = key.split("\0");
+				if(!parts[1].toLowerCase().contains(keyword)) continue;
+				String md5 = IndexLogTest.descr(Integer.parseInt(parts[0])).getFileMd5();
+				String[] hit = {md5,parts[1],Integer.toString(seeds.get(key).size())};
+				best.merge(md5,hit,(a,b) -> ranking.compare(a,b)<=0 ? a : b);
+			}
+			ArrayList<String[]> expected = new ArrayList<>(best.values());
+			expected.sort(ranking);
+			for(int maxhits : new int[] {1,3,10,0}) {
+				ArrayList<IndexElement> hits = indexMgr.search(new String[] {keyword},maxhits);
+				int k = maxhits>0 ? Math.min(maxhits,expected.size()) : expected.size();
+				assertEquals(k,hits.size());
+				for(int i=0;i<k;i++) {
+					assertEquals(keyword+" "+i,expected.get(i)[0],hits.get(i).fileDescr.getFileMd5());
+					assertEquals(keyword+" "+i,expected.get(i)[1],hits.get(i).filename);
+				}
+			}
+			// the pages of a search follow the same ranking
+			IndexMgr.SearchResults results = indexMgr.searchResults(new String[] {keyword},0);
+			int i = 0;
+			while(results.hasNext()) {
+				for(IndexElement hit : results.next(7)) {
+					assertEquals(keyword+" "+i,expected.get(i++)[1],hit.filename);
+				}
+			}
+			assertEquals(expected.size(),i);
+		}
+	}
+
+	@Test
+	public void lookupFindsTheSharersOfAFilenameAsAView() {
+		IndexMgr indexMgr = new IndexMgr();
+		String md5 = IndexLogTest.descr(1).getFileMd5();
+		for(int port=0;port<3;port++) {
+			indexMgr.share("10.0.0.1",port,IndexLogTest.descr(1),"same.txt","secret");
+		}
+		indexMgr.share("10.0.0.1",9,IndexLogTest.descr(1),"other.txt","secret");
+		indexMgr.share("10.0.0.1",9,IndexLogTest.descr(2),"same.txt","secret");
+
+		Collection<IndexElement> sharers = indexMgr.lookup("same.txt",md5);
+		assertEquals(3,sharers.size());
+		HashSet<Integer> ports = new HashSet<>();
+		for(IndexElement element : sharers) {
+			assertEquals("same.txt",element.filename);
+			assertEquals(md5,element.fileDescr.getFileMd5());
+			ports.add(element.port);
+		}
+		assertEquals(new HashSet<>(Arrays.asList(0,1,2)),ports);
+		assertEquals(indexMgr.seedCount("same.txt",md5),sharers.size());
+		assertEquals(0,indexMgr.lookup("missing.txt",md5).size());
+		assertEquals(0,indexMgr.lookup("same.txt",IndexLogTest.descr(3).getFileMd5()).size());
+		try {
+			sharers.clear();
+			fail("changed the index through a lookup");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+
+		// the view follows the index rather than being a copy
+		indexMgr.drop("10.0.0.1",0,"same.txt",md5,"secret");
+		indexMgr.share("10.0.0.1",5,IndexLogTest.descr(1),"same.txt","secret");
+		ports.clear();
+		for(IndexElement element : sharers) {
+			ports.add(element.port);
+		}
+		assertEquals(new HashSet<>(Arrays.asList(1,2,5)),ports);
+	}
+}
@@ -0,0 +1,88 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Completing prefixes to filename tokens, checked against counting the tokens of
+ * every entry.
+ * @author aaron
+ *
+ */
+public class KeywordIndexTest {
+
+	private static IndexEntry entry(int i, String filename) {
+		IndexFile file = new IndexFile(IndexLogTest.descr(i),null);
+		return new IndexEntry("10.0.0.1",4000,file,null,filename,"secret");
+	}
+
+	private static String token(Random random) {
+		StringBuilder sb = new StringBuilder();
+		for(int c=1+random.nextInt(4);c>0;c--) {
+			sb.append("abcA1".charAt(random.nextInt(5)));
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void completesTheMostPopularTokens() {
+		Random random = new Random(22);
+		KeywordIndex index = new KeywordIndex();
+		ArrayList<IndexEntry> live = new ArrayList<>();
+		for(int i=0;i<3000;i++) {
+			StringBuilder filename = new StringBuilder(token(random));
+			for(int t=random.nextInt(3);t>0;t--) {
+				filename.append(random.nextBoolean() ? "." : " - ").append(token(random));
+			}
+			IndexEntry entry = entry(i,filename.toString());
+			index.add(entry);
+			live.add(entry);
+		}
+		for(int i=0;i<1000;i++) {
+			index.remove(live.remove(random.nextInt(live.size())));
+		}
+
+		HashMap<String,Integer> counts = new HashMap<>();
+		for(IndexEntry entry : live) {
+			for(String token : KeywordIndex.tokens(entry.filename.toLowerCase())) {
+				counts.merge(token,1,Integer::sum);
+			}
+		}
+		for(String token : counts.keySet()) {
+			assertEquals(token,(int) counts.get(token),index.popularity(token));
+		}
+		Comparator<String> ranking = Comparator.comparingInt((String token) -> -counts.get(token))
+				.thenComparing(Comparator.naturalOrder());
+		for(String prefix : new String[] {"a","b","c","1","ab","a1","ca","abc","cccc","x",""}) {
+			for(int max : new int[] {1,5,KeywordIndex.MAX_COMPLETIONS}) {
+				ArrayList<String> expected = new ArrayList<>();
+				if(!prefix.isEmpty()) {
+					for(String token : counts.keySet()) {
+						if(token.startsWith(prefix)) {
+							expected.add(token);
+						}
+					}
+				}
+				expected.sort(ranking);
+				if(expected.size()>max) {
+					expected.subList(max,expected.size()).clear();
+				}
+				assertEquals(prefix+" "+max,expected,index.complete(prefix,max));
+			}
+		}
+	}
+
+	@Test
+	public void splitsFilenamesIntoTokens() {
+		assertEquals(Arrays.asList("my","movie","2021","mkv"),
+				new ArrayList<>(KeywordIndex.tokens("my.movie-2021.mkv")));
+		assertEquals(Arrays.asList("a"),new ArrayList<>(KeywordIndex.tokens("a a..a")));
+	}
+}
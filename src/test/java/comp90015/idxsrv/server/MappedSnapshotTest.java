@@ -0,0 +1,199 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+
+/**
+ * Writing share records as a snapshot and reading them back from the mapped file.
+ * @author aaron
+ *
+ */
+public class MappedSnapshotTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static IndexLogRecord share(String ip, int port, String filename, int file, int blocks) {
+		String md5 = String.format("%032X",file);
+		String[] blockMd5 = new String[blocks];
+		for(int b=0;b<blocks;b++) {
+			blockMd5[b]=String.format("%016X%016X",file,b);
+		}
+		FileDescr fileDescr = new FileDescr(blocks*100L,100,blocks,md5,blockMd5);
+		return new IndexLogRecord(IndexLogRecord.SHARE,ip,port,filename,null,fileDescr,"secret"+port);
+	}
+
+	@Test
+	public void roundTripsRecords() throws IOException {
+		ArrayList<IndexLogRecord> records = new ArrayList<>();
+		records.add(share("10.0.0.2",4001,"b.txt",2,3));
+		records.add(share("10.0.0.1",4000,"a.txt",1,1));
+		records.add(share("10.0.0.3",4002,"b.txt",2,3));
+		records.add(share("10.0.0.4",4003,"cé.txt",2,3));
+		records.add(share("10.0.0.5",4004,"empty.txt",3,0));
+		Path path = folder.getRoot().toPath().resolve("index-1.snapshot");
+		MappedSnapshot.write(path,records);
+
+		MappedSnapshot snapshot = MappedSnapshot.open(path);
+		assertEquals(records.size(),snapshot.size());
+		HashMap<String,IndexLogRecord> written = new HashMap<>();
+		for(IndexLogRecord record : records) {
+			written.put(record.getSharerKey(),record);
+		}
+		String previous = "";
+		for(int i=0;i<snapshot.size();i++) {
+			IndexLogRecord read = snapshot.record(i);
+			IndexLogRecord record = written.remove(read.getSharerKey());
+			assertEquals(record.secret,read.secret);
+			assertEquals(record.fileDescr.getFileLength(),read.fileDescr.getFileLength());
+			assertEquals(record.fileDescr.getNumBlocks(),read.fileDescr.getNumBlocks());
+			assertArrayEquals(CompactDescr.blockHashes(record.fileDescr),CompactDescr.blockHashes(read.fileDescr));
+			assertEquals(read.fileDescr.getFileMd5(),snapshot.fileMd5(i));
+			assertEquals(read.filename,snapshot.filename(i));
+			assertEquals(read.ip+":"+read.port,snapshot.endpoint(i));
+			// sorted by file, so that a file's records are found by binary search
+			assertTrue(previous.compareTo(snapshot.fileMd5(i))<=0);
+			previous=snapshot.fileMd5(i);
+		}
+		assertEquals(0,written.size());
+	}
+
+	@Test
+	public void findsRecordsOfAFile() throws IOException {
+		ArrayList<IndexLogRecord> records = new ArrayList<>();
+		for(int port=0;port<5;port++) {
+			records.add(share("10.0.0.1",port,"same.txt",7,1));
+		}
+		records.add(share("10.0.0.1",9,"other.txt",7,1));
+		records.add(share("10.0.0.1",9,"before.txt",3,1));
+		records.add(share("10.0.0.1",9,"after.txt",9,1));
+		Path path = folder.getRoot().toPath().resolve("index-1.snapshot");
+		MappedSnapshot.write(path,records);
+
+		MappedSnapshot snapshot = MappedSnapshot.open(path);
+		String md5 = String.format("%032X",7);
+		assertEquals(1,snapshot.first(md5));
+		assertEquals(5,snapshot.seedCount("same.txt",md5));
+		assertEquals(1,snapshot.seedCount("other.txt",md5));
+		assertEquals(0,snapshot.seedCount("missing.txt",md5));
+		assertEquals(0,snapshot.seedCount("same.txt",String.format("%032X",8)));
+		assertEquals(7,snapshot.first(String.format("%032X",8)));
+		assertEquals(3,snapshot.records("10.0.0.1:9").length);
+		assertEquals(1,snapshot.records("10.0.0.1:0").length);
+	}
+
+	private static ArrayList<IndexLogRecord> randomShares(Random random, int n) {
+		ArrayList<IndexLogRecord> records = new ArrayList<>();
+		for(int i=0;i<n;i++) {
+			StringBuilder filename = new StringBuilder();
+			for(int c=random.nextInt(8);c>=0;c--) {
+				filename.append("abcAB".charAt(random.nextInt(5)));
+			}
+			records.add(share("10.0.0."+random.nextInt(3),random.nextInt(3),filename.toString(),i,1));
+		}
+		return records;
+	}
+
+	/**
+	 * Check that every record matching the keywords, or with the endpoint, is found.
+	 */
+	private static void assertFindsEveryMatch(MappedSnapshot snapshot, Random random) {
+		for(int q=0;q<200;q++) {
+			String[] keywords = new String[1+random.nextInt(2)];
+			for(int k=0;k<keywords.length;k++) {
+				StringBuilder keyword = new StringBuilder();
+				for(int c=random.nextInt(5);c>0;c--) {
+					keyword.append("abc".charAt(random.nextInt(3)));
+				}
+				keywords[k]=keyword.toString();
+			}
+			int[] candidates = snapshot.candidates(keywords);
+			for(int i=0;i<snapshot.size();i++) {
+				String filename = snapshot.filename(i).toLowerCase();
+				boolean matches = Arrays.stream(keywords).allMatch(filename::contains);
+				if(matches && candidates!=null) {
+					assertTrue(Arrays.toString(keywords)+" "+filename,Arrays.binarySearch(candidates,i)>=0);
+				}
+			}
+		}
+		for(int ip=0;ip<3;ip++) {
+			for(int port=0;port<3;port++) {
+				String endpoint = "10.0.0."+ip+":"+port;
+				int[] expected = IntStream.range(0,snapshot.size())
+						.filter(i -> snapshot.endpoint(i).equals(endpoint)).toArray();
+				assertArrayEquals(expected,snapshot.records(endpoint));
+			}
+		}
+	}
+
+	@Test
+	public void indexFindsEveryMatch() throws IOException {
+		Random random = new Random(16);
+		Path path = folder.getRoot().toPath().resolve("index-1.snapshot");
+		MappedSnapshot.write(path,randomShares(random,500));
+
+		MappedSnapshot snapshot = MappedSnapshot.open(path);
+		assertTrue(snapshot.isIndexed());
+		assertEquals(0,snapshot.candidates(new String[] {"zzz"}).length);
+		assertEquals(null,snapshot.candidates(new String[] {""}));
+		assertFindsEveryMatch(snapshot,random);
+	}
+
+	@Test
+	public void indexesSnapshotsWrittenWithoutAnIndex() throws IOException, InterruptedException {
+		Random random = new Random(17);
+		Path path = folder.getRoot().toPath().resolve("index-1.snapshot");
+		MappedSnapshot.write(path,randomShares(random,500));
+		// rewrite it as it was written before the index was added to the file
+		ByteBuffer indexed = ByteBuffer.wrap(Files.readAllBytes(path));
+		int limit = indexed.limit();
+		int index = indexed.getInt(limit-12);
+		ByteBuffer unindexed = ByteBuffer.allocate(index+8);
+		unindexed.put(indexed.array(),0,index);
+		unindexed.putLong(0,0x4944585352563031L);
+		unindexed.putInt(index,indexed.getInt(limit-8));
+		unindexed.putInt(index+4,indexed.getInt(limit-4));
+		Files.write(path,unindexed.array());
+
+		MappedSnapshot snapshot = MappedSnapshot.open(path);
+		assertTrue(!snapshot.isIndexed());
+		assertEquals(null,snapshot.candidates(new String[] {"abc"}));
+		assertFindsEveryMatch(snapshot,random);
+		snapshot.buildIndex(IndexLogTest.QUIET);
+		for(int wait=0;wait<100 && !snapshot.isIndexed();wait++) {
+			Thread.sleep(50);
+		}
+		assertTrue(snapshot.isIndexed());
+		assertFindsEveryMatch(snapshot,random);
+	}
+
+	@Test
+	public void rejectsOtherFiles() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("index-1.snapshot");
+		Files.write(path,"not a snapshot at all".getBytes());
+		try {
+			MappedSnapshot.open(path);
+			fail("opened a file that is not a snapshot");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import comp90015.idxsrv.message.SearchRequest;
+import comp90015.idxsrv.message.ShareRequest;
+
+/**
+ * Peeking fields from message lines, and taking tokens from the buckets.
+ * @author aaron
+ *
+ */
+public class RateLimiterTest {
+
+	@Test
+	public void peeksTopLevelFields() {
+		String line = "{\"_class\":\"comp90015.idxsrv.message.SearchRequest\",\"maxhits\":-12,\"keywords\":[\"a\"]}";
+		assertEquals("comp90015.idxsrv.message.SearchRequest",RateLimiter.peek(line,"_class"));
+		assertEquals("-12",RateLimiter.peek(line,"maxhits"));
+		assertNull(RateLimiter.peek(line,"cursor"));
+	}
+
+	@Test
+	public void skipsNestedFieldsAndStrings() {
+		String line = "{\"fileDescr\":{\"_class\":\"nested\"},\"filename\":\"\\\"_class\\\":\\\"fake\\\"\","
+				+"\"_class\":\"comp90015.idxsrv.message.ShareRequest\"}";
+		assertEquals("comp90015.idxsrv.message.ShareRequest",RateLimiter.peek(line,"_class"));
+		assertEquals("\"_class\":\"fake\"",RateLimiter.peek(line,"filename"));
+	}
+
+	@Test
+	public void decodesEscapedNamesAndValues() {
+		// the message factory reads this as a search, so it must not land in the other bucket
+		String line = "{\"\\u005fclass\":\"comp90015\\u002eidxsrv.message.Search\\u0052equest\","
+				+"\"filename\":\"a\\/b\\\\c\\td\"}";
+		assertEquals(SearchRequest.class.getName(),RateLimiter.peek(line,"_class"));
+		assertEquals("a/b\\c\td",RateLimiter.peek(line,"filename"));
+		RateLimiter limiter = new RateLimiter(1,1);
+		assertEquals(0,limiter.acquire("10.0.0.1",RateLimiter.peek(line,"_class")));
+		assertEquals(0,limiter.acquire("10.0.0.1","made.up.Type"));
+		assertNull(RateLimiter.peek("{\"_class\":\"bad\\u00zz\"}","_class"));
+		assertNull(RateLimiter.peek("{\"_class\":\"bad\\u00\"}","_class"));
+		assertNull(RateLimiter.peek("{\"_class\":\"bad\\x\"}","_class"));
+	}
+
+	@Test
+	public void toleratesMalformedLines() {
+		assertNull(RateLimiter.peek("",  "_class"));
+		assertNull(RateLimiter.peek("{\"_class\":\"unterminated","_class"));
+		assertNull(RateLimiter.peek("{\"_class\":","_class"));
+		assertNull(RateLimiter.peek("{\"_class\":true}","_class"));
+	}
+
+	@Test
+	public void limitsEachTypeSeparately() {
+		RateLimiter limiter = new RateLimiter(1,2);
+		String search = SearchRequest.class.getName();
+		String share = ShareRequest.class.getName();
+		assertEquals(0,limiter.acquire("10.0.0.1",search));
+		assertEquals(0,limiter.acquire("10.0.0.1",search));
+		assertTrue(limiter.acquire("10.0.0.1",search)>0);
+		assertEquals(0,limiter.acquire("10.0.0.1",share));
+		assertEquals(0,limiter.acquire("10.0.0.2",search));
+	}
+
+	@Test
+	public void sharesOneBucketForUnknownTypes() {
+		RateLimiter limiter = new RateLimiter(1,1);
+		assertEquals(0,limiter.acquire("10.0.0.1","made.up.Type"));
+		assertTrue(limiter.acquire("10.0.0.1","another.made.up.Type")>0);
+		assertTrue(limiter.acquire("10.0.0.1",null)>0);
+	}
+}
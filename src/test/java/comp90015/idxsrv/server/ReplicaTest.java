@@ -0,0 +1,104 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import comp90015.idxsrv.message.JsonSerializationException;
+import comp90015.idxsrv.message.MessageFactory;
+import comp90015.idxsrv.message.ReplicateReply;
+
+/**
+ * Applying the primary's changes and full copies to a replica's index, without a
+ * primary to fetch them from.
+ * @author aaron
+ *
+ */
+public class ReplicaTest {
+
+	private static IndexLogRecord share(int file, String filename, String secret) {
+		return new IndexLogRecord(IndexLogRecord.SHARE,"10.0.0.1",4000,filename,null,
+				IndexLogTest.descr(file),secret);
+	}
+
+	private static IndexLogRecord drop(int file, String filename, String secret) {
+		return new IndexLogRecord(IndexLogRecord.DROP,"10.0.0.1",4000,filename,
+				IndexLogTest.descr(file).getFileMd5(),null,secret);
+	}
+
+	/**
+	 * @return the records in string format, as the primary sends them
+	 */
+	private static String[] lines(IndexLogRecord... records) {
+		String[] lines = new String[records.length];
+		for(int i=0;i<records.length;i++) {
+			try {
+				lines[i]=MessageFactory.serialize(records[i]);
+			} catch (JsonSerializationException e) {
+				throw new AssertionError(e);
+			}
+		}
+		return lines;
+	}
+
+	private static ReplicateReply page(long copy, Integer offset, IndexLogRecord... records) {
+		ReplicateReply reply = new ReplicateReply(1,10,true,lines(records));
+		reply.copy=copy;
+		reply.offset=offset;
+		return reply;
+	}
+
+	private static Replica replica(IndexMgr indexMgr) {
+		return new Replica("localhost:1","secret","nodes",indexMgr,() -> {},IndexLogTest.QUIET);
+	}
+
+	private static ArrayList<String> secrets(IndexMgr indexMgr, int file, String filename) {
+		ArrayList<String> secrets = new ArrayList<>();
+		for(IndexElement element : indexMgr.lookup(filename,IndexLogTest.descr(file).getFileMd5())) {
+			secrets.add(element.secret);
+		}
+		return secrets;
+	}
+
+	@Test
+	public void appliesChanges() {
+		IndexMgr indexMgr = new IndexMgr();
+		Replica replica = replica(indexMgr);
+		assertFalse(replica.apply(new ReplicateReply(1,2,false,lines(
+				share(1,"a.txt","s"),share(2,"b.txt","s")))));
+		replica.apply(new ReplicateReply(1,3,false,lines(drop(1,"a.txt","s"))));
+		assertEquals(0,secrets(indexMgr,1,"a.txt").size());
+		assertEquals(1,secrets(indexMgr,2,"b.txt").size());
+	}
+
+	@Test
+	public void appliesNothingOfAReplyWithAnUnreadableRecord() {
+		IndexMgr indexMgr = new IndexMgr();
+		Replica replica = replica(indexMgr);
+		String[] records = {lines(share(1,"a.txt","s"))[0],"not a record"};
+		assertFalse(replica.apply(new ReplicateReply(1,2,false,records)));
+		assertEquals(0,secrets(indexMgr,1,"a.txt").size());
+	}
+
+	@Test
+	public void fullCopyReplacesChangedSecretsAndDiscardsTheRest() {
+		IndexMgr indexMgr = new IndexMgr();
+		// held from before the replica fell behind
+		indexMgr.share("10.0.0.1",4000,IndexLogTest.descr(1),"kept.txt","s");
+		indexMgr.share("10.0.0.1",4000,IndexLogTest.descr(2),"changed.txt","old");
+		indexMgr.share("10.0.0.1",4000,IndexLogTest.descr(3),"gone.txt","s");
+		Replica replica = replica(indexMgr);
+
+		assertTrue(replica.apply(page(7,1,share(1,"kept.txt","s"))));
+		assertFalse(replica.apply(page(7,null,share(2,"changed.txt","new"),share(4,"new.txt","s"))));
+
+		assertEquals(1,secrets(indexMgr,1,"kept.txt").size());
+		assertEquals("[new]",secrets(indexMgr,2,"changed.txt").toString());
+		assertEquals(0,secrets(indexMgr,3,"gone.txt").size());
+		assertEquals(1,secrets(indexMgr,4,"new.txt").size());
+	}
+}
@@ -0,0 +1,133 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.message.SearchReply;
+
+/**
+ * Cached searches are removed by exactly the shares and drops that can change them,
+ * including changes made while the search is running.
+ * @author aaron
+ *
+ */
+public class SearchCacheTest {
+
+	static FileDescr descr(int i) {
+		String md5 = String.format("%032X",i);
+		return new FileDescr(100,100,1,md5,new String[] {md5});
+	}
+
+	/**
+	 * Search through the cache, as the server does.
+	 */
+	static SearchReply search(SearchCache cache, IndexMgr indexMgr, String[] keywords, int maxhits) {
+		String key = SearchCache.key(keywords,maxhits);
+		SearchReply cached = cache.get(key);
+		if(cached!=null) return cached;
+		SearchCache.Entry entry = cache.begin(key,keywords);
+		ArrayList<IndexElement> hits = indexMgr.search(keywords,maxhits);
+		Integer[] seedCounts = new Integer[hits.size()];
+		for(int i=0;i<seedCounts.length;i++) {
+			seedCounts[i]=indexMgr.seedCount(hits.get(i).filename,hits.get(i).fileDescr.getFileMd5());
+		}
+		cache.complete(entry,hits,seedCounts);
+		return new SearchReply(hits,seedCounts);
+	}
+
+	static void assertSameHits(ArrayList<IndexElement> expected, SearchReply reply) {
+		assertEquals(expected.size(),reply.hits.length);
+		for(int i=0;i<expected.size();i++) {
+			assertEquals(expected.get(i).filename,reply.hits[i].filename);
+			assertEquals(expected.get(i).fileDescr.getFileMd5(),reply.hits[i].fileDescr.getFileMd5());
+		}
+	}
+
+	@Test
+	public void invalidatesOnlyMatchingSearches() {
+		IndexMgr indexMgr = new IndexMgr();
+		SearchCache cache = new SearchCache(16);
+		indexMgr.addListener(cache);
+		indexMgr.share("10.0.0.1",4000,descr(1),"holiday photos.zip","s");
+		String[] holiday = {"holiday"};
+		String[] music = {"music"};
+		search(cache,indexMgr,holiday,10);
+		search(cache,indexMgr,music,10);
+		assertNotNull(cache.get(SearchCache.key(holiday,10)));
+		assertNotNull(cache.get(SearchCache.key(music,10)));
+
+		indexMgr.share("10.0.0.1",4000,descr(2),"HOLIDAY video.mp4","s");
+		assertNull(cache.get(SearchCache.key(holiday,10)));
+		assertNotNull(cache.get(SearchCache.key(music,10)));
+		assertEquals(2,search(cache,indexMgr,holiday,10).hits.length);
+
+		indexMgr.drop("10.0.0.1",4000,"holiday photos.zip",descr(1).getFileMd5(),"s");
+		assertNull(cache.get(SearchCache.key(holiday,10)));
+		assertEquals(1,search(cache,indexMgr,holiday,10).hits.length);
+	}
+
+	@Test
+	public void keysIgnoreKeywordOrder() {
+		assertEquals(SearchCache.key(new String[] {"a","b"},5),SearchCache.key(new String[] {"b","a"},5));
+		assertEquals(false,SearchCache.key(new String[] {"a"},5).equals(SearchCache.key(new String[] {"a"},6)));
+	}
+
+	@Test
+	public void doesNotCacheLargeReplies() {
+		IndexMgr indexMgr = new IndexMgr();
+		SearchCache cache = new SearchCache(16);
+		indexMgr.addListener(cache);
+		for(int i=0;i<=SearchCache.MAX_REPLY_HITS;i++) {
+			indexMgr.share("10.0.0.1",4000,descr(i),"song"+i+".mp3","s");
+		}
+		String[] song = {"song"};
+		assertEquals(SearchCache.MAX_REPLY_HITS+1,search(cache,indexMgr,song,0).hits.length);
+		assertNull(cache.get(SearchCache.key(song,0)));
+	}
+
+	@Test
+	public void neverKeepsStaleRepliesUnderConcurrentChanges() throws Exception {
+		IndexMgr indexMgr = new IndexMgr();
+		// a small cache, so that evictions empty the sets of the invalidation index
+		// while other searches are being added to them
+		SearchCache cache = new SearchCache(2);
+		indexMgr.addListener(cache);
+		String[][] searches = {{"abc"},{"abcd"},{"abce"},{"abc","1"},{"abc","2"},{"ab"}};
+		AtomicBoolean running = new AtomicBoolean(true);
+		ArrayList<Thread> searchers = new ArrayList<>();
+		for(int t=0;t<4;t++) {
+			Thread searcher = new Thread(() -> {
+				int i = 0;
+				while(running.get()) {
+					search(cache,indexMgr,searches[i++ % searches.length],5);
+				}
+			});
+			searcher.start();
+			searchers.add(searcher);
+		}
+		for(int i=0;i<20000;i++) {
+			String filename = "abc"+(char)('a'+i%8)+i%3+".txt";
+			indexMgr.share("10.0.0.1",4000+i%5,descr(i%50),filename,"s");
+			if(i%3==0) {
+				indexMgr.drop("10.0.0.1",4000+i%5,filename,descr(i%50).getFileMd5(),"s");
+			}
+		}
+		running.set(false);
+		for(Thread searcher : searchers) {
+			searcher.join();
+		}
+		for(String[] keywords : searches) {
+			SearchReply cached = cache.get(SearchCache.key(keywords,5));
+			if(cached!=null) {
+				assertSameHits(indexMgr.search(keywords,5),cached);
+			}
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import comp90015.idxsrv.message.JsonSerializationException;
+import comp90015.idxsrv.message.MessageFactory;
+import comp90015.idxsrv.message.SearchReply;
+import comp90015.idxsrv.message.SearchRequest;
+
+/**
+ * Paging through search hits with cursors.
+ * @author aaron
+ *
+ */
+public class SearchCursorsTest {
+
+	/**
+	 * Pages through the given number of hits, whose ports are their ranks.
+	 */
+	private static SearchCursors.Pager pager(int hits) {
+		return new SearchCursors.Pager() {
+			private int next = 0;
+
+			@Override
+			public SearchReply next(int pageSize) {
+				ArrayList<IndexElement> page = new ArrayList<>();
+				for(;next<hits && page.size()<pageSize;next++) {
+					page.add(new IndexElement("10.0.0.1",next,IndexLogTest.descr(next),"file"+next,"secret"));
+				}
+				return new SearchReply(page,new Integer[page.size()]);
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next<hits;
+			}
+		};
+	}
+
+	private static void assertPage(SearchReply page, int from, int to) {
+		assertEquals(to-from,page.hits.length);
+		for(int i=from;i<to;i++) {
+			assertEquals(i,(int) page.hits[i-from].port);
+		}
+	}
+
+	@Test
+	public void pagesThroughEveryHitInOrder() {
+		SearchCursors cursors = new SearchCursors(SearchCursors.DEFAULT_TTL);
+		SearchReply page = (SearchReply) cursors.first("10.0.0.9",10,pager(25));
+		assertPage(page,0,10);
+		String cursor = page.cursor;
+		assertNotNull(cursor);
+		page = cursors.next(cursor,"10.0.0.9",null);
+		assertPage(page,10,20);
+		assertEquals(cursor,page.cursor);
+		// a page may ask for another page size
+		page = cursors.next(cursor,"10.0.0.9",3);
+		assertPage(page,20,23);
+		page = cursors.next(cursor,"10.0.0.9",null);
+		assertPage(page,23,25);
+		assertNull(page.cursor);
+		// the cursor is gone once the hits are
+		assertNull(cursors.next(cursor,"10.0.0.9",null));
+	}
+
+	@Test
+	public void issuesNoCursorForASinglePage() {
+		SearchCursors cursors = new SearchCursors(SearchCursors.DEFAULT_TTL);
+		SearchReply page = (SearchReply) cursors.first("10.0.0.9",10,pager(10));
+		assertPage(page,0,10);
+		assertNull(page.cursor);
+	}
+
+	@Test
+	public void refusesCursorsOfOtherAddressesAndExpiredCursors() throws InterruptedException {
+		SearchCursors cursors = new SearchCursors(SearchCursors.DEFAULT_TTL);
+		String cursor = ((SearchReply) cursors.first("10.0.0.9",10,pager(25))).cursor;
+		assertNull(cursors.next(cursor,"10.0.0.8",null));
+		assertNull(cursors.next("not a cursor","10.0.0.9",null));
+		assertPage(cursors.next(cursor,"10.0.0.9",null),10,20);
+
+		SearchCursors expiring = new SearchCursors(50);
+		cursor = ((SearchReply) expiring.first("10.0.0.9",10,pager(25))).cursor;
+		Thread.sleep(100);
+		assertNull(expiring.next(cursor,"10.0.0.9",null));
+	}
+
+	@Test
+	public void discardsTheOldestCursorsOfAnAddress() {
+		SearchCursors cursors = new SearchCursors(SearchCursors.DEFAULT_TTL);
+		String[] issued = new String[SearchCursors.MAX_CURSORS_PER_IP+1];
+		for(int i=0;i<issued.length;i++) {
+			issued[i]=((SearchReply) cursors.first("10.0.0.9",10,pager(25))).cursor;
+		}
+		String other = ((SearchReply) cursors.first("10.0.0.8",10,pager(25))).cursor;
+		assertNull(cursors.next(issued[0],"10.0.0.9",null));
+		for(int i=1;i<issued.length;i++) {
+			assertPage(cursors.next(issued[i],"10.0.0.9",null),10,20);
+		}
+		assertPage(cursors.next(other,"10.0.0.8",null),10,20);
+	}
+
+	@Test
+	public void nextPageRequestsNeedOnlyTheCursor() throws JsonSerializationException {
+		String line = new SearchRequest("0123").toString();
+		assertEquals(-1,line.indexOf("keywords"));
+		SearchRequest request = (SearchRequest) MessageFactory.deserialize(line);
+		assertEquals("0123",request.cursor);
+		assertNull(request.keywords);
+		assertNull(request.maxhits);
+		// a search without a cursor is still refused without its keywords
+		assertFalse(Server.isSearch(request));
+		assertTrue(Server.isSearch(new SearchRequest(10,new String[] {"a"})));
+	}
+}
@@ -0,0 +1,85 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Timers fire on their due tick, whichever level of the wheel they were placed in.
+ * @author aaron
+ *
+ */
+public class TimerWheelTest {
+
+	private static final long TICK = 10;
+
+	/**
+	 * Advance a tick at a time and record the tick each item fires on.
+	 */
+	private static long[] fire(TimerWheel<Integer> wheel, long start, int items, long ticks) {
+		long[] fired = new long[items];
+		Arrays.fill(fired,-1);
+		for(long t=1;t<=ticks;t++) {
+			for(int item : wheel.advance(start+t*TICK)) {
+				assertEquals("fired twice",-1,fired[item]);
+				fired[item]=t;
+			}
+		}
+		return fired;
+	}
+
+	@Test
+	public void firesOnDueTick() {
+		TimerWheel<Integer> wheel = new TimerWheel<>(TICK,0);
+		wheel.schedule(0,5*TICK);
+		wheel.schedule(1,5*TICK+1);
+		wheel.schedule(2,63*TICK);
+		long[] fired = fire(wheel,0,3,70);
+		assertEquals(5,fired[0]);
+		assertEquals(6,fired[1]);
+		assertEquals(63,fired[2]);
+	}
+
+	@Test
+	public void cascadesFromHigherLevels() {
+		long start = 12345*TICK;
+		TimerWheel<Integer> wheel = new TimerWheel<>(TICK,start);
+		long[] delays = {64, 65, 127, 4095, 4096, 4097, 64*64*3+17, 262143, 262144+5};
+		for(int i=0;i<delays.length;i++) {
+			wheel.schedule(i,start+delays[i]*TICK);
+		}
+		long[] fired = fire(wheel,start,delays.length,262144+10);
+		for(int i=0;i<delays.length;i++) {
+			assertEquals("delay "+delays[i],delays[i],fired[i]);
+		}
+	}
+
+	@Test
+	public void advancesOverManyTicksAtOnce() {
+		TimerWheel<Integer> wheel = new TimerWheel<>(TICK,0);
+		for(int i=0;i<100;i++) {
+			wheel.schedule(i,(i*97+1)*TICK);
+		}
+		List<Integer> due = new ArrayList<>(wheel.advance(50*97*TICK));
+		Collections.sort(due);
+		assertEquals(50,due.size());
+		for(int i=0;i<50;i++) {
+			assertEquals(i,(int) due.get(i));
+		}
+		assertEquals(50,wheel.advance(100*97*TICK).size());
+	}
+
+	@Test
+	public void firesPastTimersOnNextTick() {
+		TimerWheel<Integer> wheel = new TimerWheel<>(TICK,1000*TICK);
+		wheel.schedule(0,0);
+		assertTrue(wheel.advance(1000*TICK).isEmpty());
+		assertEquals(Collections.singletonList(0),wheel.advance(1001*TICK));
+	}
+}
@@ -0,0 +1,94 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Finding the candidates of substring searches from the trigram index, checked
+ * against scanning every entry.
+ * @author aaron
+ *
+ */
+public class TrigramIndexTest {
+
+	private static IndexEntry entry(int i, String filename) {
+		IndexFile file = new IndexFile(IndexLogTest.descr(i),null);
+		return new IndexEntry("10.0.0.1",4000,file,null,filename,"secret");
+	}
+
+	private static String random(Random random, String alphabet, int maxLength) {
+		StringBuilder sb = new StringBuilder();
+		for(int c=random.nextInt(maxLength+1);c>0;c--) {
+			sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		return sb.toString();
+	}
+
+	private static boolean matches(IndexEntry entry, String[] keywords) {
+		String filename = entry.filename.toLowerCase();
+		return Arrays.stream(keywords).allMatch(filename::contains);
+	}
+
+	@Test
+	public void candidatesIncludeEveryMatch() {
+		Random random = new Random(10);
+		TrigramIndex index = new TrigramIndex();
+		ArrayList<IndexEntry> live = new ArrayList<>();
+		for(int i=0;i<2000;i++) {
+			IndexEntry entry = entry(i,random(random,"abcAB.1",10));
+			index.add(entry);
+			live.add(entry);
+		}
+		// removed entries must leave the postings of every trigram they were in
+		HashSet<IndexEntry> removed = new HashSet<>();
+		for(int i=0;i<500;i++) {
+			IndexEntry entry = live.remove(random.nextInt(live.size()));
+			index.remove(entry);
+			removed.add(entry);
+		}
+		for(int q=0;q<500;q++) {
+			String[] keywords = new String[1+random.nextInt(3)];
+			for(int k=0;k<keywords.length;k++) {
+				keywords[k]=random(random,"abc.1",5);
+			}
+			Iterable<IndexEntry> candidates = index.candidates(keywords);
+			if(Arrays.stream(keywords).allMatch(String::isEmpty)) {
+				assertNull(candidates);
+				continue;
+			}
+			HashSet<IndexEntry> found = new HashSet<>();
+			for(IndexEntry candidate : candidates) {
+				assertTrue(found.add(candidate));
+			}
+			for(IndexEntry entry : removed) {
+				assertTrue(!found.contains(entry));
+			}
+			for(IndexEntry entry : live) {
+				if(matches(entry,keywords)) {
+					assertTrue(Arrays.toString(keywords)+" "+entry.filename,found.contains(entry));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void findsKeywordsAtTheEndsOfFilenames() {
+		TrigramIndex index = new TrigramIndex();
+		IndexEntry entry = entry(1,"Movie.MKV");
+		index.add(entry);
+		for(String keyword : new String[] {"m","mo","mov","v","kv","mkv","movie.mkv","e.m"}) {
+			HashSet<IndexEntry> found = new HashSet<>();
+			index.candidates(new String[] {keyword}).forEach(found::add);
+			assertEquals(keyword,1,found.size());
+		}
+		assertTrue(!index.candidates(new String[] {"mkvx"}).iterator().hasNext());
+	}
+}